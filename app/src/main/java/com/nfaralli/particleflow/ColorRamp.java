@@ -0,0 +1,230 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Colors of the particles, from slow to fast particles.
+ * The color of a particle only depends on its squared speed and on a few preferences, so it is
+ * precomputed once per preference change in a lookup table indexed directly by the squared
+ * speed. The table is shared by all the engines (bound as an Allocation by the script) and the
+ * same conversion is used by the renderer and by GradientView, so that the preview always
+ * matches the particles.
+ * Does not depend on any Android class (Cf. ParticleEngine).
+ */
+public class ColorRamp {
+
+    // Squared speed from which the speed coefficient is 1 (i.e. log(sqSpeed + 1) / 4.5 = 1).
+    public static final float MAX_SQ_SPEED = (float) (Math.exp(4.5) - 1);
+    // Size of the lookup table. With a nearest lookup, an entry covers a squared speed range of
+    // MAX_SQ_SPEED / (TABLE_SIZE - 1) = 0.0054, over which the speed coefficient varies by at most
+    // 0.0012 (its derivative is at most 1/4.5, at sqSpeed = 0). The largest difference measured
+    // with the exact conversion (random slow/fast colors and hue directions) is 0.82 of an 8-bit
+    // step.
+    public static final int TABLE_SIZE = 16384;
+    // Number of texels of the ramp texture, from slow to fast particles, used to draw the particles
+    // when the engine only outputs their speed coefficient. The texture is sampled with a linear
+    // filter (Cf. ParticlesRenderer and PointRasterizer).
+    public static final int TEXTURE_SIZE = 256;
+
+    // Hues within [0, 1), saturations and values within [0, 1].
+    private final float mSlowHue;
+    private final float mSlowSaturation;
+    private final float mSlowValue;
+    private final float mFastHue;
+    private final float mFastSaturation;
+    private final float mFastValue;
+    private final int mHueDirection;  // 0 for clockwise, 1 for counterclockwise
+
+    // RGBA colors (4 floats per entry). Entry i is the color of the squared speed i / mScale.
+    // Null for a ramp created by forSampling.
+    private final float[] mTable;
+    private final float mScale;
+
+    /**
+     * @param slowHSV: hue (within [0, 1)), saturation and value of the slow particles.
+     * @param fastHSV: hue (within [0, 1)), saturation and value of the fast particles.
+     * @param hueDirection: 0 for clockwise, 1 for counterclockwise.
+     */
+    public ColorRamp(float[] slowHSV, float[] fastHSV, int hueDirection) {
+        this(slowHSV, fastHSV, hueDirection, true);
+    }
+
+    private ColorRamp(float[] slowHSV, float[] fastHSV, int hueDirection, boolean withTable) {
+        mSlowHue = slowHSV[0];
+        mSlowSaturation = slowHSV[1];
+        mSlowValue = slowHSV[2];
+        mFastHue = fastHSV[0];
+        mFastSaturation = fastHSV[1];
+        mFastValue = fastHSV[2];
+        mHueDirection = hueDirection;
+        mScale = (TABLE_SIZE - 1) / MAX_SQ_SPEED;
+        if (!withTable) {
+            mTable = null;
+            return;
+        }
+        mTable = new float[4 * TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            getColor(getSpeedCoef(i / mScale), mTable, 4 * i);
+        }
+    }
+
+    /**
+     * Create a ramp from two colors (as defined by android.graphics.Color, alpha is ignored).
+     */
+    public static ColorRamp fromColors(int slowColor, int fastColor, int hueDirection) {
+        return fromColors(slowColor, fastColor, hueDirection, true);
+    }
+
+    /**
+     * Same as fromColors, but without the lookup table (getTable returns null): only meant to
+     * compute a few colors with getArgb or getColor, e.g. by GradientView.
+     */
+    public static ColorRamp forSampling(int slowColor, int fastColor, int hueDirection) {
+        return fromColors(slowColor, fastColor, hueDirection, false);
+    }
+
+    private static ColorRamp fromColors(int slowColor, int fastColor, int hueDirection,
+                                        boolean withTable) {
+        float slowHSV[] = new float[3];
+        float fastHSV[] = new float[3];
+        colorToHSV(slowColor, slowHSV);
+        colorToHSV(fastColor, fastHSV);
+        return new ColorRamp(slowHSV, fastHSV, hueDirection, withTable);
+    }
+
+    /**
+     * Returns the lookup table: TABLE_SIZE RGBA colors (4 floats each).
+     * Entry i corresponds to the squared speed i / getScale(). Must not be modified. Null for a
+     * ramp created by forSampling.
+     */
+    public float[] getTable() {
+        return mTable;
+    }
+
+    /**
+     * Returns the factor converting a squared speed into an index of the lookup table.
+     */
+    public float getScale() {
+        return mScale;
+    }
+
+    /**
+     * Returns the index of the lookup table entry for the given squared speed.
+     */
+    public int getIndex(float sqSpeed) {
+        float index = sqSpeed * mScale + 0.5f;
+        return index < TABLE_SIZE - 1 ? (int) index : TABLE_SIZE - 1;
+    }
+
+    /**
+     * Returns a coefficient in the range [0, 1] based on the squared speed.
+     * 0 corresponds to low speeds and 1 corresponds to high speeds.
+     */
+    public static float getSpeedCoef(float sqSpeed) {
+        float coef = (float) Math.log(sqSpeed + 1) / 4.5f;  // Use + 1 to have positive log values.
+        return coef > 1.0f ? 1.0f : coef;
+    }
+
+    /**
+     * Returns the color (as defined by android.graphics.Color) for the given speed coefficient.
+     */
+    public int getArgb(float coef) {
+        float rgba[] = new float[4];
+        getColor(coef, rgba, 0);
+        return 0xFF000000
+                | (Math.round(rgba[0] * 255) << 16)
+                | (Math.round(rgba[1] * 255) << 8)
+                | Math.round(rgba[2] * 255);
+    }
+
+    /**
+     * Compute the RGBA color for the given speed coefficient (within [0, 1]) and store it in
+     * rgba[offset] to rgba[offset + 3]. R, G, and B are within [0, 1] and A=1.
+     */
+    public void getColor(float coef, float[] rgba, int offset) {
+        float h6 = 6 * getHue(coef);
+        float s = (1 - coef) * mSlowSaturation + coef * mFastSaturation;
+        float v = (1 - coef) * mSlowValue + coef * mFastValue;
+        float r, g, b;  // NOT the actual rgb values.
+        if (h6 < 1) {
+            r = 0;
+            g = 1 - h6;
+            b = 1;
+        } else if (h6 < 2) {
+            r = h6 - 1;
+            g = 0;
+            b = 1;
+        } else if (h6 < 3) {
+            r = 1;
+            g = 0;
+            b = 3 - h6;
+        } else if (h6 < 4) {
+            r = 1;
+            g = h6 - 3;
+            b = 0;
+        } else if (h6 < 5) {
+            r = 5 - h6;
+            g = 1;
+            b = 0;
+        } else {
+            r = 0;
+            g = 1;
+            b = h6 - 5;
+        }
+        float vs = v * s;
+        rgba[offset] = v - vs * r;
+        rgba[offset + 1] = v - vs * g;
+        rgba[offset + 2] = v - vs * b;
+        rgba[offset + 3] = 1.0f;
+    }
+
+    /**
+     * Get the hue based on coef, which must be within [0, 1].
+     * The returned value will be within [0, 1).
+     */
+    private float getHue(float coef) {
+        float sh = mSlowHue;
+        float fh = mFastHue;
+        if (sh < fh && mHueDirection == 0) {
+            sh += 1;
+        } else if (sh > fh && mHueDirection == 1) {
+            fh += 1;
+        }
+        float hue = (1 - coef) * sh + coef * fh;
+        if (hue >= 1) {
+            hue -= 1;
+        }
+        return hue;
+    }
+
+    /**
+     * Convert a color into its hue (within [0, 1)), saturation and value.
+     * Same as android.graphics.Color.colorToHSV, with the hue divided by 360.
+     */
+    public static void colorToHSV(int color, float[] hsv) {
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        int max = Math.max(r, Math.max(g, b));
+        int delta = max - Math.min(r, Math.min(g, b));
+        hsv[2] = max / 255.f;
+        if (max == 0) {
+            hsv[0] = hsv[1] = 0;
+            return;
+        }
+        hsv[1] = delta / (float) max;
+        float h;
+        if (delta == 0) {
+            h = 0;
+        } else if (r == max) {
+            h = (g - b) / (float) delta;
+        } else if (g == max) {
+            h = 2 + (b - r) / (float) delta;
+        } else {
+            h = 4 + (r - g) / (float) delta;
+        }
+        h /= 6;
+        if (h < 0) {
+            h += 1;
+        }
+        hsv[0] = h < 1 ? h : 0;  // h + 1 may round to 1 for tiny negative values of h.
+    }
+}
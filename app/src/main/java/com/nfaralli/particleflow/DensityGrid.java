@@ -0,0 +1,252 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Number of particles and mean speed coefficient per cell of a grid covering the simulation, used
+ * to draw the particles as a texture instead of one point per particle (Cf.
+ * ParticlesSurfaceView.RENDER_MODE_DENSITY). The texture has one cell per texel, so that its size
+ * (and the cost of uploading it) only depends on the resolution of the grid.
+ *
+ * The texture is GL_LUMINANCE_ALPHA, row by row from the bottom (the y axis of the simulation):
+ * - the luminance is the fraction of the cell covered by its particles. If the particles of a
+ *   cell are spread at random, the expected fraction of the cell covered by n particles is
+ *   1 - exp(-n * coverage), coverage being the area of a particle relative to the area of a cell.
+ *   That's what a cell would look like with one point per particle, on average.
+ * - the alpha is the mean speed coefficient of the particles of the cell, to be mapped to the
+ *   colors of the ramp.
+ *
+ * The grid is split into horizontal bands, accumulated in parallel: each band goes through the
+ * cells of all the particles, and only keeps its own. Each cell is only written by the thread of
+ * its band, without any lock.
+ * Like the engines, it does not depend on any Android class.
+ */
+public class DensityGrid {
+
+    // Minimum number of particles whose cell is computed by a single task.
+    private static final int MIN_CHUNK_SIZE = 16384;
+    // The luminance is tabulated for the first LUMINANCE_TABLE_SIZE counts, and saturated above.
+    private static final int LUMINANCE_TABLE_SIZE = 256;
+
+    // null to accumulate on the calling thread.
+    private final ForkJoinPool mPool;
+    private final int mNumBands;
+
+    private int mWidth;
+    private int mHeight;
+    // Number of particles and sum of their speed coefficients, per cell.
+    private int[] mCounts = new int[0];
+    private float[] mSpeedSums = new float[0];
+    private final byte[] mLuminance = new byte[LUMINANCE_TABLE_SIZE];
+    private byte[] mTexels = new byte[0];
+    private ByteBuffer mTexture = ByteBuffer.wrap(mTexels);
+
+    // Input of the current accumulation. Cell of each particle, -1 if out of the grid.
+    private float[] mPosition;
+    private float[] mSpeed;
+    private int mCount;
+    private float mScaleX;
+    private float mScaleY;
+    private int[] mCellOf = new int[0];
+    private float[] mPositionCopy = new float[0];
+    private float[] mSpeedCopy = new float[0];
+    private int mChunkSize;
+
+    /**
+     * @param pool: pool accumulating the bands in parallel, null to accumulate them on the calling
+     *            thread (e.g. before API 21, Cf. JavaParticleEngine).
+     */
+    public DensityGrid(ForkJoinPool pool) {
+        mPool = pool;
+        mNumBands = pool != null ? 2 * pool.getParallelism() : 1;
+    }
+
+    /**
+     * Set the number of cells of the grid, which covers the whole simulation.
+     *
+     * @param coverage: area of a particle relative to the area of a cell.
+     */
+    public void setSize(int width, int height, float coverage) {
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mCounts = new int[width * height];
+            mSpeedSums = new float[width * height];
+            mTexels = new byte[2 * width * height];
+            mTexture = ByteBuffer.wrap(mTexels);
+        }
+        for (int n = 0; n < LUMINANCE_TABLE_SIZE; n++) {
+            mLuminance[n] = (byte) Math.round(255 * (1 - Math.exp(-n * coverage)));
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the texture computed by the last call to accumulate (Cf. class comment), with its
+     * position set to 0. Belongs to the grid, and is overwritten by the next accumulate.
+     */
+    public ByteBuffer getTexture() {
+        mTexture.position(0);
+        return mTexture;
+    }
+
+    /**
+     * Compute the texture of the first count particles.
+     *
+     * @param positions: positions of the particles (Cf. ParticleEngine.readPositions).
+     * @param speeds: speed coefficients of the particles (Cf. ParticleEngine.readSpeeds).
+     * @param simWidth, simHeight: size of the simulation, mapped to the whole grid.
+     */
+    public void accumulate(FloatBuffer positions, FloatBuffer speeds, int count, float simWidth,
+                           float simHeight) {
+        mCount = count;
+        mScaleX = mWidth / simWidth;
+        mScaleY = mHeight / simHeight;
+        mPosition = getArray(positions, 2 * count, false);
+        mSpeed = getArray(speeds, count, true);
+        if (mCellOf.length < count) {
+            mCellOf = new int[count];
+        }
+        if (mPool == null) {
+            computeCells(0, count);
+            accumulateBand(0);
+        } else {
+            mChunkSize = Math.max(MIN_CHUNK_SIZE, count / (4 * mPool.getParallelism()) + 1);
+            mPool.invoke(new CellTask(0, count));
+            mPool.invoke(new BandTask(0, mNumBands));
+        }
+        mPosition = null;
+        mSpeed = null;
+    }
+
+    /**
+     * Returns the array backing buffer, or a copy of its first size floats.
+     */
+    private float[] getArray(FloatBuffer buffer, int size, boolean speed) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0) {
+            return buffer.array();
+        }
+        float[] copy = speed ? mSpeedCopy : mPositionCopy;
+        if (copy.length < size) {
+            copy = new float[size];
+            if (speed) {
+                mSpeedCopy = copy;
+            } else {
+                mPositionCopy = copy;
+            }
+        }
+        buffer.position(0);
+        buffer.get(copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Compute the cell of the particles [from, to).
+     */
+    private void computeCells(int from, int to) {
+        float x, y;
+        for (int i = from; i < to; i++) {
+            x = mPosition[2 * i] * mScaleX;
+            y = mPosition[2 * i + 1] * mScaleY;
+            // Same as the points, the particles out of the screen are not drawn.
+            if (x >= 0 && x < mWidth && y >= 0 && y < mHeight) {
+                mCellOf[i] = (int) y * mWidth + (int) x;
+            } else {
+                mCellOf[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * Accumulate the particles of band #band, then compute its texels and clear its cells for the
+     * next accumulation.
+     */
+    private void accumulateBand(int band) {
+        int firstCell = (int) ((long) mHeight * band / mNumBands) * mWidth;
+        int endCell = (int) ((long) mHeight * (band + 1) / mNumBands) * mWidth;
+        int[] counts = mCounts;
+        float[] speedSums = mSpeedSums;
+        int cell;
+        for (int i = 0; i < mCount; i++) {
+            cell = mCellOf[i];
+            if (cell >= firstCell && cell < endCell) {
+                counts[cell]++;
+                speedSums[cell] += mSpeed[i];
+            }
+        }
+        int n;
+        for (cell = firstCell; cell < endCell; cell++) {
+            n = counts[cell];
+            if (n == 0) {
+                mTexels[2 * cell] = 0;
+                mTexels[2 * cell + 1] = 0;
+                continue;
+            }
+            mTexels[2 * cell] = mLuminance[n < LUMINANCE_TABLE_SIZE ? n : LUMINANCE_TABLE_SIZE - 1];
+            mTexels[2 * cell + 1] = (byte) (255 * Math.min(speedSums[cell] / n, 1) + 0.5f);
+        }
+        Arrays.fill(counts, firstCell, endCell, 0);
+        Arrays.fill(speedSums, firstCell, endCell, 0);
+    }
+
+    /**
+     * Task computing the cells of a range of particles, split in halves until it is small enough.
+     */
+    private class CellTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mFrom;
+        private final int mTo;
+
+        CellTask(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mChunkSize) {
+                computeCells(mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new CellTask(mFrom, mid), new CellTask(mid, mTo));
+        }
+    }
+
+    /**
+     * Task accumulating a range of bands, split in halves down to a single band.
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mFrom;
+        private final int mTo;
+
+        BandTask(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                accumulateBand(mFrom);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new BandTask(mFrom, mid), new BandTask(mid, mTo));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.nfaralli.particleflow;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Fastest way to update the particles on this device: engine (for
+ * ParticlesSurfaceView.ENGINE_AUTO) and launch size of each engine (Cf.
+ * ParticleEngine.setLaunchSize). The best choices differ a lot between devices, so they are
+ * measured by a short calibration run (Cf. calibrate) the first time the app runs on a device, or
+ * after an update of the app, and saved in the preferences until then. The calibration runs in the
+ * background (Cf. ParticleSimulation.startCalibration): the default engine is used until it's done.
+ */
+public class EngineTuner {
+
+    private static final String TAG = "EngineTuner";
+
+    // The results are kept apart from the settings: writing them must not notify the views (Cf.
+    // ParticlesSurfaceView.onSharedPreferenceChanged).
+    private static final String PREFS_NAME = "EngineTuner";
+    // Launch sizes measured for each engine, 0 being the default of the engine.
+    private static final int[] RS_LAUNCH_SIZES = {0, 16384, 65536, 262144};
+    private static final int[] JAVA_LAUNCH_SIZES = {0, 4096, 16384, 65536};
+    private static final int NUM_WARMUP_UPDATES = 2;
+    private static final int NUM_TIMED_UPDATES = 5;
+    // Maximum number of particles the engines are timed with. The time of an update is linear in
+    // the number of particles: the times (and the launch sizes) measured with fewer particles are
+    // scaled to the number of particles of the preferences.
+    private static final int MAX_PARTICLES = 65536;
+
+    private final String mFingerprint;
+    private final int mEngine;
+    private final int mRSLaunchSize;
+    private final int mJavaLaunchSize;
+
+    private EngineTuner(String fingerprint, int engine, int rsLaunchSize, int javaLaunchSize) {
+        mFingerprint = fingerprint;
+        mEngine = engine;
+        mRSLaunchSize = rsLaunchSize;
+        mJavaLaunchSize = javaLaunchSize;
+    }
+
+    /**
+     * Returns the results saved by the last calibration, or null if there is none for this device
+     * and this version of the app.
+     */
+    public static EngineTuner load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String fingerprint = getFingerprint(context);
+        if (!fingerprint.equals(prefs.getString("Fingerprint", null))) {
+            return null;
+        }
+        return new EngineTuner(fingerprint,
+                prefs.getInt("Engine", ParticlesSurfaceView.ENGINE_RENDERSCRIPT),
+                prefs.getInt("RSLaunchSize", 0), prefs.getInt("JavaLaunchSize", 0));
+    }
+
+    /**
+     * Time a few updates of config.getNumParticles() particles (at most MAX_PARTICLES, scaled
+     * afterwards) on a width x height screen with each engine and launch size, save the fastest
+     * ones, and return them. The engines run the force model (and the reordering) of config,
+     * whose costs differ between the engines.
+     * The other engines should be idle meanwhile (Cf. ParticleSimulation.update), or they would
+     * skew the times.
+     * Takes a few dozens of updates: only meant to run once per version of the app, on a
+     * background thread.
+     */
+    public static EngineTuner calibrate(Context context, ParticlesConfig config, int width,
+                                        int height) {
+        long start = System.nanoTime();
+        int partCount = Math.min(config.getNumParticles(), MAX_PARTICLES);
+        float scale = config.getNumParticles() / (float) partCount;
+        long[] rsTimes = new long[RS_LAUNCH_SIZES.length];
+        int rsBest = measure(new RSParticleEngine(context), config, partCount, scale, width,
+                height, RS_LAUNCH_SIZES, rsTimes);
+        int engine = ParticlesSurfaceView.ENGINE_RENDERSCRIPT;
+        int javaLaunchSize = 0;
+        // ForkJoinPool is only available on API 21 and above (Cf.
+        // ParticleSimulation.createEngine).
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            long[] javaTimes = new long[JAVA_LAUNCH_SIZES.length];
+            int javaBest = measure(new JavaParticleEngine(), config, partCount, scale, width,
+                    height, JAVA_LAUNCH_SIZES, javaTimes);
+            Log.i(TAG, "Java: " + Arrays.toString(javaTimes) + " ns per update for launch sizes "
+                    + Arrays.toString(JAVA_LAUNCH_SIZES));
+            javaLaunchSize = JAVA_LAUNCH_SIZES[javaBest];
+            if (javaTimes[javaBest] < rsTimes[rsBest]) {
+                engine = ParticlesSurfaceView.ENGINE_JAVA;
+            }
+        }
+        Log.i(TAG, "Renderscript: " + Arrays.toString(rsTimes)
+                + " ns per update for launch sizes " + Arrays.toString(RS_LAUNCH_SIZES));
+        EngineTuner tuner = new EngineTuner(getFingerprint(context), engine,
+                RS_LAUNCH_SIZES[rsBest], javaLaunchSize);
+        tuner.save(context);
+        Log.i(TAG, "Calibrated in " + (System.nanoTime() - start) / 1000000 + " ms: " + tuner);
+        return tuner;
+    }
+
+    /**
+     * Save the choices made without calibration (the java engine when available, Cf.
+     * ParticleSimulation.resolveEngine, and the default launch sizes), and return them. Used when
+     * the calibration failed, so that it isn't attempted again with this version of the app.
+     */
+    public static EngineTuner fallback(Context context) {
+        int engine = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? ParticlesSurfaceView.ENGINE_JAVA : ParticlesSurfaceView.ENGINE_RENDERSCRIPT;
+        EngineTuner tuner = new EngineTuner(getFingerprint(context), engine, 0, 0);
+        tuner.save(context);
+        return tuner;
+    }
+
+    /**
+     * Returns the fastest engine, ENGINE_RENDERSCRIPT or ENGINE_JAVA.
+     */
+    public int getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Returns the fastest launch size of engine (ENGINE_RENDERSCRIPT or ENGINE_JAVA), 0 for any
+     * other engine.
+     */
+    public int getLaunchSize(int engine) {
+        switch (engine) {
+            case ParticlesSurfaceView.ENGINE_RENDERSCRIPT:
+                return mRSLaunchSize;
+            case ParticlesSurfaceView.ENGINE_JAVA:
+                return mJavaLaunchSize;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "engine=" + mEngine + ", rsLaunchSize=" + mRSLaunchSize + ", javaLaunchSize="
+                + mJavaLaunchSize;
+    }
+
+    private void save(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString("Fingerprint", mFingerprint)
+                .putInt("Engine", mEngine)
+                .putInt("RSLaunchSize", mRSLaunchSize)
+                .putInt("JavaLaunchSize", mJavaLaunchSize)
+                .apply();
+    }
+
+    /**
+     * Returns a string identifying the device, its system and the version of the app: the results
+     * of a calibration only hold for all three.
+     */
+    private static String getFingerprint(Context context) {
+        int versionCode = 0;
+        try {
+            versionCode = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Could not get the version of the app: " + e);
+        }
+        return Build.FINGERPRINT + "/" + versionCode;
+    }
+
+    /**
+     * Time the updates of partCount particles with engine and each launch size into times
+     * (median, in nanoseconds), and returns the index of the fastest one. Destroys the engine,
+     * even if it fails.
+     * The launch sizes are divided by scale, so that each update has as many launches as with
+     * scale times more particles, and the times are multiplied by scale.
+     */
+    private static int measure(ParticleEngine engine, ParticlesConfig config, int partCount,
+                               float scale, int width, int height, int[] launchSizes,
+                               long[] times) {
+        int numTouch = config.getNumAttPoints();
+        try {
+            engine.setSize(width, height);
+            engine.setColorRamp(ColorRamp.fromColors(
+                    config.getSlowColor(), config.getFastColor(), config.getHueDirection()));
+            engine.setForceCoefs(config.getAttractionCoef(), config.getDragCoef());
+            engine.setForceModel(config.getForceModel(), config.getForceParams());
+            engine.setReorderInterval(config.getReorderInterval());
+            engine.setSpeedOutput(config.isSpeedOutput());
+            engine.allocate(partCount, numTouch);
+            // Same layout as ParticleSimulation.placeAttractionPoints.
+            float[] touch = new float[2 * numTouch];
+            float l = Math.min(width, height) / 3;
+            for (int i = 0; i < numTouch; i++) {
+                double angle = i * 2 * Math.PI / numTouch;
+                touch[2 * i] = (float) (width / 2 + l * Math.sin(angle));
+                touch[2 * i + 1] = (float) (height / 2 - l * Math.cos(angle));
+            }
+            engine.setTouch(touch);
+            engine.initParticles();
+            long[] samples = new long[NUM_TIMED_UPDATES];
+            int best = 0;
+            for (int i = 0; i < launchSizes.length; i++) {
+                engine.setLaunchSize((int) Math.ceil(launchSizes[i] / scale));
+                for (int j = 0; j < NUM_WARMUP_UPDATES + NUM_TIMED_UPDATES; j++) {
+                    long updateStart = System.nanoTime();
+                    engine.update();
+                    if (engine instanceof RSParticleEngine) {
+                        ((RSParticleEngine) engine).finish();
+                    }
+                    if (j >= NUM_WARMUP_UPDATES) {
+                        samples[j - NUM_WARMUP_UPDATES] = System.nanoTime() - updateStart;
+                    }
+                }
+                Arrays.sort(samples);
+                times[i] = (long) (scale * samples[NUM_TIMED_UPDATES / 2]);
+                if (times[i] < times[best]) {
+                    best = i;
+                }
+            }
+            return best;
+        } finally {
+            engine.destroy();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Force moving the particles, on top of the drag.
+ * Every model uses the attraction points and the attraction coefficient (Cf.
+ * ParticleEngine.setForceCoefs), and may declare extra parameters. Each parameter is stored in the
+ * preferences under its own key, so that switching from one model to another keeps the values of
+ * both.
+ *
+ * The engines have one specialized kernel per model and pick it once per update (Cf.
+ * ParticleEngine.setForceModel): a model which is not selected costs nothing per particle.
+ * Like the engines, this class does not depend on any Android class.
+ */
+public final class ForceModel {
+
+    // Identifiers of the models, stored in the "ForceModel" preference.
+    public static final int ATTRACTION = 0;  // Attraction points only.
+    public static final int NEIGHBORS = 1;  // Attraction points + force between neighbors.
+    public static final int VORTEX = 2;  // Attraction points which also make the particles swirl.
+    public static final int REPULSOR = 3;  // Attraction points with a repulsive core.
+    public static final int TURBULENCE = 4;  // Attraction points + drifting turbulence.
+
+    // Index of the parameters of each model in the array given to ParticleEngine.setForceModel.
+    // NEIGHBORS: Cf. ParticleEngine.setForceModel for the shape of the force, and its sampling
+    // where the particles are crowded.
+    public static final int NEIGHBOR_COEF = 0;
+    public static final int NEIGHBOR_RADIUS = 1;
+    // VORTEX: tangential coefficient, same unit as the attraction coefficient. Its sign gives the
+    // direction of the rotation.
+    public static final int VORTEX_SWIRL = 0;
+    // REPULSOR: distance to the attraction points under which they push the particles away.
+    public static final int REPULSOR_RADIUS = 0;
+    // TURBULENCE: maximum acceleration, and distance between two gusts going the same way.
+    public static final int TURBULENCE_COEF = 0;
+    public static final int TURBULENCE_SCALE = 1;
+
+    // Duration (in reference updates, Cf. SimulationClock) after which the turbulence is back to
+    // its initial state.
+    public static final float TURBULENCE_PERIOD = 1200;
+
+    /**
+     * Parameter of a model. The preference is an int within [min, max], scaled to get the value
+     * given to the engines.
+     */
+    public static final class Param {
+        private final String mKey;
+        private final int mDefault;
+        private final int mMin;
+        private final int mMax;
+        private final float mScale;
+
+        Param(String key, int defaultValue, int min, int max, float scale) {
+            mKey = key;
+            mDefault = defaultValue;
+            mMin = min;
+            mMax = max;
+            mScale = scale;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public int getDefault() {
+            return mDefault;
+        }
+
+        public int getMin() {
+            return mMin;
+        }
+
+        public int getMax() {
+            return mMax;
+        }
+
+        /**
+         * Returns the value given to the engines for the given preference value.
+         */
+        public float getValue(int prefValue) {
+            return prefValue * mScale;
+        }
+    }
+
+    private static final ForceModel[] MODELS = {
+            new ForceModel(ATTRACTION),
+            new ForceModel(NEIGHBORS,
+                    // In hundredths of pixel per update squared. Positive values push the
+                    // neighbors away.
+                    new Param("NeighborForce", 20, -100, 100, 0.01f),
+                    // In pixels.
+                    new Param("NeighborRadius", 8, 2, 64, 1)),
+            new ForceModel(VORTEX,
+                    new Param("VortexSwirl", 100, -1000, 1000, 1)),
+            new ForceModel(REPULSOR,
+                    // In pixels.
+                    new Param("RepulsorRadius", 60, 0, 500, 1)),
+            new ForceModel(TURBULENCE,
+                    // In hundredths of pixel per update squared.
+                    new Param("TurbulenceForce", 5, 0, 100, 0.01f),
+                    // In pixels.
+                    new Param("TurbulenceScale", 200, 16, 1024, 1)),
+    };
+
+    private final int mId;
+    private final Param[] mParams;
+
+    private ForceModel(int id, Param... params) {
+        mId = id;
+        mParams = params;
+    }
+
+    /**
+     * Returns the model with the given identifier, ATTRACTION if there is no such model.
+     */
+    public static ForceModel get(int id) {
+        return id >= 0 && id < MODELS.length ? MODELS[id] : MODELS[ATTRACTION];
+    }
+
+    /**
+     * Returns all the models, in the order of their identifiers.
+     */
+    public static ForceModel[] getAll() {
+        return MODELS.clone();
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Returns the parameters of this model, in the order expected by ParticleEngine.setForceModel.
+     */
+    public Param[] getParams() {
+        return mParams.clone();
+    }
+
+    /**
+     * Returns the values of the parameters with their default preference values.
+     */
+    public float[] getDefaultValues() {
+        float[] values = new float[mParams.length];
+        for (int i = 0; i < mParams.length; i++) {
+            values[i] = mParams[i].getValue(mParams[i].getDefault());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,107 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Adapts the number of active particles (i.e. updated and drawn) in order to keep a target frame
+ * rate.
+ * Two measures are needed: the interval between two frames tells if the target is missed, but
+ * with vsync it cannot tell how much headroom there is when the target is met. The time spent
+ * in onDrawFrame (busy time) is used for that.
+ * To avoid oscillations, the count only changes when the measures stay out of a dead band for
+ * several frames in a row, and not during a few frames after a change (so that the measures
+ * reflect the new count).
+ */
+public class FrameRateGovernor {
+
+    // Shrink when the average frame interval is above the target by more than this ratio.
+    private static final float SHRINK_THRESHOLD = 1.10f;
+    // Grow when the average busy time is below this ratio of the target frame time.
+    private static final float GROW_THRESHOLD = 0.70f;
+    // Number of consecutive frames out of the dead band before changing the count.
+    private static final int SHRINK_FRAMES = 5;
+    private static final int GROW_FRAMES = 30;
+    // Number of frames ignored after a change.
+    private static final int COOLDOWN_FRAMES = 10;
+    // Maximum growth per change.
+    private static final float GROW_FACTOR = 1.10f;
+    // Smoothing factor of the exponential moving averages.
+    private static final float SMOOTHING = 0.1f;
+
+    private final long mTargetFrameNanos;
+    private final int mMinCount;
+    private final int mMaxCount;
+    private int mActiveCount;
+
+    private float mAvgInterval;
+    private float mAvgBusy;
+    private int mSlowFrames;
+    private int mFastFrames;
+    private int mCooldown;
+    private long mLastFrameStart;
+
+    /**
+     * @param targetFps: frame rate to keep.
+     * @param minCount: the number of active particles never goes below this value.
+     * @param maxCount: total number of particles, which is also the initial number of active
+     *                particles.
+     */
+    public FrameRateGovernor(int targetFps, int minCount, int maxCount) {
+        mTargetFrameNanos = 1000000000L / targetFps;
+        mMaxCount = maxCount;
+        mMinCount = Math.min(minCount, maxCount);
+        mActiveCount = maxCount;
+        mCooldown = COOLDOWN_FRAMES;
+    }
+
+    /**
+     * Returns the number of particles which should be updated and drawn.
+     */
+    public int getActiveCount() {
+        return mActiveCount;
+    }
+
+    /**
+     * Should be called at the beginning and at the end of each frame (System.nanoTime()).
+     * Returns the number of active particles for the next frame.
+     */
+    public int onFrame(long frameStart, long frameEnd) {
+        long interval = mLastFrameStart == 0 ? mTargetFrameNanos : frameStart - mLastFrameStart;
+        mLastFrameStart = frameStart;
+        if (mCooldown > 0) {
+            mCooldown--;
+            // Restart the averages from the measures of the new count.
+            mAvgInterval = interval;
+            mAvgBusy = frameEnd - frameStart;
+            return mActiveCount;
+        }
+        mAvgInterval += SMOOTHING * (interval - mAvgInterval);
+        mAvgBusy += SMOOTHING * (frameEnd - frameStart - mAvgBusy);
+
+        if (mAvgInterval > SHRINK_THRESHOLD * mTargetFrameNanos) {
+            mFastFrames = 0;
+            if (++mSlowFrames >= SHRINK_FRAMES) {
+                // The cost of a frame is roughly proportional to the number of particles.
+                setActiveCount((int) (mActiveCount * mTargetFrameNanos / mAvgInterval));
+            }
+        } else if (mAvgBusy < GROW_THRESHOLD * mTargetFrameNanos) {
+            mSlowFrames = 0;
+            if (++mFastFrames >= GROW_FRAMES) {
+                float ratio = Math.min(GROW_FACTOR, GROW_THRESHOLD * mTargetFrameNanos / mAvgBusy);
+                setActiveCount((int) Math.ceil(mActiveCount * ratio));
+            }
+        } else {
+            mSlowFrames = 0;
+            mFastFrames = 0;
+        }
+        return mActiveCount;
+    }
+
+    private void setActiveCount(int count) {
+        count = Math.max(mMinCount, Math.min(mMaxCount, count));
+        if (count != mActiveCount) {
+            mActiveCount = count;
+            mCooldown = COOLDOWN_FRAMES;
+        }
+        mSlowFrames = 0;
+        mFastFrames = 0;
+    }
+}
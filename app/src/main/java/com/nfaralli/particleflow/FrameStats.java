@@ -0,0 +1,156 @@
+package com.nfaralli.particleflow;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Durations of the stages of the last frames drawn by a renderer, kept in a fixed size ring
+ * buffer, and number of dropped frames.
+ * Recording a frame doesn't allocate anything, so it can be done in the frame loop. The frames
+ * are recorded by the GL thread and the statistics can be read from any thread.
+ *
+ * A frame is dropped when the display refreshes without a new frame to show. The number of
+ * dropped frames is the number of vsyncs minus the number of frames drawn since the last resume
+ * (Cf. endFrame): unlike the time between two frames, it is not fooled by the jitter of the
+ * frame loop.
+ */
+public class FrameStats {
+
+    // Stages of a frame (Cf. ParticlesRenderer.onDrawFrame).
+    public static final int STAGE_SIMULATE = 0;  // Update of the particles.
+    public static final int STAGE_READBACK = 1;  // Copy of the engine output, if needed.
+    public static final int STAGE_UPLOAD = 2;  // Copy of the output into the buffer objects.
+    public static final int STAGE_DRAW = 3;  // Draw calls (CPU side).
+    public static final int STAGE_GPU = 4;  // Draw calls (GPU side), only with timer queries.
+    public static final int STAGE_FRAME = 5;  // Whole frame, from start to end of onDrawFrame.
+    public static final int NUM_STAGES = 6;
+    private static final String[] STAGE_NAMES =
+            {"simulate", "readback", "upload", "draw", "gpu", "frame"};
+
+    // Number of frames kept, i.e. 4 seconds at 60 fps.
+    private static final int CAPACITY = 240;
+
+    // Durations in nanoseconds, -1 if unknown. mDurations[stage][frame].
+    private final long[][] mDurations = new long[NUM_STAGES][CAPACITY];
+    // Durations of the frame being recorded (GL thread only).
+    private final long[] mCurrent = new long[NUM_STAGES];
+    // Used to sort the durations of a stage.
+    private final long[] mSorted = new long[CAPACITY];
+    // Next slot of the ring buffer, and number of valid slots.
+    private int mNext;
+    private int mCount;
+
+    private long mFrames;
+    // Frames drawn since the last resume, and vsync count at the first of them (-1 until then).
+    private long mFramesSinceResume;
+    private long mFirstVsync = -1;
+    private long mDroppedFrames;
+    // Dropped frames before the last resume.
+    private long mDroppedBeforeResume;
+
+    public FrameStats() {
+        Arrays.fill(mCurrent, -1);
+    }
+
+    /**
+     * Add nanos to the duration of stage in the frame being recorded. A stage may be recorded
+     * several times per frame (e.g. the read back of positions and colors).
+     * Must only be called by the GL thread.
+     */
+    public void record(int stage, long nanos) {
+        mCurrent[stage] = Math.max(mCurrent[stage], 0) + nanos;
+    }
+
+    /**
+     * Commit the frame being recorded into the ring buffer.
+     *
+     * @param vsyncCount: number of vsyncs since an arbitrary origin, -1 if unknown (in which case
+     *                  the dropped frames are not counted).
+     */
+    public synchronized void endFrame(long vsyncCount) {
+        for (int stage = 0; stage < NUM_STAGES; stage++) {
+            mDurations[stage][mNext] = mCurrent[stage];
+            mCurrent[stage] = -1;
+        }
+        mNext = (mNext + 1) % CAPACITY;
+        mCount = Math.min(mCount + 1, CAPACITY);
+        mFrames++;
+        if (vsyncCount >= 0) {
+            if (mFirstVsync < 0) {
+                mFirstVsync = vsyncCount;
+            }
+            mFramesSinceResume++;
+            // The first frame is shown at the vsync following mFirstVsync.
+            long dropped = vsyncCount - mFirstVsync - (mFramesSinceResume - 1);
+            if (dropped > mDroppedFrames - mDroppedBeforeResume) {
+                mDroppedFrames = mDroppedBeforeResume + dropped;
+            }
+        }
+    }
+
+    /**
+     * Should be called when the renderer stops drawing: the vsyncs until the next frame are not
+     * dropped frames.
+     */
+    public synchronized void pause() {
+        mDroppedBeforeResume = mDroppedFrames;
+        mFirstVsync = -1;
+        mFramesSinceResume = 0;
+        Arrays.fill(mCurrent, -1);
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Returns the smallest duration (in nanoseconds) of stage greater than or equal to the given
+     * fraction (within [0, 1]) of its durations in the ring buffer, -1 if none is known.
+     */
+    public synchronized long getPercentile(int stage, float fraction) {
+        int n = sortDurations(stage);
+        if (n == 0) {
+            return -1;
+        }
+        return mSorted[Math.max(0, (int) Math.ceil(fraction * n) - 1)];
+    }
+
+    // Copy the known durations of stage into mSorted and sort them. Returns their number.
+    private int sortDurations(int stage) {
+        int n = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mDurations[stage][i] >= 0) {
+                mSorted[n++] = mDurations[stage][i];
+            }
+        }
+        Arrays.sort(mSorted, 0, n);
+        return n;
+    }
+
+    /**
+     * Write the p50, p95 and p99 of each stage (in milliseconds) and the dropped frames, one line
+     * per stage. Used by the overlay and by dumpsys.
+     */
+    public synchronized void dump(String prefix, PrintWriter out) {
+        out.print(prefix);
+        out.println("frames=" + mFrames + " dropped=" + mDroppedFrames);
+        for (int stage = 0; stage < NUM_STAGES; stage++) {
+            out.print(prefix);
+            out.print(STAGE_NAMES[stage]);
+            out.print(':');
+            int n = sortDurations(stage);
+            if (n == 0) {
+                out.println(" n/a");
+                continue;
+            }
+            out.println(String.format(" p50=%.2f p95=%.2f p99=%.2f ms",
+                    mSorted[(int) Math.ceil(0.5f * n) - 1] / 1e6,
+                    mSorted[(int) Math.ceil(0.95f * n) - 1] / 1e6,
+                    mSorted[(int) Math.ceil(0.99f * n) - 1] / 1e6));
+        }
+    }
+}
@@ -0,0 +1,660 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Engine keeping the particles on the GPU (OpenGL ES 3.0): each update runs a vertex shader over
+ * all the particles, whose outputs are captured with transform feedback into a second buffer
+ * object, and the two buffers are swapped. The renderer draws the particles straight from
+ * getOutputBuffer: the positions and velocities never go through the CPU. Cf.
+ * TransformFeedbackShaders for the shaders and the layout of the buffers.
+ * Only ForceModel.ATTRACTION is implemented (Cf. ParticlesConfig.isGpuEngine).
+ *
+ * The GL objects are created lazily by the first update (or acquireOutput) with the GL context
+ * current at that time, so all the methods but the constructor and the setters must be called on
+ * the GL thread, and the engine can't be pipelined. A CPU copy of the state is kept for the
+ * methods which set it (allocate, resize, initParticles and restoreState) and refreshed by the
+ * methods which read it (saveState, readPositions...). When the engine is updated with another
+ * context (e.g. the surface was recreated), it starts again from this copy, i.e. from the last
+ * saved state (Cf. ParticlesRenderer.onPause).
+ * The contexts sharing their objects (Cf. SharedContextFactory, e.g. the wallpaper and its
+ * preview, Cf. ParticleSimulation) use the same GL objects, kept until the last of them is
+ * released (Cf. releaseContext). The other contexts have their own GL objects, whose buffers are
+ * only uploaded when the state changed since they were last used, and while several such
+ * contexts take turns, the copy is refreshed after each update until a single context is left.
+ */
+public class GLParticleEngine extends ParticleEngine {
+
+    private static final String TAG = "GLParticleEngine";
+    private static final int FLOAT_SIZE = 4;
+    private static final float TWO_PI = 6.28318530718f;
+    // Number of frames (Cf. prepare) without any other context before the state stops being read
+    // back after each update.
+    private static final int SHARED_TIMEOUT = 120;
+
+    // GL objects of each share group (Cf. SharedContextFactory.getCurrentGroup) the engine was
+    // used with, and those of the current context. The objects of a group are deleted in one of
+    // its contexts (Cf. releaseContext), or go away with them.
+    private final ArrayList<ContextObjects> mContexts = new ArrayList<ContextObjects>();
+    private ContextObjects mObjects;
+
+    // CPU copy of the positions and velocities (x, y, dx, dy per particle).
+    private float[] mState = new float[0];
+    // Version of the state, increased each time it is set or updated, and version of mState: the
+    // buffers of a share group are only uploaded if their version is older (Cf. prepare), and
+    // mState only read back if it's older (Cf. readBack).
+    private int mVersion;
+    private int mCpuVersion;
+    // True while several contexts not sharing their objects take turns, and number of frames
+    // since the objects changed.
+    private boolean mShared;
+    private int mFramesInContext;
+    // Coordinates (x, y) of the attraction points.
+    private float[] mTouch = new float[0];
+    // Output of readPositions, readColors and readSpeeds, read back from the buffers on demand.
+    private FloatBuffer mPositionOut = FloatBuffer.allocate(0);
+    private FloatBuffer mColorOut = FloatBuffer.allocate(0);
+    private FloatBuffer mSpeedOut = FloatBuffer.allocate(0);
+    private boolean mOutputValid;
+
+    /**
+     * GL objects of the engine in one share group.
+     */
+    private static class ContextObjects {
+        final Object group;
+        int program;
+        boolean programSpeedOutput;
+        int uTouchHandle;
+        int uNumTouchHandle;
+        int uAttractionCoefHandle;
+        int uDragCoefHandle;
+        int uTimeScaleHandle;
+        int uSeedHandle;
+        int uStepHandle;
+        int uColorTableHandle;
+        int uColorScaleHandle;
+        // Buffer objects holding the particles, buffers[current] has the output of the last
+        // update, at the given version of the state (-1 until uploaded).
+        final int[] buffers = new int[2];
+        int current;
+        int version = -1;
+        // Number of particles and of floats per particle the buffers are allocated for.
+        int bufferCount;
+        int bufferStride;
+        final int[] colorTable = new int[1];
+        // Color ramp currently in colorTable.
+        ColorRamp uploadedRamp;
+        // Fence after the last writes to the buffers, waited for before using them (Cf.
+        // fenceWrites), 0 if none.
+        long fence;
+
+        ContextObjects(Object group) {
+            this.group = group;
+            GLES30.glGenBuffers(2, buffers, 0);
+            GLES30.glGenTextures(1, colorTable, 0);
+        }
+
+        /**
+         * Delete the objects. Must be called in one of their contexts.
+         */
+        void delete() {
+            if (program != 0) {
+                GLES30.glDeleteProgram(program);
+            }
+            GLES30.glDeleteBuffers(2, buffers, 0);
+            GLES30.glDeleteTextures(1, colorTable, 0);
+            if (fence != 0) {
+                GLES30.glDeleteSync(fence);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the device supports OpenGL ES 3.0 (the GL contexts must then be created
+     * with client version 3, Cf. ParticlesSurfaceView).
+     */
+    public static boolean isSupported(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+    }
+
+    @Override
+    public void allocate(int partCount, int numTouch) {
+        mPartCount = partCount;
+        mActiveCount = partCount;
+        mInitCount = partCount;
+        mNumTouch = numTouch;
+        mState = new float[4 * partCount];
+        mTouch = new float[2 * numTouch];
+        // mState is the latest state, to upload before the next update.
+        mCpuVersion = ++mVersion;
+        mOutputValid = false;
+    }
+
+    @Override
+    public void resize(int partCount, int numTouch) {
+        readBack();
+        int kept = Math.min(mPartCount, partCount);
+        float[] state = mState;
+        float[] touch = mTouch;
+        allocate(partCount, numTouch);
+        System.arraycopy(state, 0, mState, 0, 4 * kept);
+        if (touch.length == mTouch.length) {
+            System.arraycopy(touch, 0, mTouch, 0, touch.length);
+        }
+        initRange(kept, partCount);
+    }
+
+    @Override
+    public void setTouch(float[] touchPos) {
+        System.arraycopy(touchPos, 0, mTouch, 0, Math.min(touchPos.length, mTouch.length));
+    }
+
+    @Override
+    public void saveState(FloatBuffer position, FloatBuffer delta) {
+        readBack();
+        for (int i = 0; i < mPartCount; i++) {
+            position.put(mState[4 * i]);
+            position.put(mState[4 * i + 1]);
+            delta.put(mState[4 * i + 2]);
+            delta.put(mState[4 * i + 3]);
+        }
+    }
+
+    @Override
+    public void restoreState(FloatBuffer position, FloatBuffer delta) {
+        for (int i = 0; i < mPartCount; i++) {
+            mState[4 * i] = position.get();
+            mState[4 * i + 1] = position.get();
+            mState[4 * i + 2] = delta.get();
+            mState[4 * i + 3] = delta.get();
+        }
+        mCpuVersion = ++mVersion;
+        mOutputValid = false;
+    }
+
+    // The particles are initialized in mState and uploaded as a whole: always all at once, whatever
+    // the init step is (Cf. setInitStep).
+    @Override
+    public void initParticles() {
+        reseed();
+        initRange(0, mPartCount);
+        mCpuVersion = ++mVersion;
+        mOutputValid = false;
+    }
+
+    /**
+     * Initialize the particles [from, to) of mState. Same as JavaParticleEngine.InitKernel.
+     */
+    @Override
+    protected void initRange(int from, int to) {
+        float radius = (float) Math.sqrt(mWidth * mWidth + mHeight * mHeight) / 2;
+        float r, theta;
+        for (int i = from; i < to; i++) {
+            r = radius * (float) Math.sqrt(
+                    ParticleRandom.nextFloat(mSeed, i, ParticleRandom.STEP_INIT_RADIUS));
+            theta = TWO_PI * ParticleRandom.nextFloat(mSeed, i, ParticleRandom.STEP_INIT_ANGLE);
+            mState[4 * i] = (mWidth / 2) + r * (float) Math.cos(theta);
+            mState[4 * i + 1] = (mHeight / 2) + r * (float) Math.sin(theta);
+            mState[4 * i + 2] = 0;
+            mState[4 * i + 3] = 0;
+        }
+    }
+
+    @Override
+    public void update() {
+        if (mActiveCount == 0 || !prepare()) {
+            return;
+        }
+        ContextObjects objects = mObjects;
+        int stride = objects.bufferStride * FLOAT_SIZE;
+        int source = objects.buffers[objects.current];
+        int destination = objects.buffers[1 - objects.current];
+        int numTouch = Math.min(mNumTouch, TransformFeedbackShaders.MAX_TOUCH);
+        GLES30.glUseProgram(objects.program);
+        if (numTouch > 0) {
+            GLES30.glUniform2fv(objects.uTouchHandle, numTouch, mTouch, 0);
+        }
+        GLES30.glUniform1i(objects.uNumTouchHandle, numTouch);
+        GLES30.glUniform1f(objects.uAttractionCoefHandle, mAttractionCoef * mTimeScale);
+        GLES30.glUniform1f(objects.uDragCoefHandle, (float) Math.pow(mDragCoef, mTimeScale));
+        GLES30.glUniform1f(objects.uTimeScaleHandle, mTimeScale);
+        GLES30.glUniform1ui(objects.uSeedHandle, mSeed);
+        GLES30.glUniform1ui(objects.uStepHandle, mStep);
+        if (!mSpeedOutput) {
+            GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, objects.colorTable[0]);
+            GLES30.glUniform1i(objects.uColorTableHandle, 0);
+            GLES30.glUniform1f(objects.uColorScaleHandle, mColorRamp.getScale());
+        }
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, source);
+        GLES30.glVertexAttribPointer(TransformFeedbackShaders.POSITION_LOCATION, 2,
+                GLES30.GL_FLOAT, false, stride, 0);
+        GLES30.glVertexAttribPointer(TransformFeedbackShaders.DELTA_LOCATION, 2,
+                GLES30.GL_FLOAT, false, stride, TransformFeedbackShaders.DELTA_OFFSET * FLOAT_SIZE);
+        GLES30.glEnableVertexAttribArray(TransformFeedbackShaders.POSITION_LOCATION);
+        GLES30.glEnableVertexAttribArray(TransformFeedbackShaders.DELTA_LOCATION);
+        GLES30.glBindBufferBase(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 0, destination);
+        GLES30.glEnable(GLES30.GL_RASTERIZER_DISCARD);
+        GLES30.glBeginTransformFeedback(GLES30.GL_POINTS);
+        GLES30.glDrawArrays(GLES30.GL_POINTS, 0, mActiveCount);
+        GLES30.glEndTransformFeedback();
+        GLES30.glDisable(GLES30.GL_RASTERIZER_DISCARD);
+        GLES30.glBindBufferBase(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 0, 0);
+        GLES30.glDisableVertexAttribArray(TransformFeedbackShaders.POSITION_LOCATION);
+        GLES30.glDisableVertexAttribArray(TransformFeedbackShaders.DELTA_LOCATION);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        if (mActiveCount < mPartCount) {
+            // The inactive particles are not updated, but must follow the buffer swap.
+            GLES30.glBindBuffer(GLES30.GL_COPY_READ_BUFFER, source);
+            GLES30.glBindBuffer(GLES30.GL_COPY_WRITE_BUFFER, destination);
+            GLES30.glCopyBufferSubData(GLES30.GL_COPY_READ_BUFFER, GLES30.GL_COPY_WRITE_BUFFER,
+                    mActiveCount * stride, mActiveCount * stride,
+                    (mPartCount - mActiveCount) * stride);
+            GLES30.glBindBuffer(GLES30.GL_COPY_READ_BUFFER, 0);
+            GLES30.glBindBuffer(GLES30.GL_COPY_WRITE_BUFFER, 0);
+        }
+        checkGlError("update");
+        objects.current = 1 - objects.current;
+        objects.version = ++mVersion;
+        mOutputValid = false;
+        fenceWrites(objects);
+        advanceTime();
+        if (mShared) {
+            readBack();
+        }
+    }
+
+    // Makes sure the output buffer exists in the current context before the renderer draws it.
+    @Override
+    public void acquireOutput() {
+        prepare();
+    }
+
+    /**
+     * Returns the buffer object holding the particles after the last update, in the layout of
+     * TransformFeedbackShaders, or 0 if it could not be created. Only valid in the context of the
+     * GL thread, after acquireOutput.
+     */
+    public int getOutputBuffer() {
+        ContextObjects objects = mObjects;
+        if (objects == null || !objects.group.equals(SharedContextFactory.getCurrentGroup())
+                || objects.version != mVersion || objects.bufferCount != mPartCount) {
+            return 0;
+        }
+        return objects.buffers[objects.current];
+    }
+
+    /**
+     * Returns the number of bytes per particle in getOutputBuffer.
+     */
+    public int getOutputStride() {
+        return TransformFeedbackShaders.getStride(mSpeedOutput) * FLOAT_SIZE;
+    }
+
+    // The readers below copy the buffers back to the CPU, which is what this engine avoids:
+    // the renderer only uses them for what can't be drawn from getOutputBuffer.
+    @Override
+    public FloatBuffer readPositions() {
+        readOutput();
+        mPositionOut.position(0);
+        return mPositionOut;
+    }
+
+    @Override
+    public FloatBuffer readColors() {
+        readOutput();
+        mColorOut.position(0);
+        return mColorOut;
+    }
+
+    @Override
+    public FloatBuffer readSpeeds() {
+        readOutput();
+        mSpeedOut.position(0);
+        return mSpeedOut;
+    }
+
+    /**
+     * Read the state back and delete the GL objects of the current context, which is about to be
+     * destroyed (Cf. ParticlesRenderer.onPause), unless other contexts share them. They are
+     * created again if the context is used afterwards.
+     */
+    @Override
+    public void releaseContext() {
+        ContextObjects objects = findObjects(SharedContextFactory.getCurrentGroup());
+        if (objects == null) {
+            return;
+        }
+        mObjects = objects;
+        // Also read back when the objects are kept, the other contexts may be released as well
+        // before they update the particles again.
+        readBack();
+        if (SharedContextFactory.getCurrentGroupSize() > 1) {
+            return;
+        }
+        objects.delete();
+        mContexts.remove(objects);
+        mObjects = null;
+    }
+
+    @Override
+    public void destroy() {
+        // Only the objects of the current share group can be deleted, the others are gone with
+        // their contexts, or will be deleted with them.
+        ContextObjects objects = findObjects(SharedContextFactory.getCurrentGroup());
+        if (objects != null) {
+            objects.delete();
+        }
+        mContexts.clear();
+        mObjects = null;
+    }
+
+    /**
+     * Returns the GL objects of group, or null if they were never created.
+     */
+    private ContextObjects findObjects(Object group) {
+        if (group == null) {
+            return null;
+        }
+        for (ContextObjects objects : mContexts) {
+            if (objects.group.equals(group)) {
+                return objects;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create the GL objects if they don't exist in the current context, and bring them up to date
+     * (program for the current speed output, buffers, color table, and the latest state). Returns
+     * false if that's not possible, e.g. without an OpenGL ES 3.0 context.
+     * The state is only uploaded if it changed since the buffers of this share group were last
+     * used, i.e. switching back and forth between two contexts which don't share their objects
+     * doesn't cost anything as long as only one of them updates the particles.
+     */
+    private boolean prepare() {
+        Object group = SharedContextFactory.getCurrentGroup();
+        if (group == null) {
+            return false;
+        }
+        ContextObjects objects = mObjects;
+        if (objects == null || !objects.group.equals(group)) {
+            if (objects != null && objects.version == mVersion && mCpuVersion != mVersion) {
+                // The last updates are stuck in the other context, which may still be in use.
+                mShared = true;
+            }
+            mFramesInContext = 0;
+            objects = findObjects(group);
+            if (objects == null) {
+                objects = new ContextObjects(group);
+                mContexts.add(objects);
+            }
+            mObjects = objects;
+        }
+        if (objects.fence != 0) {
+            // The last writes may come from another context of the group.
+            GLES30.glWaitSync(objects.fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+        }
+        if (objects.program == 0 || objects.programSpeedOutput != mSpeedOutput) {
+            if (objects.program != 0) {
+                GLES30.glDeleteProgram(objects.program);
+            }
+            objects.program = createProgram(objects, mSpeedOutput);
+            if (objects.program == 0) {
+                return false;
+            }
+            objects.programSpeedOutput = mSpeedOutput;
+        }
+        if (mShared && ++mFramesInContext > SHARED_TIMEOUT) {
+            mShared = false;
+        }
+        int stride = TransformFeedbackShaders.getStride(mSpeedOutput);
+        if (objects.bufferCount != mPartCount || objects.bufferStride != stride) {
+            // The buffers may hold the latest state (e.g. the speed output changed).
+            readBack();
+            for (int buffer : objects.buffers) {
+                GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffer);
+                GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, mPartCount * stride * FLOAT_SIZE,
+                        null, GLES30.GL_DYNAMIC_COPY);
+            }
+            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+            checkGlError("glBufferData");
+            objects.bufferCount = mPartCount;
+            objects.bufferStride = stride;
+            objects.version = -1;
+        }
+        if (!mSpeedOutput && objects.uploadedRamp != mColorRamp) {
+            uploadColorTable(objects);
+        }
+        if (objects.version != mVersion) {
+            if (mCpuVersion != mVersion) {
+                // The latest state is in another context: restart from the last state read back
+                // or set on the CPU.
+                mCpuVersion = ++mVersion;
+            }
+            uploadState(objects);
+        }
+        return true;
+    }
+
+    /**
+     * Compile and link the update program, with the outputs captured by transform feedback.
+     */
+    private int createProgram(ContextObjects objects, boolean speedOutput) {
+        int vertexShader = loadShader(GLES30.GL_VERTEX_SHADER,
+                TransformFeedbackShaders.getUpdateVertexShader(speedOutput));
+        int fragmentShader = loadShader(GLES30.GL_FRAGMENT_SHADER,
+                TransformFeedbackShaders.UPDATE_FRAGMENT_SHADER);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            return 0;
+        }
+        int program = GLES30.glCreateProgram();
+        GLES30.glAttachShader(program, vertexShader);
+        GLES30.glAttachShader(program, fragmentShader);
+        GLES30.glTransformFeedbackVaryings(program,
+                TransformFeedbackShaders.getVaryings(speedOutput), GLES30.GL_INTERLEAVED_ATTRIBS);
+        GLES30.glLinkProgram(program);
+        // Flagged for deletion with the program.
+        GLES30.glDeleteShader(vertexShader);
+        GLES30.glDeleteShader(fragmentShader);
+        int[] linkStatus = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES30.GL_TRUE) {
+            Log.e(TAG, "Could not link program: " + GLES30.glGetProgramInfoLog(program));
+            GLES30.glDeleteProgram(program);
+            return 0;
+        }
+        objects.uTouchHandle = GLES30.glGetUniformLocation(program, "uTouch");
+        objects.uNumTouchHandle = GLES30.glGetUniformLocation(program, "uNumTouch");
+        objects.uAttractionCoefHandle = GLES30.glGetUniformLocation(program, "uAttractionCoef");
+        objects.uDragCoefHandle = GLES30.glGetUniformLocation(program, "uDragCoef");
+        objects.uTimeScaleHandle = GLES30.glGetUniformLocation(program, "uTimeScale");
+        objects.uSeedHandle = GLES30.glGetUniformLocation(program, "uSeed");
+        objects.uStepHandle = GLES30.glGetUniformLocation(program, "uStep");
+        objects.uColorTableHandle = GLES30.glGetUniformLocation(program, "uColorTable");
+        objects.uColorScaleHandle = GLES30.glGetUniformLocation(program, "uColorScale");
+        return program;
+    }
+
+    private int loadShader(int type, String source) {
+        int shader = GLES30.glCreateShader(type);
+        GLES30.glShaderSource(shader, source);
+        GLES30.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES30.glGetShaderiv(shader, GLES30.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e(TAG, "Could not compile shader: " + GLES30.glGetShaderInfoLog(shader));
+            GLES30.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    /**
+     * Upload the table of mColorRamp (Cf. TransformFeedbackShaders.COLOR_TABLE_WIDTH).
+     */
+    private void uploadColorTable(ContextObjects objects) {
+        FloatBuffer table = ByteBuffer.allocateDirect(4 * ColorRamp.TABLE_SIZE * FLOAT_SIZE)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        table.put(mColorRamp.getTable()).position(0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, objects.colorTable[0]);
+        // Float textures can't be filtered, and the shader only uses texelFetch anyway.
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER,
+                GLES30.GL_NEAREST);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER,
+                GLES30.GL_NEAREST);
+        GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA32F,
+                TransformFeedbackShaders.COLOR_TABLE_WIDTH,
+                TransformFeedbackShaders.COLOR_TABLE_HEIGHT, 0, GLES30.GL_RGBA, GLES30.GL_FLOAT,
+                table);
+        checkGlError("glTexImage2D");
+        objects.uploadedRamp = mColorRamp;
+    }
+
+    /**
+     * Upload mState to the current buffer, with the outputs of slow particles (Cf.
+     * JavaParticleEngine.initRange) until the next update. The buffer is written through a
+     * mapping, rather than from a copy of the whole buffer on the CPU.
+     */
+    private void uploadState(ContextObjects objects) {
+        if (mPartCount > 0) {
+            int stride = objects.bufferStride;
+            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, objects.buffers[objects.current]);
+            ByteBuffer bytes = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_ARRAY_BUFFER, 0,
+                    mPartCount * stride * FLOAT_SIZE,
+                    GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+            checkGlError("glMapBufferRange");
+            FloatBuffer data = bytes.order(ByteOrder.nativeOrder()).asFloatBuffer();
+            float[] particle = new float[stride];
+            if (!mSpeedOutput) {
+                System.arraycopy(mColorRamp.getTable(), 0, particle,
+                        TransformFeedbackShaders.OUTPUT_OFFSET, 4);
+            }
+            for (int i = 0; i < mPartCount; i++) {
+                System.arraycopy(mState, 4 * i, particle, 0, 4);
+                data.put(particle);
+            }
+            boolean uploaded = GLES30.glUnmapBuffer(GLES30.GL_ARRAY_BUFFER);
+            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+            if (!uploaded) {
+                // The buffer got corrupted while mapped (rare), the next prepare uploads it again.
+                Log.w(TAG, "glUnmapBuffer failed");
+                return;
+            }
+        }
+        objects.version = mVersion;
+        mOutputValid = false;
+        fenceWrites(objects);
+    }
+
+    /**
+     * Replace the fence of objects by a fence after the last commands, if other contexts share
+     * them: they wait for it before using the buffers (Cf. prepare).
+     */
+    private static void fenceWrites(ContextObjects objects) {
+        if (objects.fence != 0) {
+            GLES30.glDeleteSync(objects.fence);
+            objects.fence = 0;
+        }
+        if (SharedContextFactory.getCurrentGroupSize() > 1) {
+            objects.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            // The other contexts can only wait for a fence which was flushed.
+            GLES30.glFlush();
+        }
+    }
+
+    /**
+     * Copy the positions and velocities of the current buffer to mState, if it's more recent.
+     * Keeps the last copy if the latest state is in the buffers of another context.
+     */
+    private void readBack() {
+        ContextObjects objects = mObjects;
+        if (mCpuVersion == mVersion || mPartCount == 0 || objects == null
+                || objects.version != mVersion
+                || !objects.group.equals(SharedContextFactory.getCurrentGroup())) {
+            return;
+        }
+        FloatBuffer data = mapCurrentBuffer();
+        int stride = objects.bufferStride;
+        for (int i = 0; i < mPartCount; i++) {
+            data.position(i * stride);
+            data.get(mState, 4 * i, 4);
+        }
+        GLES30.glUnmapBuffer(GLES30.GL_ARRAY_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        mCpuVersion = mVersion;
+    }
+
+    /**
+     * Fill mPositionOut and mColorOut or mSpeedOut with the current buffer.
+     */
+    private void readOutput() {
+        if (mOutputValid) {
+            return;
+        }
+        int outputSize = mSpeedOutput ? 1 : 4;
+        if (mPositionOut.capacity() != 2 * mPartCount) {
+            mPositionOut = FloatBuffer.allocate(2 * mPartCount);
+        }
+        FloatBuffer output = mSpeedOutput ? mSpeedOut : mColorOut;
+        if (output.capacity() != outputSize * mPartCount) {
+            output = FloatBuffer.allocate(outputSize * mPartCount);
+            if (mSpeedOutput) {
+                mSpeedOut = output;
+            } else {
+                mColorOut = output;
+            }
+        }
+        if (mPartCount == 0 || !prepare()) {
+            return;
+        }
+        FloatBuffer data = mapCurrentBuffer();
+        float[] position = mPositionOut.array();
+        float[] values = output.array();
+        int stride = mObjects.bufferStride;
+        for (int i = 0; i < mPartCount; i++) {
+            data.position(i * stride);
+            data.get(position, 2 * i, 2);
+            data.position(i * stride + TransformFeedbackShaders.OUTPUT_OFFSET);
+            data.get(values, outputSize * i, outputSize);
+        }
+        GLES30.glUnmapBuffer(GLES30.GL_ARRAY_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        mOutputValid = true;
+    }
+
+    /**
+     * Bind the current buffer to GL_ARRAY_BUFFER and map it for reading. The caller must unmap it.
+     */
+    private FloatBuffer mapCurrentBuffer() {
+        ContextObjects objects = mObjects;
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, objects.buffers[objects.current]);
+        ByteBuffer bytes = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_ARRAY_BUFFER, 0,
+                mPartCount * objects.bufferStride * FLOAT_SIZE, GLES30.GL_MAP_READ_BIT);
+        checkGlError("glMapBufferRange");
+        return bytes.order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static void checkGlError(String glOperation) {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            Log.e(TAG, glOperation + ": glError " + error);
+            throw new RuntimeException(glOperation + ": glError " + error);
+        }
+    }
+}
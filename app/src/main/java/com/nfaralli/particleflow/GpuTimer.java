@@ -0,0 +1,92 @@
+package com.nfaralli.particleflow;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+/**
+ * Measures the time spent by the GPU on a sequence of GL calls with the timer queries of
+ * GL_EXT_disjoint_timer_query.
+ * The queries are only available with an OpenGL ES 3.0 context (the extension entry points are
+ * the ones of GLES30) and API 18, isSupported is false otherwise. The result of a query is only
+ * read a few frames later, once it's available, so that the GL thread never waits for the GPU.
+ * Must only be used on the GL thread, after the context is created.
+ */
+public class GpuTimer {
+
+    // From GL_EXT_disjoint_timer_query.
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    // Number of queries in flight. The results are usually available 2 or 3 frames later.
+    private static final int NUM_QUERIES = 4;
+
+    private final boolean mSupported;
+    private final int[] mQueries = new int[NUM_QUERIES];
+    // Queries begun but not read yet are [mOldest, mNext).
+    private int mOldest;
+    private int mNext;
+    private final int[] mResult = new int[1];
+
+    public GpuTimer() {
+        mSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && isExtensionSupported();
+        if (mSupported) {
+            GLES30.glGenQueries(NUM_QUERIES, mQueries, 0);
+            // Clear the disjoint flag.
+            GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mResult, 0);
+        }
+    }
+
+    private static boolean isExtensionSupported() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return version != null && version.startsWith("OpenGL ES 3")
+                && extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+    }
+
+    public boolean isSupported() {
+        return mSupported;
+    }
+
+    /**
+     * Start timing the following GL calls. Does nothing if all the queries are in flight.
+     */
+    public void begin() {
+        if (!mSupported || mNext - mOldest == NUM_QUERIES) {
+            return;
+        }
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mNext % NUM_QUERIES]);
+    }
+
+    /**
+     * Stop timing, after a call to begin.
+     */
+    public void end() {
+        if (!mSupported || mNext - mOldest == NUM_QUERIES) {
+            return;
+        }
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mNext++;
+    }
+
+    /**
+     * Returns the GPU time (in nanoseconds) of the oldest query in flight if it is available, -1
+     * otherwise. The results of the queries overlapping a disjoint event (e.g. a change of GPU
+     * frequency) are dropped.
+     */
+    public long poll() {
+        if (!mSupported || mOldest == mNext) {
+            return -1;
+        }
+        int query = mQueries[mOldest % NUM_QUERIES];
+        GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, mResult, 0);
+        if (mResult[0] == GLES20.GL_FALSE) {
+            return -1;
+        }
+        GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, mResult, 0);
+        mOldest++;
+        long nanos = mResult[0] & 0xFFFFFFFFL;
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mResult, 0);
+        return mResult[0] != 0 ? -1 : nanos;
+    }
+}
@@ -3,7 +3,6 @@ package com.nfaralli.particleflow;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.util.AttributeSet;
@@ -58,34 +57,16 @@ public class GradientView extends View {
         mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(mBitmap);
         Paint paint = new Paint();
-        float leftHSV[] = new float[3];
-        float rightHSV[] = new float[3];
-        float hsv[] = new float[3];
         float alpha;
 
-        Color.colorToHSV(mLeftColor, leftHSV);
-        Color.colorToHSV(mRightColor, rightHSV);
+        // Same colors as the particles, from slow (left) to fast (right) particles. Only w colors
+        // are needed, not the lookup table of the engines.
+        ColorRamp colorRamp = ColorRamp.forSampling(mLeftColor, mRightColor,
+                mHueClockwise ? 0 : 1);
         for(int x=0; x<w; x++) {
             alpha = ((float)x)/(w-1);
-            hsv[0] = getHue(alpha, leftHSV[0], rightHSV[0], mHueClockwise);
-            hsv[1] = (1 - alpha) * leftHSV[1] + alpha * rightHSV[1];
-            hsv[2] = (1 - alpha) * leftHSV[2] + alpha * rightHSV[2];
-            paint.setColor(Color.HSVToColor(hsv));
+            paint.setColor(colorRamp.getArgb(alpha));
             canvas.drawLine(x, 0, x, h, paint);
         }
     }
-
-    private float getHue(float alpha, float left, float right, boolean clockwise) {
-        float hue;
-        if (left < right && clockwise) {
-            left += 360;
-        } else if (left > right && !clockwise) {
-            right += 360;
-        }
-        hue = (1 - alpha) * left + alpha * right;
-        if (hue >= 360) {
-            hue -= 360;
-        }
-        return hue;
-    }
 }
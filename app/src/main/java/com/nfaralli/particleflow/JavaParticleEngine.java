@@ -0,0 +1,698 @@
+package com.nfaralli.particleflow;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pure java implementation of the particleflow script.
+ * The particles are stored as a structure of arrays (flat float arrays for the positions,
+ * velocities and colors) and the particles range is split over all the cores with a fork-join
+ * pool.
+ * Requires java.util.concurrent.ForkJoinPool, i.e. API 21 and above on Android.
+ */
+public class JavaParticleEngine extends ParticleEngine {
+
+    private static final float TWO_PI = 6.28318530718f;
+    // Minimum number of particles updated by a single task. Splitting the work any further costs
+    // more than it saves.
+    private static final int MIN_CHUNK_SIZE = 4096;
+    // Maximum number of particles looked at per particle and per update with
+    // ForceModel.NEIGHBORS, sampled evenly over the neighbor cells (Cf. NeighborsKernel), their
+    // force being scaled up to all the particles of the cells.
+    // Keeps the cost linear even where the particles pile up, e.g. around the attraction points.
+    private static final int MAX_NEIGHBORS = 32;
+
+    private final ForkJoinPool mPool;
+    private int mChunkSize;
+
+    // Coordinates (x, y), velocity (x, y) and color (r, g, b, a) or speed coefficient of the
+    // particles. Only one of mColor and mSpeed is allocated, depending on mSpeedOutput.
+    private float[] mPosition;
+    private float[] mDelta;
+    private float[] mColor;
+    private float[] mSpeed;
+    // Buffers wrapping mPosition, mColor and mSpeed, handed out to the renderer.
+    private FloatBuffer mPositionBuffer;
+    private FloatBuffer mColorBuffer;
+    private FloatBuffer mSpeedBuffer;
+    // Coordinates (x, y) of the attraction points.
+    private float[] mTouch;
+    // Only used with ForceModel.NEIGHBORS.
+    private final NeighborGrid mGrid = new NeighborGrid();
+    // Only used with ForceModel.TURBULENCE: acceleration of the particles per row (x component)
+    // and per column (y component) of pixels.
+    private float[] mTurbulenceX = new float[0];
+    private float[] mTurbulenceY = new float[0];
+    // Only used when the particles are reordered (Cf. reorderParticles): order of the particles,
+    // and arrays the positions and velocities are permuted into, swapped with mPosition and mDelta.
+    private final MortonOrder mMortonOrder;
+    private float[] mSparePosition = new float[0];
+    private float[] mSpareDelta = new float[0];
+    // Number of updates since the last reordering.
+    private int mUpdatesSinceReorder;
+
+    public JavaParticleEngine() {
+        this(new ForkJoinPool());
+    }
+
+    public JavaParticleEngine(ForkJoinPool pool) {
+        mPool = pool;
+        mMortonOrder = new MortonOrder(pool);
+        mPosition = new float[0];
+        mDelta = new float[0];
+        mColor = new float[0];
+        mSpeed = new float[0];
+        mTouch = new float[0];
+        mPositionBuffer = FloatBuffer.wrap(mPosition);
+        mColorBuffer = FloatBuffer.wrap(mColor);
+        mSpeedBuffer = FloatBuffer.wrap(mSpeed);
+    }
+
+    @Override
+    public void allocate(int partCount, int numTouch) {
+        mPartCount = partCount;
+        mActiveCount = partCount;
+        mInitCount = partCount;
+        mNumTouch = numTouch;
+        mPosition = new float[2 * partCount];
+        mDelta = new float[2 * partCount];
+        mColor = new float[mSpeedOutput ? 0 : 4 * partCount];
+        mSpeed = new float[mSpeedOutput ? partCount : 0];
+        mTouch = new float[2 * numTouch];
+        mPositionBuffer = FloatBuffer.wrap(mPosition);
+        mColorBuffer = FloatBuffer.wrap(mColor);
+        mSpeedBuffer = FloatBuffer.wrap(mSpeed);
+        updateChunkSize();
+    }
+
+    @Override
+    public void setLaunchSize(int launchSize) {
+        super.setLaunchSize(launchSize);
+        updateChunkSize();
+    }
+
+    /**
+     * Compute the number of particles updated by each task (Cf. setLaunchSize).
+     */
+    private void updateChunkSize() {
+        if (mLaunchSize > 0) {
+            mChunkSize = mLaunchSize;
+        } else {
+            // Use a few chunks per thread so that a slow core doesn't hold back the whole frame.
+            mChunkSize = Math.max(MIN_CHUNK_SIZE, mPartCount / (4 * mPool.getParallelism()) + 1);
+        }
+    }
+
+    @Override
+    public void resize(int partCount, int numTouch) {
+        // The particles still to initialize are initialized along with the new ones.
+        int kept = Math.min(mInitCount, partCount);
+        float[] position = mPosition;
+        float[] delta = mDelta;
+        float[] color = mColor;
+        float[] speed = mSpeed;
+        float[] touch = mTouch;
+        allocate(partCount, numTouch);
+        System.arraycopy(position, 0, mPosition, 0, 2 * kept);
+        System.arraycopy(delta, 0, mDelta, 0, 2 * kept);
+        // The outputs are only worth keeping if the output mode didn't change.
+        if (mSpeedOutput && speed.length >= kept) {
+            System.arraycopy(speed, 0, mSpeed, 0, kept);
+        } else if (!mSpeedOutput && color.length >= 4 * kept) {
+            System.arraycopy(color, 0, mColor, 0, 4 * kept);
+        }
+        if (touch.length == mTouch.length) {
+            System.arraycopy(touch, 0, mTouch, 0, touch.length);
+        }
+        mInitCount = kept;
+        initPending();
+    }
+
+    @Override
+    public void setReorderInterval(int interval) {
+        super.setReorderInterval(interval);
+        mUpdatesSinceReorder = 0;
+        if (interval == 0) {
+            mSparePosition = new float[0];
+            mSpareDelta = new float[0];
+        }
+    }
+
+    @Override
+    public void setTouch(float[] touchPos) {
+        System.arraycopy(touchPos, 0, mTouch, 0, Math.min(touchPos.length, mTouch.length));
+    }
+
+    @Override
+    public void saveState(FloatBuffer position, FloatBuffer delta) {
+        completeInit();
+        position.put(mPosition, 0, 2 * mPartCount);
+        delta.put(mDelta, 0, 2 * mPartCount);
+    }
+
+    @Override
+    public void restoreState(FloatBuffer position, FloatBuffer delta) {
+        position.get(mPosition, 0, 2 * mPartCount);
+        delta.get(mDelta, 0, 2 * mPartCount);
+        mInitCount = mPartCount;
+    }
+
+    /**
+     * Same as ParticleEngine.rescale, in place and over all the cores (Cf. RescaleKernel). The
+     * particles still to initialize are initialized for the new size.
+     */
+    @Override
+    public void rescale(int width, int height) {
+        if (mWidth > 0 && mHeight > 0) {
+            mPool.invoke(new UpdateTask(new RescaleKernel(this, width / (float) mWidth,
+                    height / (float) mHeight), 0, mInitCount));
+        }
+        setSize(width, height);
+    }
+
+    /**
+     * Initialize the particles [from, to) over all the cores (Cf. InitKernel).
+     */
+    @Override
+    protected void initRange(int from, int to) {
+        mPool.invoke(new UpdateTask(new InitKernel(this), from, to));
+    }
+
+    @Override
+    public void update() {
+        initPending();
+        int activeCount = getActiveCount();
+        if (activeCount == 0) {
+            return;
+        }
+        if (mReorderInterval > 0 && ++mUpdatesSinceReorder >= mReorderInterval) {
+            reorderParticles();
+        }
+        mPool.invoke(new UpdateTask(createKernel(), 0, activeCount));
+        advanceTime();
+    }
+
+    /**
+     * Sort the active particles in Z-order of their positions (Cf. MortonOrder), so that the
+     * update and the renderer go through the screen in order rather than at random. Called by
+     * update every mReorderInterval updates, before the kernel, which then recomputes the colors
+     * (or speed coefficients) of all the active particles: only their positions and velocities
+     * are permuted.
+     */
+    public void reorderParticles() {
+        mUpdatesSinceReorder = 0;
+        if (mSparePosition.length != mPosition.length) {
+            mSparePosition = new float[mPosition.length];
+            mSpareDelta = new float[mDelta.length];
+        }
+        int activeCount = getActiveCount();
+        mMortonOrder.setSize(mWidth, mHeight);
+        mMortonOrder.sort(mPosition, activeCount);
+        mMortonOrder.permute(mPosition, mSparePosition, 2);
+        mMortonOrder.permute(mDelta, mSpareDelta, 2);
+        // The inactive particles (and the ones still to initialize) keep their place.
+        int inactive = 2 * (mPartCount - activeCount);
+        System.arraycopy(mPosition, 2 * activeCount, mSparePosition, 2 * activeCount, inactive);
+        System.arraycopy(mDelta, 2 * activeCount, mSpareDelta, 2 * activeCount, inactive);
+        float[] position = mPosition;
+        mPosition = mSparePosition;
+        mSparePosition = position;
+        float[] delta = mDelta;
+        mDelta = mSpareDelta;
+        mSpareDelta = delta;
+        mPositionBuffer = FloatBuffer.wrap(mPosition);
+    }
+
+    /**
+     * Returns the kernel of the current force model, with everything it needs for this update.
+     */
+    private Kernel createKernel() {
+        switch (mForceModel.getId()) {
+            case ForceModel.NEIGHBORS:
+                // Linear but sequential: building the grid costs much less than the update itself.
+                mGrid.setSize(mWidth, mHeight, mForceParams[ForceModel.NEIGHBOR_RADIUS]);
+                mGrid.allocate(mPartCount);
+                mGrid.build(mPosition, getActiveCount());
+                return new NeighborsKernel(this);
+            case ForceModel.VORTEX:
+                return new VortexKernel(this);
+            case ForceModel.REPULSOR:
+                return new RepulsorKernel(this);
+            case ForceModel.TURBULENCE:
+                updateTurbulence();
+                return new TurbulenceKernel(this);
+            default:
+                return new AttractionKernel(this);
+        }
+    }
+
+    /**
+     * Compute the turbulence of this update for each row and each column of pixels (Cf.
+     * fillTurbulence).
+     */
+    private void updateTurbulence() {
+        if (mTurbulenceX.length != mHeight + 1 || mTurbulenceY.length != mWidth + 1) {
+            mTurbulenceX = new float[mHeight + 1];
+            mTurbulenceY = new float[mWidth + 1];
+        }
+        fillTurbulence(mTurbulenceX, mTurbulenceY);
+    }
+
+    // No copy at all: the renderer uploads the engine arrays directly.
+    @Override
+    public FloatBuffer readPositions() {
+        mPositionBuffer.position(0);
+        return mPositionBuffer;
+    }
+
+    @Override
+    public FloatBuffer readColors() {
+        mColorBuffer.position(0);
+        return mColorBuffer;
+    }
+
+    @Override
+    public FloatBuffer readSpeeds() {
+        mSpeedBuffer.position(0);
+        return mSpeedBuffer;
+    }
+
+    // No copy either.
+    @Override
+    public long getStateChecksum() {
+        return checksum(mDelta, 2 * mPartCount,
+                checksum(mPosition, 2 * mPartCount, CHECKSUM_OFFSET));
+    }
+
+    @Override
+    public void destroy() {
+        mPool.shutdown();
+    }
+
+    /**
+     * Update of the particles with one force model. Reads everything the update needs once, so
+     * that the loop of each model only computes its own force: there is one subclass per model,
+     * and nothing in the loops depends on which model is selected.
+     * Same computations as the updateParticles kernels of the script, which use the same tables
+     * for ForceModel.TURBULENCE (Cf. ParticleEngine.fillTurbulence).
+     */
+    private abstract static class Kernel {
+        final float[] position;
+        final float[] delta;
+        final float[] color;
+        final float[] speed;
+        final boolean speedOutput;
+        final float[] colorTable;
+        final float colorScale;
+        final float maxColorIndex;
+        final float[] touch;
+        final int numTouch;
+        final float timeScale;
+        final float attractionCoef;
+        final float dragCoef;
+        final float[] params;
+        // Keys of the random numbers of this update (Cf. ParticleRandom).
+        final int seed;
+        final int step;
+
+        Kernel(JavaParticleEngine engine) {
+            position = engine.mPosition;
+            delta = engine.mDelta;
+            color = engine.mColor;
+            speed = engine.mSpeed;
+            speedOutput = engine.mSpeedOutput;
+            colorTable = engine.mColorRamp.getTable();
+            colorScale = engine.mColorRamp.getScale();
+            maxColorIndex = ColorRamp.TABLE_SIZE - 1;
+            touch = engine.mTouch;
+            numTouch = touch.length / 2;
+            timeScale = engine.mTimeScale;
+            attractionCoef = engine.mAttractionCoef * timeScale;
+            dragCoef = (float) Math.pow(engine.mDragCoef, timeScale);
+            params = engine.mForceParams;
+            seed = engine.mSeed;
+            step = engine.mStep;
+        }
+
+        /**
+         * Update the particles [from, to).
+         */
+        abstract void updateRange(int from, int to);
+
+        /**
+         * Compute into acc (ax, ay) the acceleration of particle #i, at (px, py), due to the
+         * attraction points: coef * diff / |diff|^2 per point, diff going from the particle to the
+         * point. Turned into a repulsion closer than the core radius (Cf. ForceModel.REPULSOR) if
+         * sqCoreRadius isn't 0. Same computation as attract in the script.
+         */
+        final void attract(int i, float px, float py, float coef, float sqCoreRadius,
+                           float[] acc) {
+            float dx, dy, diffSqNorm, touchCoef, theta;
+            float ax = 0;
+            float ay = 0;
+            for (int j = 0; j < numTouch; j++) {
+                if (touch[2 * j] >= 0) {
+                    dx = touch[2 * j] - px;
+                    dy = touch[2 * j + 1] - py;
+                    diffSqNorm = dx * dx + dy * dy;
+                    if (diffSqNorm < 0.1f) {
+                        theta = TWO_PI * ParticleRandom.nextFloat(seed, i, step);
+                        dx = (float) Math.cos(theta);
+                        dy = (float) Math.sin(theta);
+                        diffSqNorm = 1;
+                    }
+                    touchCoef = coef / diffSqNorm;
+                    if (sqCoreRadius > 0) {
+                        // Repulsion no stronger than the attraction would be.
+                        touchCoef *= Math.max(1 - sqCoreRadius / diffSqNorm, -1);
+                    }
+                    ax += touchCoef * dx;
+                    ay += touchCoef * dy;
+                }
+            }
+            acc[0] = ax;
+            acc[1] = ay;
+        }
+
+        /**
+         * Apply the acceleration (ax, ay) to particle #i, at (px, py), and compute its color (or
+         * speed coefficient) and its drag.
+         */
+        final void integrate(int i, float px, float py, float ax, float ay) {
+            float dx = delta[2 * i] + ax;
+            float dy = delta[2 * i + 1] + ay;
+            position[2 * i] = px + dx * timeScale;
+            position[2 * i + 1] = py + dy * timeScale;
+            float sqSpeed = dx * dx + dy * dy;
+            if (speedOutput) {
+                speed[i] = ColorRamp.getSpeedCoef(sqSpeed);
+            } else {
+                // Same as ColorRamp.getIndex.
+                float index = sqSpeed * colorScale + 0.5f;
+                int k = 4 * (int) (index < maxColorIndex ? index : maxColorIndex);
+                color[4 * i] = colorTable[k];
+                color[4 * i + 1] = colorTable[k + 1];
+                color[4 * i + 2] = colorTable[k + 2];
+                color[4 * i + 3] = colorTable[k + 3];
+            }
+            delta[2 * i] = dx * dragCoef;
+            delta[2 * i + 1] = dy * dragCoef;
+        }
+    }
+
+    /**
+     * Initialization of the particles (Cf. initParticles), run as a kernel so that it is split
+     * over the cores like the updates. Same computations as the initParticles kernels of the
+     * script.
+     */
+    private static final class InitKernel extends Kernel {
+        private final int width;
+        private final int height;
+        private final float radius;
+
+        InitKernel(JavaParticleEngine engine) {
+            super(engine);
+            width = engine.mWidth;
+            height = engine.mHeight;
+            radius = (float) Math.sqrt(width * width + height * height) / 2;
+        }
+
+        @Override
+        void updateRange(int from, int to) {
+            float r, theta;
+            for (int i = from; i < to; i++) {
+                r = radius * (float) Math.sqrt(
+                        ParticleRandom.nextFloat(seed, i, ParticleRandom.STEP_INIT_RADIUS));
+                theta = TWO_PI * ParticleRandom.nextFloat(seed, i, ParticleRandom.STEP_INIT_ANGLE);
+                position[2 * i] = (width / 2) + r * (float) Math.cos(theta);
+                position[2 * i + 1] = (height / 2) + r * (float) Math.sin(theta);
+                delta[2 * i] = 0;
+                delta[2 * i + 1] = 0;
+                if (speedOutput) {
+                    speed[i] = 0;
+                } else {
+                    System.arraycopy(colorTable, 0, color, 4 * i, 4);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scaling of the positions and velocities of the particles, Cf. rescale.
+     */
+    private static final class RescaleKernel extends Kernel {
+        private final float scaleX;
+        private final float scaleY;
+
+        RescaleKernel(JavaParticleEngine engine, float scaleX, float scaleY) {
+            super(engine);
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+        }
+
+        @Override
+        void updateRange(int from, int to) {
+            for (int i = from; i < to; i++) {
+                position[2 * i] *= scaleX;
+                position[2 * i + 1] *= scaleY;
+                delta[2 * i] *= scaleX;
+                delta[2 * i + 1] *= scaleY;
+            }
+        }
+    }
+
+    /**
+     * ForceModel.ATTRACTION.
+     */
+    private static final class AttractionKernel extends Kernel {
+
+        AttractionKernel(JavaParticleEngine engine) {
+            super(engine);
+        }
+
+        @Override
+        void updateRange(int from, int to) {
+            float px, py;
+            float[] acc = new float[2];
+            for (int i = from; i < to; i++) {
+                px = position[2 * i];
+                py = position[2 * i + 1];
+                attract(i, px, py, attractionCoef, 0, acc);
+                integrate(i, px, py, acc[0], acc[1]);
+            }
+        }
+    }
+
+    /**
+     * ForceModel.NEIGHBORS. The grid must be built before the update.
+     */
+    private static final class NeighborsKernel extends Kernel {
+        private final float neighborCoef;
+        private final float sqRadius;
+        private final float invSqRadius;
+        private final float invRadius;
+        private final int gridWidth;
+        private final int gridHeight;
+        private final int[] cellStart;
+        private final int[] cellOf;
+        private final float[] sorted;
+        private final int outsideCell;
+
+        NeighborsKernel(JavaParticleEngine engine) {
+            super(engine);
+            float radius = params[ForceModel.NEIGHBOR_RADIUS];
+            neighborCoef = params[ForceModel.NEIGHBOR_COEF] * timeScale;
+            sqRadius = radius * radius;
+            invSqRadius = 1 / sqRadius;
+            invRadius = 1 / radius;
+            NeighborGrid grid = engine.mGrid;
+            gridWidth = grid.getGridWidth();
+            gridHeight = grid.getGridHeight();
+            cellStart = grid.getCellStarts();
+            cellOf = grid.getCellOf();
+            sorted = grid.getSortedPositions();
+            outsideCell = grid.getOutsideCell();
+        }
+
+        @Override
+        void updateRange(int from, int to) {
+            float px, py, dx, dy, ax, ay, nx, ny, diffSqNorm, coef;
+            int cx, cy, gx0, gx1, gy0, gy1, s, end, count, stride, skip, sampled;
+            float[] acc = new float[2];
+            for (int i = from; i < to; i++) {
+                px = position[2 * i];
+                py = position[2 * i + 1];
+                attract(i, px, py, attractionCoef, 0, acc);
+                ax = acc[0];
+                ay = acc[1];
+                if (cellOf[i] != outsideCell) {
+                    // Look at the 3x3 cells around the particle. The cells of a row are
+                    // contiguous in sorted, so are its 3 rows: if they hold more than
+                    // MAX_NEIGHBORS particles, look at one in every stride of them, all rows
+                    // together. The neighbors looked at are then spread evenly over the cells, and
+                    // their force doesn't favor any side. It is scaled by count / sampled, so that
+                    // its mean is the force of all the neighbors. The particle itself (distance 0)
+                    // is skipped along with any particle at the exact same position.
+                    cx = cellOf[i] % gridWidth;
+                    cy = cellOf[i] / gridWidth;
+                    gx0 = Math.max(cx - 1, 0);
+                    gx1 = Math.min(cx + 1, gridWidth - 1);
+                    gy0 = Math.max(cy - 1, 0);
+                    gy1 = Math.min(cy + 1, gridHeight - 1);
+                    count = 0;
+                    for (int gy = gy0; gy <= gy1; gy++) {
+                        count += cellStart[gy * gridWidth + gx1 + 1]
+                                - cellStart[gy * gridWidth + gx0];
+                    }
+                    stride = Math.max(1, (count + MAX_NEIGHBORS - 1) / MAX_NEIGHBORS);
+                    // Particles to skip before the next one looked at. Depends on the particle,
+                    // so that its neighbors don't all look at the same particles.
+                    skip = i % stride;
+                    nx = ny = 0;
+                    sampled = 0;
+                    for (int gy = gy0; gy <= gy1; gy++) {
+                        end = cellStart[gy * gridWidth + gx1 + 1];
+                        for (s = cellStart[gy * gridWidth + gx0] + skip; s < end; s += stride) {
+                            dx = px - sorted[2 * s];
+                            dy = py - sorted[2 * s + 1];
+                            diffSqNorm = dx * dx + dy * dy;
+                            if (diffSqNorm < sqRadius && diffSqNorm > 0) {
+                                // coef * (1 - d^2 / radius^2) * (dx, dy) / radius.
+                                coef = neighborCoef * (1 - diffSqNorm * invSqRadius) * invRadius;
+                                nx += coef * dx;
+                                ny += coef * dy;
+                            }
+                            sampled++;
+                        }
+                        skip = s - end;
+                    }
+                    if (stride > 1 && sampled > 0) {
+                        coef = (float) count / sampled;
+                        nx *= coef;
+                        ny *= coef;
+                    }
+                    ax += nx;
+                    ay += ny;
+                }
+                integrate(i, px, py, ax, ay);
+            }
+        }
+    }
+
+    /**
+     * ForceModel.VORTEX: each attraction point also pulls the particles sideways, with the same
+     * 1 / d falloff as the attraction.
+     */
+    private static final class VortexKernel extends Kernel {
+        private final float swirlCoef;
+
+        VortexKernel(JavaParticleEngine engine) {
+            super(engine);
+            swirlCoef = params[ForceModel.VORTEX_SWIRL] * timeScale;
+        }
+
+        @Override
+        void updateRange(int from, int to) {
+            float px, py;
+            float[] acc = new float[2];
+            for (int i = from; i < to; i++) {
+                px = position[2 * i];
+                py = position[2 * i + 1];
+                // Both forces follow the sum of diff / |diff|^2: attraction along it, swirl along
+                // its normal.
+                attract(i, px, py, 1, 0, acc);
+                integrate(i, px, py, attractionCoef * acc[0] - swirlCoef * acc[1],
+                        attractionCoef * acc[1] + swirlCoef * acc[0]);
+            }
+        }
+    }
+
+    /**
+     * ForceModel.REPULSOR: the attraction turns into a repulsion closer than the radius of the
+     * core, so the particles gather on rings around the attraction points.
+     */
+    private static final class RepulsorKernel extends Kernel {
+        private final float sqCoreRadius;
+
+        RepulsorKernel(JavaParticleEngine engine) {
+            super(engine);
+            float radius = params[ForceModel.REPULSOR_RADIUS];
+            sqCoreRadius = radius * radius;
+        }
+
+        @Override
+        void updateRange(int from, int to) {
+            float px, py;
+            float[] acc = new float[2];
+            for (int i = from; i < to; i++) {
+                px = position[2 * i];
+                py = position[2 * i + 1];
+                // attractionCoef * (1 - r^2 / d^2) / d^2.
+                attract(i, px, py, attractionCoef, sqCoreRadius, acc);
+                integrate(i, px, py, acc[0], acc[1]);
+            }
+        }
+    }
+
+    /**
+     * ForceModel.TURBULENCE, from the tables computed by updateTurbulence. The particles out of
+     * the screen get the turbulence of the closest edge.
+     */
+    private static final class TurbulenceKernel extends Kernel {
+        private final float[] turbulenceX;
+        private final float[] turbulenceY;
+        private final int maxX;
+        private final int maxY;
+
+        TurbulenceKernel(JavaParticleEngine engine) {
+            super(engine);
+            turbulenceX = engine.mTurbulenceX;
+            turbulenceY = engine.mTurbulenceY;
+            maxX = turbulenceY.length - 1;
+            maxY = turbulenceX.length - 1;
+        }
+
+        @Override
+        void updateRange(int from, int to) {
+            float px, py;
+            int x, y;
+            float[] acc = new float[2];
+            for (int i = from; i < to; i++) {
+                px = position[2 * i];
+                py = position[2 * i + 1];
+                x = Math.max(0, Math.min((int) px, maxX));
+                y = Math.max(0, Math.min((int) py, maxY));
+                attract(i, px, py, attractionCoef, 0, acc);
+                integrate(i, px, py, turbulenceX[y] + acc[0], turbulenceY[x] + acc[1]);
+            }
+        }
+    }
+
+    /**
+     * Task updating a range of particles, split in halves until it is small enough.
+     */
+    private class UpdateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Kernel mKernel;
+        private final int mFrom;
+        private final int mTo;
+
+        UpdateTask(Kernel kernel, int from, int to) {
+            mKernel = kernel;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mChunkSize) {
+                mKernel.updateRange(mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new UpdateTask(mKernel, mFrom, mid), new UpdateTask(mKernel, mid, mTo));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Histogram of latencies, in milliseconds, with one bucket per millisecond.
+ * Recording a latency doesn't allocate anything, so it can be done in the frame loop.
+ * Not thread-safe.
+ */
+public class LatencyHistogram {
+
+    // Latencies above this value are all counted in the last bucket.
+    private static final int MAX_MILLIS = 250;
+
+    private final int[] mBuckets = new int[MAX_MILLIS + 1];
+    private int mCount;
+    private long mMax;
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mBuckets[(int) Math.min(millis, MAX_MILLIS)]++;
+        mCount++;
+        mMax = Math.max(mMax, millis);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the smallest latency (in milliseconds) greater than or equal to the given fraction
+     * (within [0, 1]) of the recorded latencies, 0 if nothing was recorded.
+     */
+    public int getPercentile(float fraction) {
+        int rank = (int) Math.ceil(fraction * mCount);
+        int count = 0;
+        for (int i = 0; i <= MAX_MILLIS; i++) {
+            count += mBuckets[i];
+            if (count >= rank && count > 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i <= MAX_MILLIS; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + mCount + " p50=" + getPercentile(0.5f) + "ms p90=" + getPercentile(0.9f)
+                + "ms p99=" + getPercentile(0.99f) + "ms max=" + mMax + "ms";
+    }
+}
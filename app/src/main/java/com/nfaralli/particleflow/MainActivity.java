@@ -1,12 +1,17 @@
 package com.nfaralli.particleflow;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
 /**
@@ -16,7 +21,22 @@ import android.widget.Toast;
  */
 public class MainActivity extends Activity {
 
+    // Period of the refresh of the overlay, in milliseconds.
+    private static final int HUD_REFRESH_PERIOD = 500;
+
     private ParticlesSurfaceView mGLView;
+    // Overlay showing the frame statistics (Cf. Hud preference).
+    private TextView mHudView;
+    private final Handler mHandler = new Handler();
+    private final Runnable mHudUpdater = new Runnable() {
+        @Override
+        public void run() {
+            StringWriter text = new StringWriter();
+            mGLView.getFrameStats().dump("", new PrintWriter(text));
+            mHudView.setText(text.toString().trim());
+            mHandler.postDelayed(this, HUD_REFRESH_PERIOD);
+        }
+    };
     private GearView mGearView;
     private SettingsView mSettingsView;
     private Dialog mSettingsDialog;
@@ -26,6 +46,7 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.particles);
         mGLView = (ParticlesSurfaceView)findViewById(R.id.particles_view);
+        mHudView = (TextView)findViewById(R.id.hud_view);
         mSettingsView = new SettingsView(this);
         mSettingsDialog = getSettingsDialog();
         mGearView = (GearView)findViewById(R.id.gear_view);
@@ -47,6 +68,13 @@ public class MainActivity extends Activity {
         super.onPause();
         mGLView.onPause();
         mGearView.hideGear();
+        mHandler.removeCallbacks(mHudUpdater);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mGLView.onDestroy();
+        super.onDestroy();
     }
 
     @Override
@@ -61,6 +89,22 @@ public class MainActivity extends Activity {
             editor.commit();
         }
         mGLView.onResume();
+        updateHud();
+    }
+
+    /**
+     * Show or hide the overlay according to the preferences.
+     */
+    private void updateHud() {
+        SharedPreferences prefs =
+                getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME, MODE_PRIVATE);
+        mHandler.removeCallbacks(mHudUpdater);
+        if (prefs.getInt("Hud", ParticlesSurfaceView.DEFAULT_HUD) == ParticlesSurfaceView.HUD_ON) {
+            mHudView.setVisibility(View.VISIBLE);
+            mHandler.post(mHudUpdater);
+        } else {
+            mHudView.setVisibility(View.GONE);
+        }
     }
 
     Dialog getSettingsDialog() {
@@ -73,6 +117,7 @@ public class MainActivity extends Activity {
                     public void onClick(DialogInterface dialog, int id) {
                         mSettingsView.saveValues();
                         mGLView.onResume();
+                        updateHud();
                     }
                 })
                 .setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
@@ -0,0 +1,124 @@
+package com.nfaralli.particleflow;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+/**
+ * Memory used by the particles with a given set of preferences, and maximum number of particles
+ * this device can afford with them (Cf. SettingsView, which clamps the NumParticles preference).
+ *
+ * The bytes per particle are counted for the engine actually created (Cf.
+ * ParticleSimulation.resolveEngine) and the way it is drawn, apart from the java heap (arrays,
+ * and direct buffers, whose memory comes from the java heap on Android) and the memory out of it
+ * (Renderscript allocations and buffer objects). Buffers whose size only depends on the screen
+ * (e.g. DensityGrid textures) are left out.
+ */
+public class MemoryBudget {
+
+    // Fraction of the java heap of the app (Cf. ActivityManager.getMemoryClass) the particles may
+    // use. The rest is for the views, the GL contexts, and the garbage collector, which also
+    // needs room to allocate the new arrays while the old ones are still referenced.
+    private static final float HEAP_FRACTION = 0.5f;
+    private static final int MB = 1024 * 1024;
+
+    // Bytes per particle.
+    private final int mHeapBytes;
+    private final int mNativeBytes;
+    private final long mHeapBudget;
+    private final long mNativeBudget;
+
+    /**
+     * @param engine: Engine preference (ParticlesSurfaceView.ENGINE_*).
+     * @param speedOutput: Cf. ParticlesConfig.isSpeedOutput.
+     */
+    public MemoryBudget(Context context, int engine, int pipelining, boolean speedOutput,
+                        int renderMode, int reorderInterval, ForceModel forceModel) {
+        boolean gpuEngine = engine == ParticlesSurfaceView.ENGINE_GPU
+                && forceModel.getId() == ForceModel.ATTRACTION;
+        engine = ParticleSimulation.resolveEngine(context, engine, gpuEngine,
+                EngineTuner.load(context));
+        boolean density = renderMode != ParticlesSurfaceView.RENDER_MODE_POINTS;
+        boolean neighbors = forceModel.getId() == ForceModel.NEIGHBORS;
+        int outputSize = speedOutput ? 4 : 4 * 4;
+        int heapBytes = 0;
+        int nativeBytes = 0;
+        switch (engine) {
+            case ParticlesSurfaceView.ENGINE_GPU:
+                int bufferSize = 4 * TransformFeedbackShaders.getStride(speedOutput);
+                // Copy of the state in the heap, uploaded through a mapping (Cf.
+                // GLParticleEngine.uploadState). Two buffer objects updated in turns, shared by
+                // all the contexts (Cf. SharedContextFactory).
+                heapBytes += 4 * 4;
+                nativeBytes += 2 * bufferSize;
+                if (density) {
+                    // Outputs read back (Cf. GLParticleEngine.readOutput).
+                    heapBytes += 2 * 4 + outputSize;
+                }
+                break;
+            case ParticlesSurfaceView.ENGINE_JAVA:
+                heapBytes += 4 * 4 + outputSize;
+                if (reorderInterval > 0) {
+                    // Spare positions and velocities, and entries of MortonOrder.
+                    heapBytes += 4 * 4 + 2 * 8;
+                }
+                if (neighbors) {
+                    heapBytes += 4 + 2 * 4;  // NeighborGrid.
+                }
+                break;
+            default:
+                // Allocations: the state, updated in place, and the outputs. Copies of both in the
+                // heap (Cf. RSParticleEngine.readPositions).
+                heapBytes += 4 * 4 + outputSize;
+                nativeBytes += 4 * 4 + outputSize;
+                if (neighbors) {
+                    nativeBytes += 4 + 2 * 4;  // Cells and sorted positions.
+                }
+                break;
+        }
+        if (engine != ParticlesSurfaceView.ENGINE_GPU
+                && pipelining == ParticlesSurfaceView.PIPELINING_ON) {
+            heapBytes += PipelinedParticleEngine.NUM_SLOTS * (2 * 4 + outputSize);
+        }
+        if (density) {
+            heapBytes += 4;  // Cell of each particle, Cf. DensityGrid.
+        } else if (engine != ParticlesSurfaceView.ENGINE_GPU) {
+            nativeBytes += 2 * 4 + outputSize;  // VBOs of ParticlesRenderer.
+        }
+        mHeapBytes = heapBytes;
+        mNativeBytes = nativeBytes;
+
+        int memoryClass = ((ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE)).getMemoryClass();
+        mHeapBudget = (long) (HEAP_FRACTION * memoryClass * MB);
+        // The memory out of the heap isn't bounded per app, but the memory class follows the RAM
+        // of the device: the devices with the smallest memory class are also the ones running
+        // out of memory first.
+        mNativeBudget = (long) memoryClass * MB;
+    }
+
+    /**
+     * Returns the number of bytes used by partCount particles, in and out of the java heap.
+     */
+    public long getBytes(int partCount) {
+        return (long) partCount * (mHeapBytes + mNativeBytes);
+    }
+
+    /**
+     * Returns the maximum number of particles fitting in the budget of this device, between 1 and
+     * ParticlesSurfaceView.MAX_NUM_PARTICLES.
+     */
+    public int getMaxParticles() {
+        long maxParticles = ParticlesSurfaceView.MAX_NUM_PARTICLES;
+        maxParticles = Math.min(maxParticles, mHeapBudget / mHeapBytes);
+        if (mNativeBytes > 0) {
+            maxParticles = Math.min(maxParticles, mNativeBudget / mNativeBytes);
+        }
+        return (int) Math.max(1, maxParticles);
+    }
+
+    @Override
+    public String toString() {
+        return "heap=" + mHeapBytes + " B/particle of " + mHeapBudget / MB + " MB, native="
+                + mNativeBytes + " B/particle of " + mNativeBudget / MB + " MB";
+    }
+}
@@ -0,0 +1,248 @@
+package com.nfaralli.particleflow;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts the particles by cell in Z-order (Morton order), so that the particles close to each
+ * other on the screen are also close to each other in the arrays (Cf.
+ * JavaParticleEngine.reorderParticles). After a few seconds of flow, neighboring indices are
+ * scattered all over the screen otherwise.
+ *
+ * The screen is divided into at most GRID_SIZE x GRID_SIZE square cells, whose size is a power
+ * of two. The key of a particle interleaves the bits of the coordinates of its cell, and the
+ * particles are sorted by key with a stable LSD radix sort of RADIX_BITS bits per pass. Each pass
+ * counts the digits per chunk of particles, then scatters the chunks, both in parallel. Since the
+ * sort is stable, the order doesn't depend on the number of threads.
+ * Like the engines, it does not depend on any Android class.
+ */
+public class MortonOrder {
+
+    private static final int RADIX_BITS = 9;
+    private static final int RADIX = 1 << RADIX_BITS;
+    // Number of cells per side of the grid, RADIX_BITS bits per coordinate (two passes).
+    private static final int GRID_SIZE = RADIX;
+    // Minimum number of particles sorted by a single task.
+    private static final int MIN_CHUNK_SIZE = 16384;
+    private static final int KEYS = 0;
+    private static final int COUNT = 1;
+    private static final int SCATTER = 2;
+    private static final int PERMUTE = 3;
+
+    private final ForkJoinPool mPool;
+
+    private float mInvCellSize;
+    // Key (high 32 bits) and index (low 32 bits) of each particle, sorted by sort. mTemp holds the
+    // entries in between the two passes.
+    private long[] mEntries = new long[0];
+    private long[] mTemp = new long[0];
+    private int mCount;
+    // Particles are sorted by chunks of mChunkSize. mChunkCounts[c * RADIX + d] is the number of
+    // particles of chunk c with digit d, then the index of the first one in the output of the pass.
+    private int mNumChunks;
+    private int mChunkSize;
+    private int[] mChunkCounts = new int[0];
+
+    // Input of the current pass.
+    private float[] mPosition;
+    private long[] mSource;
+    private long[] mDestination;
+    private int mDigitShift;
+    private float[] mFrom;
+    private float[] mTo;
+    private int mComponents;
+
+    public MortonOrder(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Set the size of the screen. The cells are the smallest power of two such that the screen
+     * fits in GRID_SIZE x GRID_SIZE cells.
+     */
+    public void setSize(int width, int height) {
+        int cellSize = 1;
+        while (cellSize * GRID_SIZE < Math.max(width, height)) {
+            cellSize *= 2;
+        }
+        mInvCellSize = 1.f / cellSize;
+    }
+
+    /**
+     * Sort the particles [0, count) by cell in Z-order.
+     * position contains 2 floats (x, y) per particle. Use permute to apply the order to the
+     * arrays of the particles.
+     */
+    public void sort(float[] position, int count) {
+        if (mEntries.length < count) {
+            mEntries = new long[count];
+            mTemp = new long[count];
+        }
+        mCount = count;
+        mChunkSize = Math.max(MIN_CHUNK_SIZE, count / (4 * mPool.getParallelism()) + 1);
+        mNumChunks = (count + mChunkSize - 1) / mChunkSize;
+        if (mChunkCounts.length < mNumChunks * RADIX) {
+            mChunkCounts = new int[mNumChunks * RADIX];
+        }
+        mPosition = position;
+        // The keys are computed and counted by the first pass.
+        runPass(KEYS, mEntries, mTemp, 0);
+        runPass(COUNT, mTemp, mEntries, RADIX_BITS);
+        mPosition = null;
+    }
+
+    /**
+     * Write the particles of from in the order computed by the last sort into to: the particle
+     * #i of to is the particle #j of from, j being the i-th particle in Z-order.
+     *
+     * @param components: number of floats per particle (e.g. 2 for the positions).
+     */
+    public void permute(float[] from, float[] to, int components) {
+        mFrom = from;
+        mTo = to;
+        mComponents = components;
+        mPool.invoke(new PassTask(PERMUTE, 0, mNumChunks));
+        mFrom = null;
+        mTo = null;
+    }
+
+    /**
+     * Sort source into destination by the digit at digitShift of the keys. The pass counting the
+     * digits (KEYS or COUNT) is followed by the prefix sums and the SCATTER pass.
+     */
+    private void runPass(int countPass, long[] source, long[] destination, int digitShift) {
+        mSource = source;
+        mDestination = destination;
+        mDigitShift = digitShift;
+        Arrays.fill(mChunkCounts, 0, mNumChunks * RADIX, 0);
+        mPool.invoke(new PassTask(countPass, 0, mNumChunks));
+        // Digit by digit, chunk by chunk: the particles keep their order within each digit.
+        int start = 0;
+        for (int d = 0; d < RADIX; d++) {
+            for (int c = 0; c < mNumChunks; c++) {
+                int n = mChunkCounts[c * RADIX + d];
+                mChunkCounts[c * RADIX + d] = start;
+                start += n;
+            }
+        }
+        mPool.invoke(new PassTask(SCATTER, 0, mNumChunks));
+        mSource = null;
+        mDestination = null;
+    }
+
+    /**
+     * Compute the entries of the particles of chunk c, and count their first digits.
+     */
+    private void computeKeys(int c) {
+        int from = c * mChunkSize;
+        int to = Math.min(mCount, from + mChunkSize);
+        int[] counts = mChunkCounts;
+        int offset = c * RADIX;
+        int cx, cy, key;
+        for (int i = from; i < to; i++) {
+            // The particles out of the screen go to the cells of the borders.
+            cx = (int) (mPosition[2 * i] * mInvCellSize);
+            cy = (int) (mPosition[2 * i + 1] * mInvCellSize);
+            cx = cx < 0 ? 0 : (cx < GRID_SIZE ? cx : GRID_SIZE - 1);
+            cy = cy < 0 ? 0 : (cy < GRID_SIZE ? cy : GRID_SIZE - 1);
+            key = spreadBits(cx) | (spreadBits(cy) << 1);
+            mSource[i] = ((long) key << 32) | i;
+            counts[offset + (key & (RADIX - 1))]++;
+        }
+    }
+
+    /**
+     * Count the digits of the particles of chunk c.
+     */
+    private void countChunk(int c) {
+        int from = c * mChunkSize;
+        int to = Math.min(mCount, from + mChunkSize);
+        int[] counts = mChunkCounts;
+        int offset = c * RADIX;
+        int shift = 32 + mDigitShift;
+        for (int i = from; i < to; i++) {
+            counts[offset + (int) ((mSource[i] >>> shift) & (RADIX - 1))]++;
+        }
+    }
+
+    /**
+     * Move the particles of chunk c to their position in the output of the pass.
+     */
+    private void scatterChunk(int c) {
+        int from = c * mChunkSize;
+        int to = Math.min(mCount, from + mChunkSize);
+        int[] counts = mChunkCounts;
+        int offset = c * RADIX;
+        int shift = 32 + mDigitShift;
+        long entry;
+        for (int i = from; i < to; i++) {
+            entry = mSource[i];
+            mDestination[counts[offset + (int) ((entry >>> shift) & (RADIX - 1))]++] = entry;
+        }
+    }
+
+    /**
+     * Gather the particles of chunk c of the output of permute.
+     */
+    private void permuteChunk(int c) {
+        int from = c * mChunkSize;
+        int to = Math.min(mCount, from + mChunkSize);
+        int components = mComponents;
+        int j;
+        for (int i = from; i < to; i++) {
+            j = components * (int) mEntries[i];
+            for (int k = 0; k < components; k++) {
+                mTo[components * i + k] = mFrom[j + k];
+            }
+        }
+    }
+
+    /**
+     * Returns the bits of x (RADIX_BITS bits) spread to the even bits of the result.
+     */
+    private static int spreadBits(int x) {
+        x = (x | (x << 8)) & 0x00FF00FF;
+        x = (x | (x << 4)) & 0x0F0F0F0F;
+        x = (x | (x << 2)) & 0x33333333;
+        x = (x | (x << 1)) & 0x55555555;
+        return x;
+    }
+
+    /**
+     * Task running a pass over a range of chunks, split in halves down to a single chunk.
+     */
+    private class PassTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mPass;
+        private final int mFrom;
+        private final int mTo;
+
+        PassTask(int pass, int from, int to) {
+            mPass = pass;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 1) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new PassTask(mPass, mFrom, mid), new PassTask(mPass, mid, mTo));
+                return;
+            }
+            for (int k = mFrom; k < mTo; k++) {
+                if (mPass == KEYS) {
+                    computeKeys(k);
+                } else if (mPass == COUNT) {
+                    countChunk(k);
+                } else if (mPass == SCATTER) {
+                    scatterChunk(k);
+                } else {
+                    permuteChunk(k);
+                }
+            }
+        }
+    }
+}
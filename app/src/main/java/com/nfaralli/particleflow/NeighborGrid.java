@@ -0,0 +1,126 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Uniform grid used to find the neighbors of the particles (Cf. ForceModel.NEIGHBORS).
+ * The grid is rebuilt before each update with a counting sort of the particles by cell, so the
+ * cost of the build is linear in the number of particles. The cells are as large as the
+ * interaction radius: the neighbors of a particle are all in the 3x3 cells around its own cell.
+ *
+ * The positions of the particles are copied in cell order when the grid is built. The update
+ * reads the neighbors from this copy, so that the particles can be moved in place (and in
+ * parallel) while their neighbors are looked up.
+ * The particles out of the screen are put in an extra cell (getOutsideCell), which is never
+ * looked at: they neither feel nor exert the neighbor force.
+ */
+public class NeighborGrid {
+
+    private int mGridWidth;
+    private int mGridHeight;
+    private float mInvCellSize;
+    // The particles of cell c are [mCellStart[c], mCellStart[c + 1]) in mSortedPosition.
+    private int[] mCellStart = new int[0];
+    // Cell of each particle, and positions (x, y) of the particles sorted by cell.
+    private int[] mCellOf = new int[0];
+    private float[] mSortedPosition = new float[0];
+
+    /**
+     * Set the size of the grid for a width x height screen and the given interaction radius.
+     * Nothing is reallocated if the number of cells doesn't change.
+     */
+    public void setSize(int width, int height, float radius) {
+        mGridWidth = Math.max(1, (int) Math.ceil(width / radius));
+        mGridHeight = Math.max(1, (int) Math.ceil(height / radius));
+        mInvCellSize = 1 / radius;
+        // One extra cell for the particles out of the screen, and two extra entries for the
+        // counting sort (Cf. build).
+        int size = mGridWidth * mGridHeight + 3;
+        if (mCellStart.length != size) {
+            mCellStart = new int[size];
+        }
+    }
+
+    /**
+     * Make room for partCount particles.
+     */
+    public void allocate(int partCount) {
+        if (mCellOf.length < partCount) {
+            mCellOf = new int[partCount];
+            mSortedPosition = new float[2 * partCount];
+        }
+    }
+
+    /**
+     * Sort the particles [0, count) by cell.
+     * position contains 2 floats (x, y) per particle.
+     */
+    public void build(float[] position, int count) {
+        final int[] cellStart = mCellStart;
+        final int[] cellOf = mCellOf;
+        final float[] sorted = mSortedPosition;
+        for (int c = 0; c < cellStart.length; c++) {
+            cellStart[c] = 0;
+        }
+        // Count the particles of cell c in cellStart[c + 2].
+        for (int i = 0; i < count; i++) {
+            int c = getCell(position[2 * i], position[2 * i + 1]);
+            cellOf[i] = c;
+            cellStart[c + 2]++;
+        }
+        // Now cellStart[c + 1] is the start of cell c.
+        for (int c = 2; c < cellStart.length; c++) {
+            cellStart[c] += cellStart[c - 1];
+        }
+        // Use cellStart[c + 1] as the insertion point of cell c. Once all the particles are
+        // inserted, it's the end of cell c, i.e. the start of cell c + 1.
+        for (int i = 0; i < count; i++) {
+            int s = cellStart[cellOf[i] + 1]++;
+            sorted[2 * s] = position[2 * i];
+            sorted[2 * s + 1] = position[2 * i + 1];
+        }
+    }
+
+    private int getCell(float x, float y) {
+        if (x < 0 || y < 0) {
+            return mGridWidth * mGridHeight;
+        }
+        int cx = (int) (x * mInvCellSize);
+        int cy = (int) (y * mInvCellSize);
+        if (cx >= mGridWidth || cy >= mGridHeight) {
+            return mGridWidth * mGridHeight;
+        }
+        return cy * mGridWidth + cx;
+    }
+
+    /**
+     * Returns the cell of the particles out of the screen.
+     */
+    public int getOutsideCell() {
+        return mGridWidth * mGridHeight;
+    }
+
+    public int getGridWidth() {
+        return mGridWidth;
+    }
+
+    public int getGridHeight() {
+        return mGridHeight;
+    }
+
+    /**
+     * Returns the start of each cell in getSortedPositions (Cf. mCellStart).
+     */
+    public int[] getCellStarts() {
+        return mCellStart;
+    }
+
+    /**
+     * Returns the cell of each particle, as computed by the last build.
+     */
+    public int[] getCellOf() {
+        return mCellOf;
+    }
+
+    public float[] getSortedPositions() {
+        return mSortedPosition;
+    }
+}
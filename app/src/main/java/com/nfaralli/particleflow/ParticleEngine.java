@@ -0,0 +1,473 @@
+package com.nfaralli.particleflow;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Base class of the engines computing the particles trajectory.
+ * An engine owns the position, velocity and color of every particle as well as the position of
+ * the attraction points. It does not depend on any Android class so that an engine can also be
+ * used (and profiled) on a plain JVM.
+ *
+ * The expected sequence of calls is: setSize, setColorRamp, setForceCoefs and setForceModel (in any
+ * order), then
+ * allocate, setTouch, initParticles, and finally update once per frame.
+ */
+public abstract class ParticleEngine {
+
+    // Seeds of the engines which are not deterministic.
+    private static final Random sSeeds = new Random();
+    // FNV-1a, Cf. getStateChecksum.
+    protected static final long CHECKSUM_OFFSET = 0xCBF29CE484222325L;
+    private static final long CHECKSUM_PRIME = 0x100000001B3L;
+
+    // Screen resolution.
+    protected int mWidth;
+    protected int mHeight;
+
+    // Colors of the particles, from slow to fast particles.
+    protected ColorRamp mColorRamp;
+
+    // Force coefficients.
+    protected float mAttractionCoef;
+    protected float mDragCoef;
+    // Duration of an update, relative to the duration the force coefficients are defined for.
+    protected float mTimeScale = 1;
+    // Force model and its parameters (Cf. setForceModel).
+    protected ForceModel mForceModel = ForceModel.get(ForceModel.ATTRACTION);
+    protected float[] mForceParams = new float[0];
+    // Time elapsed, in reference durations, modulo ForceModel.TURBULENCE_PERIOD. Drives the force
+    // models which change over time.
+    protected float mForceTime;
+
+    // Seed of the random numbers (Cf. ParticleRandom) and number of updates so far, i.e. the step
+    // the next update draws its random numbers at. If mDeterministic is false, initParticles
+    // draws a new seed.
+    protected boolean mDeterministic;
+    protected int mSeed = sSeeds.nextInt();
+    protected int mStep;
+
+    protected int mPartCount;
+    protected int mNumTouch;
+    // Only the first mActiveCount particles are updated.
+    protected int mActiveCount;
+    // Particles [0, mInitCount) are initialized, the others are initialized by the next updates
+    // (Cf. initPending). Set to mPartCount by allocate.
+    protected int mInitCount;
+    // Number of particles initialized per update, 0 to initialize them all at once (Cf.
+    // setInitStep).
+    protected int mInitStep;
+
+    // If true, update outputs one speed coefficient per particle instead of its color.
+    protected boolean mSpeedOutput;
+    // Number of updates between two reorderings of the particles, 0 to never reorder them.
+    protected int mReorderInterval;
+    // Number of particles per kernel launch or per task, 0 for the default (Cf. setLaunchSize).
+    protected int mLaunchSize;
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getParticleCount() {
+        return mPartCount;
+    }
+
+    public int getNumTouch() {
+        return mNumTouch;
+    }
+
+    /**
+     * Returns the number of particles updated and drawn: the active particles which are already
+     * initialized (Cf. setInitStep).
+     */
+    public int getActiveCount() {
+        return Math.min(mActiveCount, mInitCount);
+    }
+
+    /**
+     * Set the number of particles updated by update, i.e. particles [0, count). The other ones
+     * keep their state until they become active again. Nothing is reallocated.
+     * allocate resets it to the total number of particles.
+     */
+    public void setActiveCount(int count) {
+        mActiveCount = Math.max(0, Math.min(count, mPartCount));
+    }
+
+    /**
+     * Set the screen resolution. Should be called before initParticles.
+     */
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Change the screen resolution and keep the flow: the positions and the velocities of the
+     * particles are scaled by width / getWidth() along x and by height / getHeight() along y, so
+     * that the particles keep their place relative to the screen (e.g. on a rotation). Much
+     * cheaper than initParticles. The attraction points are left to the caller. The colors or
+     * speed coefficients are undefined until the next update.
+     * Copies the state with saveState and restoreState: engines with a direct access to their
+     * state should override it.
+     */
+    public void rescale(int width, int height) {
+        if (mWidth > 0 && mHeight > 0 && mPartCount > 0) {
+            float scaleX = width / (float) mWidth;
+            float scaleY = height / (float) mHeight;
+            FloatBuffer position = FloatBuffer.allocate(2 * mPartCount);
+            FloatBuffer delta = FloatBuffer.allocate(2 * mPartCount);
+            saveState(position, delta);
+            float[] p = position.array();
+            float[] d = delta.array();
+            for (int i = 0; i < 2 * mPartCount; i += 2) {
+                p[i] *= scaleX;
+                p[i + 1] *= scaleY;
+                d[i] *= scaleX;
+                d[i + 1] *= scaleY;
+            }
+            restoreState(FloatBuffer.wrap(p), FloatBuffer.wrap(d));
+        }
+        setSize(width, height);
+    }
+
+    /**
+     * Set the colors of the particles. Can be called at any time, the new colors are used from the
+     * next update.
+     */
+    public void setColorRamp(ColorRamp colorRamp) {
+        mColorRamp = colorRamp;
+    }
+
+    /**
+     * Set the coefficients of the attraction force and of the drag.
+     * The drag coefficient is the factor applied to the velocity after each update (i.e. 1 means
+     * no drag at all).
+     */
+    public void setForceCoefs(float attractionCoef, float dragCoef) {
+        mAttractionCoef = attractionCoef;
+        mDragCoef = dragCoef;
+    }
+
+    /**
+     * Set the force model and the values of its parameters (in the order of model.getParams()).
+     * Can be called at any time, the new model is used from the next update.
+     *
+     * With ForceModel.NEIGHBORS, each particle is also pushed away from (coef > 0) or pulled
+     * towards (coef < 0) the particles closer than radius. With q = distance / radius, the
+     * acceleration is coef * q * (1 - q^2) per update (before time scaling), i.e. it vanishes at
+     * both ends and peaks at 0.38 * coef. No square root. The neighbors are found with a uniform
+     * grid (Cf. NeighborGrid), rebuilt before each update. Where the cells around a particle hold
+     * more than 32 particles, only 32 of them, spread evenly, are looked at, and their force is
+     * scaled up to the number of particles of the cells: the force is then an estimate, with the
+     * same mean, and the cost of an update stays linear in the number of particles.
+     */
+    public void setForceModel(ForceModel model, float[] params) {
+        mForceModel = model;
+        mForceParams = params.clone();
+    }
+
+    public ForceModel getForceModel() {
+        return mForceModel;
+    }
+
+    /**
+     * Make the engine deterministic or not.
+     * A deterministic engine draws its random numbers (initial position of the particles, and
+     * direction of a particle sitting on an attraction point) from seed, and restarts its steps
+     * and the time of the force models from 0: the state of the particles after setDeterministic,
+     * initParticles and N updates only depends on seed and on the parameters of the engine. With
+     * the java engine, the state is the same bit for bit on a given JVM, whatever the number of
+     * threads (Cf. getStateChecksum).
+     * Otherwise, each call to initParticles draws a new seed.
+     */
+    public void setDeterministic(boolean deterministic, int seed) {
+        mDeterministic = deterministic;
+        if (deterministic) {
+            mSeed = seed;
+            mStep = 0;
+            mForceTime = 0;
+        }
+    }
+
+    public boolean isDeterministic() {
+        return mDeterministic;
+    }
+
+    /**
+     * Returns the number of updates since the engine was created or made deterministic.
+     */
+    public int getStep() {
+        return mStep;
+    }
+
+    /**
+     * Sort the particles in Z-order every interval updates, so that the particles close to each
+     * other on the screen stay close to each other in memory (Cf. MortonOrder). 0 never reorders
+     * them. Only the java engine reorders its particles, the others ignore it.
+     * The order of the particles is part of their state: a deterministic engine only reaches the
+     * same state with the same interval.
+     */
+    public void setReorderInterval(int interval) {
+        mReorderInterval = interval;
+    }
+
+    /**
+     * Set the number of particles updated by each kernel launch (renderscript) or by each task
+     * (java), 0 for the default of the engine: a single launch over all the particles, or a few
+     * tasks per thread. The best size depends on the device (Cf. EngineTuner). Doesn't change the
+     * state reached by a deterministic engine. The other engines ignore it.
+     */
+    public void setLaunchSize(int launchSize) {
+        mLaunchSize = launchSize;
+    }
+
+    /**
+     * Initialize the particles progressively: initParticles and resize only initialize the first
+     * count particles to initialize, and each update initializes count more before updating the
+     * particles already initialized. The first frames then only draw the particles initialized so
+     * far, and the time to the first frame doesn't depend on the number of particles. 0 (the
+     * default) initializes all the particles right away.
+     * Each particle starts from the same state either way, only later: a deterministic engine
+     * only reaches the same state with the same step. The engines which initialize all their
+     * particles at once (GLParticleEngine) ignore it.
+     */
+    public void setInitStep(int count) {
+        mInitStep = count;
+    }
+
+    /**
+     * Draw a new seed, unless the engine is deterministic. Called by initParticles.
+     */
+    protected void reseed() {
+        if (!mDeterministic) {
+            mSeed = sSeeds.nextInt();
+        }
+    }
+
+    /**
+     * Move mStep forward, and mForceTime by the duration of an update. Called by update.
+     */
+    protected void advanceTime() {
+        mStep++;
+        mForceTime = (mForceTime + mTimeScale) % ForceModel.TURBULENCE_PERIOD;
+    }
+
+    /**
+     * Returns the phase (in radians) of the turbulence at the current time.
+     */
+    protected float getTurbulencePhase() {
+        return (float) (2 * Math.PI) * mForceTime / ForceModel.TURBULENCE_PERIOD;
+    }
+
+    /**
+     * Compute the turbulence (ForceModel.TURBULENCE) of this update for each row of pixels into
+     * turbulenceX (x component, mHeight + 1 entries) and for each column into turbulenceY (y
+     * component, mWidth + 1 entries). The x component only depends on y and the other way around,
+     * so the flow has no divergence (no sink where all the particles would end up), and the
+     * engines only look the tables up: two lookups per particle instead of two sines.
+     */
+    protected void fillTurbulence(float[] turbulenceX, float[] turbulenceY) {
+        float coef = mForceParams[ForceModel.TURBULENCE_COEF] * mTimeScale;
+        float waveNumber = (float) (2 * Math.PI) / mForceParams[ForceModel.TURBULENCE_SCALE];
+        float phase = getTurbulencePhase();
+        for (int y = 0; y <= mHeight; y++) {
+            turbulenceX[y] = coef * (float) Math.sin(waveNumber * y + phase);
+        }
+        for (int x = 0; x <= mWidth; x++) {
+            turbulenceY[x] = coef * (float) Math.sin(waveNumber * x - phase);
+        }
+    }
+
+    /**
+     * Set the duration of an update relative to the reference duration (Cf. SimulationClock).
+     * The velocity is still expressed per reference duration, so that the particles move (and are
+     * colored) the same way whatever the time scale is: each update does
+     * velocity += acceleration * timeScale, position += velocity * timeScale and
+     * velocity *= dragCoef ^ timeScale.
+     */
+    public void setTimeScale(float timeScale) {
+        mTimeScale = timeScale;
+    }
+
+    public boolean isSpeedOutput() {
+        return mSpeedOutput;
+    }
+
+    /**
+     * Choose between computing the color of the particles (RGBA) and only outputting their speed
+     * coefficient (within [0, 1], 0 for slow particles and 1 for fast particles), in which case
+     * the color is up to the renderer. Must be called before allocate.
+     */
+    public void setSpeedOutput(boolean speedOutput) {
+        mSpeedOutput = speedOutput;
+    }
+
+    /**
+     * (Re)allocate the memory needed for partCount particles and numTouch attraction points.
+     * The content of the particles is undefined until initParticles is called.
+     */
+    public abstract void allocate(int partCount, int numTouch);
+
+    /**
+     * Same as allocate, but keep the state of the first min(getParticleCount(), partCount)
+     * particles. The new particles (if any) are initialized as by initParticles. The attraction
+     * points are kept if numTouch doesn't change, and undefined until setTouch is called
+     * otherwise. Can also be used to apply a call to setSpeedOutput, in which case the colors or
+     * speed coefficients are undefined until the next update.
+     */
+    public abstract void resize(int partCount, int numTouch);
+
+    /**
+     * Copy the positions and the velocities of all the particles (2 floats per particle each) into
+     * position and delta, at their current positions. Cf. ParticlesSnapshot.
+     * The particles still to initialize (Cf. setInitStep) are initialized first.
+     */
+    public abstract void saveState(FloatBuffer position, FloatBuffer delta);
+
+    /**
+     * Opposite of saveState: set the positions and the velocities of all the particles from
+     * position and delta. The colors or speed coefficients are undefined until the next update.
+     */
+    public abstract void restoreState(FloatBuffer position, FloatBuffer delta);
+
+    /**
+     * Set the position of the attraction points.
+     * touchPos contains 2 floats (x, y) per attraction point. Negative values are used to disable
+     * an attraction point.
+     */
+    public abstract void setTouch(float[] touchPos);
+
+    /**
+     * Distribute all the particles uniformly over a disk of diameter the diagonal of the screen,
+     * at rest. Progressively if setInitStep was called.
+     */
+    public void initParticles() {
+        reseed();
+        mInitCount = 0;
+        initPending();
+    }
+
+    /**
+     * Initialize the particles [from, to) as by initParticles, with the current seed.
+     */
+    protected abstract void initRange(int from, int to);
+
+    /**
+     * Initialize the next mInitStep particles still to initialize, or all of them if mInitStep is
+     * 0. Called by initParticles, and by update before updating the particles.
+     */
+    protected void initPending() {
+        if (mInitCount < mPartCount) {
+            int to = mInitStep > 0 ? (int) Math.min(mPartCount, (long) mInitCount + mInitStep)
+                    : mPartCount;
+            initRange(mInitCount, to);
+            mInitCount = to;
+        }
+    }
+
+    /**
+     * Initialize all the particles still to initialize, e.g. before saving their state.
+     */
+    protected void completeInit() {
+        if (mInitCount < mPartCount) {
+            initRange(mInitCount, mPartCount);
+            mInitCount = mPartCount;
+        }
+    }
+
+    /**
+     * Compute the new velocity, position and color (or speed coefficient) of all the active
+     * particles.
+     */
+    public abstract void update();
+
+    /**
+     * Returns a buffer containing the positions of the particles (2 floats per particle), with its
+     * position set to 0.
+     * The buffer belongs to the engine: it is only valid until the next call to update or
+     * allocate, and it may wrap the engine state directly (i.e. it is not necessarily direct).
+     * Only the active particles (Cf. getActiveCount) are up to date.
+     */
+    public abstract FloatBuffer readPositions();
+
+    /**
+     * Returns a buffer containing the colors of the particles (4 floats per particle, RGBA), with
+     * its position set to 0. Same ownership rules as readPositions.
+     * Only valid if isSpeedOutput returns false.
+     */
+    public abstract FloatBuffer readColors();
+
+    /**
+     * Returns a buffer containing the speed coefficients of the particles (1 float per particle),
+     * with its position set to 0. Same ownership rules as readPositions.
+     * Only valid if isSpeedOutput returns true.
+     */
+    public abstract FloatBuffer readSpeeds();
+
+    /**
+     * Called by the renderer once per frame, after update and before reading the particles (i.e.
+     * getActiveCount, readPositions, readColors and readSpeeds). Engines updating the particles
+     * asynchronously switch to their latest complete state here. Does nothing by default.
+     */
+    public void acquireOutput() {
+    }
+
+    /**
+     * Called by the renderer on the GL thread before its GL context is destroyed (Cf.
+     * ParticlesRenderer.onPause), for engines holding GL objects in that context. Does nothing by
+     * default.
+     */
+    public void releaseContext() {
+    }
+
+    /**
+     * Copy the positions (2 floats per particle) and the colors (4 floats per particle) or speed
+     * coefficients (1 float per particle, Cf. setSpeedOutput) of the particles into position and
+     * output. Both arrays must be large enough for all the particles, but only the active ones
+     * (Cf. getActiveCount) are up to date.
+     */
+    public void copyOutput(float[] position, float[] output) {
+        readPositions().get(position, 0, 2 * mPartCount);
+        if (mSpeedOutput) {
+            readSpeeds().get(output, 0, mPartCount);
+        } else {
+            readColors().get(output, 0, 4 * mPartCount);
+        }
+    }
+
+    /**
+     * Returns a checksum of the positions and the velocities of all the particles: two states with
+     * the same checksum are the same bit for bit (barring collisions). Combined with
+     * setDeterministic, it gives a golden state to check any change of the kernels against.
+     * Copies the state with saveState: engines with a direct access to their state should
+     * override it.
+     */
+    public long getStateChecksum() {
+        FloatBuffer position = FloatBuffer.allocate(2 * mPartCount);
+        FloatBuffer delta = FloatBuffer.allocate(2 * mPartCount);
+        saveState(position, delta);
+        return checksum(delta.array(), 2 * mPartCount,
+                checksum(position.array(), 2 * mPartCount, CHECKSUM_OFFSET));
+    }
+
+    /**
+     * Returns the checksum of the first count values, carrying on from the checksum hash of the
+     * previous values (CHECKSUM_OFFSET if there is none).
+     */
+    protected static long checksum(float[] values, int count, long hash) {
+        for (int i = 0; i < count; i++) {
+            hash = (hash ^ (Float.floatToIntBits(values[i]) & 0xFFFFFFFFL)) * CHECKSUM_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Release all the resources held by this engine. The engine must not be used afterwards.
+     */
+    public abstract void destroy();
+}
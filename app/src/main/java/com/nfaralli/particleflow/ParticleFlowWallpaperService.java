@@ -1,5 +1,8 @@
 package com.nfaralli.particleflow;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import android.content.Context;
 import android.service.wallpaper.WallpaperService;
 import android.view.MotionEvent;
@@ -8,6 +11,8 @@ import android.view.SurfaceHolder;
 /**
  * Service used by the live wallpaper.
  * The engine uses a modified ParticleSurfaceView to draw on the wallpaper.
+ * All the engines (e.g. the wallpaper and its preview in the picker) draw the same particles,
+ * computed once by a shared ParticleSimulation.
  */
 public class ParticleFlowWallpaperService extends WallpaperService {
 
@@ -29,7 +34,7 @@ public class ParticleFlowWallpaperService extends WallpaperService {
         public void onVisibilityChanged(boolean visible) {
             super.onVisibilityChanged(visible);
             if (visible) {
-                mGLView.resetAttractionPoints();
+                // The particles are kept (or restored from their snapshot) as they were.
                 mGLView.onResume();
             } else {
                 mGLView.onPause();
@@ -39,6 +44,7 @@ public class ParticleFlowWallpaperService extends WallpaperService {
         @Override
         public void onDestroy() {
             mGLView.onPause();
+            mGLView.onDestroy();
             super.onDestroy();
         }
 
@@ -47,6 +53,16 @@ public class ParticleFlowWallpaperService extends WallpaperService {
             mGLView.onTouchEvent(event);
         }
 
+        // Frame statistics of the wallpaper, shown by:
+        // adb shell dumpsys activity service .ParticleFlowWallpaperService
+        @Override
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter out, String[] args) {
+            super.dump(prefix, fd, out, args);
+            out.print(prefix);
+            out.println("Frame stats (preview=" + isPreview() + "):");
+            mGLView.getFrameStats().dump(prefix + "  ", out);
+        }
+
         // Create a simple subclass of ParticlesSurfaceView and override getHolder in order to
         // draw on the correct surface.
         class WPSurfaceView extends ParticlesSurfaceView {
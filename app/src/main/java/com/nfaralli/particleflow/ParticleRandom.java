@@ -0,0 +1,38 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Counter-based random numbers: the number drawn for a particle only depends on the seed, the
+ * index of the particle and the step (i.e. the number of updates so far), and not on the order in
+ * which the particles are updated, on the thread updating them, or on how many numbers were drawn
+ * before. This is what makes the simulation reproducible (Cf. ParticleEngine.setDeterministic).
+ * Same as randomFloat in particleflow.rs.
+ */
+final class ParticleRandom {
+
+    // Steps used by initParticles. The updates use the steps >= 0.
+    static final int STEP_INIT_RADIUS = -1;
+    static final int STEP_INIT_ANGLE = -2;
+
+    private ParticleRandom() {
+    }
+
+    /**
+     * Returns a float within [0, 1) for particle #index at the given step.
+     */
+    static float nextFloat(int seed, int index, int step) {
+        int h = mix(seed ^ mix(index ^ mix(step + 0x9E3779B9)));
+        // 24 random bits, i.e. all the floats k / 2^24 are equally likely.
+        return (h >>> 8) * (1.f / (1 << 24));
+    }
+
+    // Integer hash with a good avalanche (every input bit flips every output bit with a
+    // probability close to 1/2), from https://nullprogram.com/blog/2018/07/31/.
+    private static int mix(int x) {
+        x ^= x >>> 16;
+        x *= 0x7FEB352D;
+        x ^= x >>> 15;
+        x *= 0x846CA68B;
+        x ^= x >>> 16;
+        return x;
+    }
+}
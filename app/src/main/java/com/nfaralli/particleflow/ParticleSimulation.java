@@ -0,0 +1,616 @@
+package com.nfaralli.particleflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Particles simulation drawn by one or several renderers.
+ * The simulation owns the engine, the simulation clock, the attraction points and the frame rate
+ * governor. All the renderers of the process (the activity, the wallpaper and its preview) share
+ * the same instance (Cf. acquire), so that there is a single engine, and a single set of
+ * particles to update, whatever the number of views is.
+ *
+ * The simulation runs in its own coordinate space, set by the first renderer (Cf. setSize). The
+ * renderers map it to their own viewport.
+ * All the methods changing the state of the simulation are synchronized. A renderer must hold the
+ * lock of the simulation while reading the engine output (Cf. getEngine).
+ */
+public class ParticleSimulation {
+
+    private static final String TAG = "ParticleSimulation";
+
+    // The frame rate governor never goes below this number of particles.
+    private static final int MIN_ACTIVE_PARTICLES = 1000;
+    // Number of particles initialized per update (Cf. ParticleEngine.setInitStep): bounds the time
+    // to the first frame after a reset, whatever the number of particles is.
+    private static final int INIT_STEP = 65536;
+    // Name of the file (in the app files directory) holding the particles snapshot.
+    private static final String SNAPSHOT_FILE_NAME = "particles.snapshot";
+
+    // Instance shared by all the renderers of the process, null if none is alive.
+    private static ParticleSimulation sShared;
+
+    private final Context mContext;
+    private final File mSnapshotFile;
+    // Number of renderers using this simulation. Guarded by ParticleSimulation.class.
+    private int mRefCount;
+
+    // Preferences currently applied.
+    private ParticlesConfig mConfig;
+    private ParticleEngine mEngine;
+    // Results of the calibration of the engines, null until the first calibration, and true while
+    // it runs (Cf. startCalibration).
+    private EngineTuner mTuner;
+    private boolean mCalibrating;
+    // Engine actually created (Cf. resolveEngine), and true once the last reference is released.
+    private int mEngineType;
+    private boolean mReleased;
+    private ColorRamp mColorRamp;
+    private SimulationClock mClock;
+    private FrameRateGovernor mGovernor;
+    // Renderer whose frames are measured by mGovernor, null if none yet.
+    private Object mGovernorOwner;
+    private volatile int mActiveCount;
+    private boolean initialized = false;
+    private int mWidth;
+    private int mHeight;
+    private int mNumTouch;
+    private int mPartCount;
+    private float[] touchPos;
+    private boolean posDirty = false;
+    // True if the particles or the attraction points changed since the last snapshot saved or
+    // restored (Cf. saveSnapshot).
+    private boolean mSnapshotDirty = true;
+
+    private ParticleSimulation(Context context, ParticlesConfig config) {
+        mContext = context;
+        mSnapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+        init(config);
+        mTuner = EngineTuner.load(mContext);
+        mEngine = createEngine();
+    }
+
+    /**
+     * Returns the simulation shared by all the renderers, creating it if needed (config is only
+     * used in that case, Cf. applyConfig otherwise). Each call must be balanced by a call to
+     * release.
+     */
+    public static ParticleSimulation acquire(Context context, ParticlesConfig config) {
+        synchronized (ParticleSimulation.class) {
+            if (sShared == null) {
+                // The simulation may outlive the activity or service which created it.
+                sShared = new ParticleSimulation(context.getApplicationContext(), config);
+            }
+            sShared.mRefCount++;
+            return sShared;
+        }
+    }
+
+    /**
+     * Release a simulation returned by acquire. The engine is destroyed with the last reference.
+     */
+    public void release() {
+        synchronized (ParticleSimulation.class) {
+            if (--mRefCount > 0) {
+                return;
+            }
+            if (sShared == this) {
+                sShared = null;
+            }
+        }
+        synchronized (this) {
+            mEngine.destroy();
+            mReleased = true;
+        }
+    }
+
+    /**
+     * Create the engine computing the particles trajectory.
+     * The java engine needs java.util.concurrent.ForkJoinPool, which is only available on API 21
+     * and above. Renderscript is used on older devices whatever the preferences are.
+     * The GPU engine needs OpenGL ES 3.0, and falls back to the java engine (or Renderscript)
+     * otherwise. It runs on the GL threads of the renderers and is never pipelined.
+     * The automatic engine is the fastest one measured by the calibration (Cf. EngineTuner), the
+     * java engine until then. The launch size of the engine comes from the calibration as well.
+     * The particles are initialized progressively, INIT_STEP per update.
+     * With pipelining, the engine runs on its own thread (Cf. PipelinedParticleEngine).
+     */
+    private ParticleEngine createEngine() {
+        int engineType = resolveEngine(mContext, mConfig.getEngine(), mConfig.isGpuEngine(),
+                mTuner);
+        mEngineType = engineType;
+        if (engineType == ParticlesSurfaceView.ENGINE_GPU) {
+            return new GLParticleEngine();
+        }
+        ParticleEngine engine;
+        if (engineType == ParticlesSurfaceView.ENGINE_JAVA) {
+            engine = new JavaParticleEngine();
+        } else {
+            engine = new RSParticleEngine(mContext);
+        }
+        if (mTuner != null) {
+            engine.setLaunchSize(mTuner.getLaunchSize(engineType));
+        }
+        engine.setInitStep(INIT_STEP);
+        if (mConfig.getPipelining() == ParticlesSurfaceView.PIPELINING_ON) {
+            engine = new PipelinedParticleEngine(engine, mConfig.getMaxSubsteps());
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the engine actually created for the Engine preference engine (Cf. createEngine):
+     * ENGINE_GPU, ENGINE_JAVA or ENGINE_RENDERSCRIPT.
+     *
+     * @param gpuEngine: true if the preferences select the GPU engine (Cf.
+     *                 ParticlesConfig.isGpuEngine).
+     * @param tuner: results of the calibration, null if there is none yet.
+     */
+    public static int resolveEngine(Context context, int engine, boolean gpuEngine,
+                                    EngineTuner tuner) {
+        if (gpuEngine && GLParticleEngine.isSupported(context)) {
+            return ParticlesSurfaceView.ENGINE_GPU;
+        }
+        if (engine == ParticlesSurfaceView.ENGINE_AUTO && tuner != null) {
+            engine = tuner.getEngine();
+        }
+        if (engine != ParticlesSurfaceView.ENGINE_RENDERSCRIPT
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return ParticlesSurfaceView.ENGINE_JAVA;
+        }
+        return ParticlesSurfaceView.ENGINE_RENDERSCRIPT;
+    }
+
+    /**
+     * Initialization of member variables.
+     * Variables which interact directly with the engine (e.g. allocations) are initialized in
+     * initScript.
+     */
+    private void init(ParticlesConfig config) {
+        mConfig = config;
+        mPartCount = config.getNumParticles();
+        mNumTouch = config.getNumAttPoints();
+        mClock = new SimulationClock(config.getSimRate(), config.getMaxSubsteps());
+        touchPos = new float[2 * mNumTouch];
+    }
+
+    /**
+     * Apply the preferences changes from the current preferences to config. Only the state
+     * affected by the changes is rebuilt: e.g. a color change only updates the color ramp, and a
+     * change of the number of particles keeps the existing particles (Cf. ParticleEngine.resize).
+     * Every renderer forwards the same changes: applying a config which doesn't differ from the
+     * current one does nothing.
+     */
+    public synchronized void applyConfig(ParticlesConfig config) {
+        ParticlesConfig old = mConfig;
+        if (old.engineDiffers(config)) {
+            // Nothing can be kept from the previous engine.
+            init(config);
+            mEngine.destroy();
+            mEngine = createEngine();
+            if (initialized) {
+                initScript(true);
+            }
+            return;
+        }
+        // Only the changes of the particles (buffers) or of their course (forces, clock) make the
+        // snapshot out of date, the attraction points mark it dirty on their own (Cf. setTouch).
+        if (old.buffersDiffer(config) || old.forcesDiffer(config) || old.clockDiffers(config)) {
+            mSnapshotDirty = true;
+        }
+        boolean touchChanged = old.getNumAttPoints() != config.getNumAttPoints();
+        mConfig = config;
+        mPartCount = config.getNumParticles();
+        mNumTouch = config.getNumAttPoints();
+        if (old.colorsDiffer(config)) {
+            updateColors();
+        }
+        if (old.forcesDiffer(config)) {
+            mEngine.setForceCoefs(config.getAttractionCoef(), config.getDragCoef());
+            mEngine.setForceModel(config.getForceModel(), config.getForceParams());
+        }
+        if (old.getReorderInterval() != config.getReorderInterval()) {
+            mEngine.setReorderInterval(config.getReorderInterval());
+        }
+        if (old.clockDiffers(config)) {
+            mClock = new SimulationClock(config.getSimRate(), config.getMaxSubsteps());
+            mEngine.setTimeScale(mClock.getTimeScale());
+            if (mEngine instanceof PipelinedParticleEngine) {
+                ((PipelinedParticleEngine) mEngine).setMaxSteps(config.getMaxSubsteps());
+            }
+        }
+        if (!initialized) {
+            // Nothing allocated yet, initScript will use the new values.
+            return;
+        }
+        if (old.buffersDiffer(config)) {
+            mEngine.setSpeedOutput(config.isSpeedOutput());
+            mEngine.resize(mPartCount, mNumTouch);
+            mActiveCount = mPartCount;
+        }
+        if (old.buffersDiffer(config) || old.getTargetFps() != config.getTargetFps()) {
+            createGovernor();
+        }
+        if (touchChanged) {
+            touchPos = new float[2 * mNumTouch];
+            placeAttractionPoints();
+        }
+    }
+
+    /**
+     * Create the color ramp from the current preferences and hand it out to the engine.
+     */
+    private void updateColors() {
+        mColorRamp = ColorRamp.fromColors(
+                mConfig.getSlowColor(), mConfig.getFastColor(), mConfig.getHueDirection());
+        mEngine.setColorRamp(mColorRamp);
+    }
+
+    /**
+     * Returns the colors of the particles. A new instance is returned whenever they change.
+     */
+    public synchronized ColorRamp getColorRamp() {
+        return mColorRamp;
+    }
+
+    /**
+     * Called by a renderer when its surface is created or resized.
+     * The first call allocates the particles for a width x height screen. Afterwards, the
+     * simulation is only rescaled to the new size (e.g. on a rotation) if it isn't shared with
+     * another renderer: the other renderers keep the current size and scale it to their viewport.
+     */
+    public synchronized void setSize(int width, int height) {
+        // The view may have been paused for a while, don't try to catch up.
+        mClock.reset();
+        if (initialized && (mWidth == width && mHeight == height || isShared())) {
+            return;
+        }
+        if (initialized && mWidth > 0 && mHeight > 0) {
+            // Keep the flow: a single pass over the particles instead of a reinitialization.
+            rescaleAttractionPoints(width / (float) mWidth, height / (float) mHeight);
+            mEngine.rescale(width, height);
+            mSnapshotDirty = true;
+            mWidth = width;
+            mHeight = height;
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        if (mTuner == null && !mCalibrating) {
+            // First start on this device (or with this version of the app): the current engine
+            // was created without the results of the calibration.
+            startCalibration(width, height);
+        }
+        initScript(false);
+    }
+
+    /**
+     * Calibrate the engines for a width x height screen (Cf. EngineTuner.calibrate) on a
+     * background thread, and switch to the engine they select once done (Cf. onCalibrated).
+     * The calibration takes a few hundred milliseconds: it must neither block the GL thread nor
+     * hold the lock of the simulation. The current engine isn't updated meanwhile (Cf. update),
+     * so that it doesn't compete with the engines being timed.
+     * If it fails (e.g. Renderscript isn't available), the default engine is kept, and saved as
+     * the result of the calibration (Cf. EngineTuner.fallback) so that it isn't run again.
+     */
+    private void startCalibration(final int width, final int height) {
+        mCalibrating = true;
+        final ParticlesConfig config = mConfig;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EngineTuner tuner;
+                try {
+                    tuner = EngineTuner.calibrate(mContext, config, width, height);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Could not calibrate the engines", e);
+                    tuner = EngineTuner.fallback(mContext);
+                }
+                onCalibrated(tuner);
+            }
+        }, "EngineTuner").start();
+    }
+
+    /**
+     * Apply the results of the calibration: set the launch size of the current engine, or replace
+     * it with the engine they select. The particles and the attraction points are carried over to
+     * the new engine, which is only allocated: initializing its particles (Cf. initScript) would
+     * hold the lock for nothing.
+     */
+    private synchronized void onCalibrated(EngineTuner tuner) {
+        mCalibrating = false;
+        mTuner = tuner;
+        if (mReleased) {
+            return;
+        }
+        int engineType = resolveEngine(mContext, mConfig.getEngine(), mConfig.isGpuEngine(),
+                tuner);
+        if (engineType == mEngineType) {
+            mEngine.setLaunchSize(tuner.getLaunchSize(engineType));
+            return;
+        }
+        FloatBuffer position = null;
+        FloatBuffer delta = null;
+        if (initialized) {
+            position = FloatBuffer.allocate(2 * mPartCount);
+            delta = FloatBuffer.allocate(2 * mPartCount);
+            mEngine.saveState(position, delta);
+            position.position(0);
+            delta.position(0);
+        }
+        float[] touch = touchPos.clone();
+        mEngine.destroy();
+        mEngine = createEngine();
+        if (initialized) {
+            configureEngine();
+            mEngine.allocate(mPartCount, mNumTouch);
+            mEngine.setActiveCount(mActiveCount);
+            mEngine.restoreState(position, delta);
+            System.arraycopy(touch, 0, touchPos, 0, touch.length);
+            mEngine.setTouch(touchPos);
+            posDirty = false;
+        }
+    }
+
+    public synchronized int getWidth() {
+        return mWidth;
+    }
+
+    public synchronized int getHeight() {
+        return mHeight;
+    }
+
+    private boolean isShared() {
+        synchronized (ParticleSimulation.class) {
+            return mRefCount > 1;
+        }
+    }
+
+    /**
+     * Initialize all the engine parameters.
+     *
+     * @param forceAllocationsInit: set to true to force (re)initializing the Allocations.
+     */
+    private void initScript(boolean forceAllocationsInit) {
+        mSnapshotDirty = true;
+        boolean firstInit = !initialized;
+        configureEngine();
+        mClock.reset();
+        initAllocations(forceAllocationsInit);
+        // Pick up the flow where it was left, if it was saved with the same settings.
+        if (!firstInit || forceAllocationsInit || !restoreSnapshot()) {
+            resetAttractionPoints();
+        }
+    }
+
+    /**
+     * Set all the engine parameters but the allocations.
+     */
+    private void configureEngine() {
+        mEngine.setSize(mWidth, mHeight);
+        updateColors();
+        mEngine.setForceCoefs(mConfig.getAttractionCoef(), mConfig.getDragCoef());
+        mEngine.setForceModel(mConfig.getForceModel(), mConfig.getForceParams());
+        mEngine.setReorderInterval(mConfig.getReorderInterval());
+        mEngine.setTimeScale(mClock.getTimeScale());
+        if (mEngine instanceof PipelinedParticleEngine) {
+            ((PipelinedParticleEngine) mEngine).setMaxSteps(mConfig.getMaxSubsteps());
+        }
+        mEngine.setSpeedOutput(mConfig.isSpeedOutput());
+    }
+
+    /**
+     * Initialize the memory used by the engine. If it was already initialized and forceInit is
+     * set to false, then return immediately.
+     *
+     * @param forceInit: set to true to force (re)initializing the Allocations.
+     */
+    private void initAllocations(boolean forceInit) {
+        if(initialized && !forceInit) {
+            return;
+        }
+        mEngine.allocate(mPartCount, mNumTouch);
+        createGovernor();
+        mActiveCount = mPartCount;
+        initialized = true;
+    }
+
+    private void createGovernor() {
+        int targetFps = mConfig.getTargetFps();
+        if (targetFps > 0) {
+            mGovernor = new FrameRateGovernor(targetFps, MIN_ACTIVE_PARTICLES, mPartCount);
+        } else {
+            mGovernor = null;
+        }
+    }
+
+    // Set the position of the attraction point 'index', in simulation coordinates.
+    // This does NOT update the engine.
+    // Use syncTouch() to update the engine with these new coordinates.
+    public synchronized void setTouch(int index, float x, float y){
+        // The number of attraction points may be changed at any time by applyConfig.
+        float[] pos = touchPos;
+    	if(2 * index >= pos.length) {
+    		return;
+    	}
+    	index *=2;
+        pos[index] = x;
+        pos[index+1] = y;
+        posDirty = true;
+        mSnapshotDirty = true;
+    }
+
+    // Sync the attraction points of the engine.
+    public synchronized void syncTouch() {
+    	if(!posDirty) {
+    		return;
+    	}
+    	mEngine.setTouch(touchPos);
+    	posDirty = false;
+    }
+
+    /**
+     * Reset the attraction points and particles. Allocations must have been initialized previously
+     * by initAllocations.
+     */
+    public synchronized void resetAttractionPoints() {
+        mSnapshotDirty = true;
+        if (initialized && mWidth > 0 && mHeight > 0) {
+            placeAttractionPoints();
+            mEngine.initParticles();
+        }
+    }
+
+    /**
+     * Place the attraction points evenly on a circle around the center of the screen.
+     */
+    private void placeAttractionPoints() {
+        if (mWidth <= 0 || mHeight <= 0) {
+            return;
+        }
+        float l = (mWidth < mHeight ? mWidth : mHeight) / 3;
+        setTouch(0, mWidth / 2, mHeight / 2 - (mNumTouch == 1 ? 0 : l));
+        for (int i = 1; i < mNumTouch; i++) {
+            setTouch(i,
+                    (float) (mWidth / 2 + l * Math.sin(i * 2 * Math.PI / mNumTouch)),
+                    (float) (mHeight / 2 - l * Math.cos(i * 2 * Math.PI / mNumTouch)));
+        }
+        syncTouch();
+    }
+
+    /**
+     * Scale the position of the attraction points, as ParticleEngine.rescale does with the
+     * particles. The disabled ones (negative coordinates) stay disabled.
+     */
+    private void rescaleAttractionPoints(float scaleX, float scaleY) {
+        for (int i = 0; i < touchPos.length; i += 2) {
+            touchPos[i] *= scaleX;
+            touchPos[i + 1] *= scaleY;
+        }
+        mEngine.setTouch(touchPos);
+        posDirty = false;
+    }
+
+    /**
+     * Save the particles and the attraction points to mSnapshotFile (Cf. ParticlesSnapshot), if
+     * they changed since the last snapshot saved or restored. The file is written to the disk in
+     * the background: the caller only waits for the copy of the state.
+     */
+    public synchronized void saveSnapshot() {
+        if (!initialized || !mSnapshotDirty) {
+            return;
+        }
+        try {
+            ParticlesSnapshot.write(mSnapshotFile, mEngine, touchPos);
+            mSnapshotDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the particles: " + e);
+        }
+    }
+
+    /**
+     * Release what the engine holds in the GL context of the calling thread, which is about to be
+     * destroyed (Cf. ParticleEngine.releaseContext).
+     */
+    public synchronized void releaseContext() {
+        mEngine.releaseContext();
+    }
+
+    /**
+     * Restore the particles and the attraction points from mSnapshotFile. Returns false if the
+     * snapshot is missing or was taken with different settings.
+     */
+    private boolean restoreSnapshot() {
+        try {
+            if (!ParticlesSnapshot.read(mSnapshotFile, mEngine, touchPos)) {
+                return false;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not restore the particles: " + e);
+            return false;
+        }
+        mEngine.setTouch(touchPos);
+        posDirty = false;
+        // Rescaled if the size changed, but restoring it again would give the same flow.
+        mSnapshotDirty = false;
+        return true;
+    }
+
+    /**
+     * Run as many fixed-duration steps as needed to keep up with the real time (now is
+     * System.nanoTime()), then make the latest output of the engine available (Cf.
+     * ParticleEngine.acquireOutput).
+     * Every renderer calls it once per frame: the steps are shared between the renderers, so the
+     * simulation runs at the same rate whatever the number of renderers is.
+     */
+    public synchronized void update(long now) {
+        int steps = mClock.advance(now);
+        if (mCalibrating) {
+            // The particles stay still until the calibration is done (Cf. startCalibration).
+            steps = 0;
+        }
+        if (steps > 0) {
+            mSnapshotDirty = true;
+        }
+        for (; steps > 0; steps--) {
+            mEngine.update();
+        }
+        mEngine.acquireOutput();
+    }
+
+    /**
+     * Returns the engine, to read its output. The caller must hold the lock of this simulation
+     * until it is done with the buffers returned by the engine.
+     */
+    public ParticleEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Called by the renderers at the end of each frame (Cf. FrameRateGovernor.onFrame). Only the
+     * frames of one renderer are measured, the frames of the others would only blur the frame
+     * intervals.
+     *
+     * @param renderer: renderer which drew the frame.
+     */
+    public synchronized void onFrame(Object renderer, long frameStart, long frameEnd) {
+        if (mGovernor == null) {
+            return;
+        }
+        if (mGovernorOwner == null) {
+            mGovernorOwner = renderer;
+        } else if (mGovernorOwner != renderer) {
+            return;
+        }
+        if (mEngine instanceof PipelinedParticleEngine) {
+            // The simulation runs in parallel, the slowest of both sets the frame time.
+            frameEnd = Math.max(frameEnd,
+                    frameStart + ((PipelinedParticleEngine) mEngine).getBatchNanos());
+        }
+        mEngine.setActiveCount(mGovernor.onFrame(frameStart, frameEnd));
+        mActiveCount = mEngine.getActiveCount();
+    }
+
+    /**
+     * Stop measuring the frames of renderer, if it was the one measured by the governor.
+     */
+    public synchronized void detachRenderer(Object renderer) {
+        if (mGovernorOwner == renderer) {
+            mGovernorOwner = null;
+        }
+    }
+
+    /**
+     * Returns the number of particles currently updated and drawn. Lower than the NumParticles
+     * preference when the frame rate governor (Cf. TargetFps preference) had to shed particles.
+     * Can be called from any thread.
+     */
+    public int getActiveParticleCount() {
+        return mActiveCount;
+    }
+}
@@ -0,0 +1,234 @@
+package com.nfaralli.particleflow;
+
+import java.util.Arrays;
+
+import android.content.SharedPreferences;
+
+/**
+ * Immutable snapshot of the preferences used by the renderer.
+ * A snapshot is taken on the thread where the preferences change (usually the UI thread) and
+ * handed out as a whole to the GL thread, which compares it to the snapshot currently applied in
+ * order to only rebuild what changed (Cf. ParticlesRenderer.applyConfig).
+ */
+public class ParticlesConfig {
+
+    private final int mNumParticles;
+    private final int mParticleSize;
+    private final int mNumAttPoints;
+    private final int mBGColor;
+    private final int mSlowColor;
+    private final int mFastColor;
+    private final int mHueDirection;
+    private final int mColorMode;
+    private final int mRenderMode;
+    private final int mF01Attraction;
+    private final int mF01Drag;
+    private final ForceModel mForceModel;
+    // Preference values of the parameters of mForceModel.
+    private final int[] mForceParams;
+    private final int mEngine;
+    private final int mPipelining;
+    private final int mReorderInterval;
+    private final int mTargetFps;
+    private final int mSimRate;
+    private final int mMaxSubsteps;
+
+    private ParticlesConfig(SharedPreferences prefs) {
+        mNumParticles = prefs.getInt("NumParticles", ParticlesSurfaceView.DEFAULT_NUM_PARTICLES);
+        mParticleSize = prefs.getInt("ParticleSize", ParticlesSurfaceView.DEFAULT_PARTICLE_SIZE);
+        mNumAttPoints = prefs.getInt("NumAttPoints",
+                ParticlesSurfaceView.DEFAULT_MAX_NUM_ATT_POINTS);
+        mBGColor = prefs.getInt("BGColor", ParticlesSurfaceView.DEFAULT_BG_COLOR);
+        mSlowColor = prefs.getInt("SlowColor", ParticlesSurfaceView.DEFAULT_SLOW_COLOR);
+        mFastColor = prefs.getInt("FastColor", ParticlesSurfaceView.DEFAULT_FAST_COLOR);
+        mHueDirection = prefs.getInt("HueDirection", ParticlesSurfaceView.DEFAULT_HUE_DIRECTION);
+        mColorMode = prefs.getInt("ColorMode", ParticlesSurfaceView.DEFAULT_COLOR_MODE);
+        mRenderMode = prefs.getInt("RenderMode", ParticlesSurfaceView.DEFAULT_RENDER_MODE);
+        mF01Attraction = prefs.getInt("F01Attraction",
+                ParticlesSurfaceView.DEFAULT_F01_ATTRACTION_COEF);
+        mF01Drag = prefs.getInt("F01Drag", ParticlesSurfaceView.DEFAULT_F01_DRAG_COEF);
+        mForceModel = ForceModel.get(prefs.getInt("ForceModel",
+                ParticlesSurfaceView.DEFAULT_FORCE_MODEL));
+        ForceModel.Param[] params = mForceModel.getParams();
+        mForceParams = new int[params.length];
+        for (int i = 0; i < params.length; i++) {
+            mForceParams[i] = prefs.getInt(params[i].getKey(), params[i].getDefault());
+        }
+        mEngine = prefs.getInt("Engine", ParticlesSurfaceView.DEFAULT_ENGINE);
+        mPipelining = prefs.getInt("Pipelining", ParticlesSurfaceView.DEFAULT_PIPELINING);
+        mReorderInterval = prefs.getInt("ReorderInterval",
+                ParticlesSurfaceView.DEFAULT_REORDER_INTERVAL);
+        mTargetFps = prefs.getInt("TargetFps", ParticlesSurfaceView.DEFAULT_TARGET_FPS);
+        mSimRate = prefs.getInt("SimRate", ParticlesSurfaceView.DEFAULT_SIM_RATE);
+        mMaxSubsteps = prefs.getInt("MaxSubsteps", ParticlesSurfaceView.DEFAULT_MAX_SUBSTEPS);
+    }
+
+    /**
+     * Take a snapshot of the current preferences.
+     */
+    public static ParticlesConfig fromPrefs(SharedPreferences prefs) {
+        return new ParticlesConfig(prefs);
+    }
+
+    public int getNumParticles() {
+        return mNumParticles;
+    }
+
+    public int getParticleSize() {
+        return mParticleSize;
+    }
+
+    public int getNumAttPoints() {
+        return mNumAttPoints;
+    }
+
+    public int getBGColor() {
+        return mBGColor;
+    }
+
+    public int getSlowColor() {
+        return mSlowColor;
+    }
+
+    public int getFastColor() {
+        return mFastColor;
+    }
+
+    public int getHueDirection() {
+        return mHueDirection;
+    }
+
+    public int getColorMode() {
+        return mColorMode;
+    }
+
+    public int getRenderMode() {
+        return mRenderMode;
+    }
+
+    /**
+     * Returns true if the engine must output the speed coefficients of the particles rather than
+     * their colors (Cf. ParticleEngine.setSpeedOutput): in COLOR_MODE_SHADER, and in the density
+     * render modes, which only need the speeds (Cf. DensityGrid).
+     */
+    public boolean isSpeedOutput() {
+        return isSpeedOutput(mColorMode, mRenderMode);
+    }
+
+    /**
+     * Same as isSpeedOutput, for the given ColorMode and RenderMode preferences.
+     */
+    public static boolean isSpeedOutput(int colorMode, int renderMode) {
+        return colorMode == ParticlesSurfaceView.COLOR_MODE_SHADER
+                || renderMode != ParticlesSurfaceView.RENDER_MODE_POINTS;
+    }
+
+    /**
+     * Returns the attraction coefficient, as expected by ParticleEngine.setForceCoefs.
+     */
+    public float getAttractionCoef() {
+        return mF01Attraction;
+    }
+
+    /**
+     * Returns the drag coefficient, as expected by ParticleEngine.setForceCoefs (the preference
+     * is the percentage of the velocity lost at each update).
+     */
+    public float getDragCoef() {
+        return 1 - mF01Drag / 100.f;
+    }
+
+    public ForceModel getForceModel() {
+        return mForceModel;
+    }
+
+    /**
+     * Returns the values of the parameters of the force model, as expected by
+     * ParticleEngine.setForceModel.
+     */
+    public float[] getForceParams() {
+        ForceModel.Param[] params = mForceModel.getParams();
+        float[] values = new float[params.length];
+        for (int i = 0; i < params.length; i++) {
+            values[i] = params[i].getValue(mForceParams[i]);
+        }
+        return values;
+    }
+
+    public int getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Returns true if the particles are updated on the GPU (Cf. GLParticleEngine), which only
+     * implements the attraction points: the other force models fall back to the java engine.
+     */
+    public boolean isGpuEngine() {
+        return mEngine == ParticlesSurfaceView.ENGINE_GPU
+                && mForceModel.getId() == ForceModel.ATTRACTION;
+    }
+
+    public int getPipelining() {
+        return mPipelining;
+    }
+
+    public int getReorderInterval() {
+        return mReorderInterval;
+    }
+
+    public int getTargetFps() {
+        return mTargetFps;
+    }
+
+    public int getSimRate() {
+        return mSimRate;
+    }
+
+    public int getMaxSubsteps() {
+        return mMaxSubsteps;
+    }
+
+    /**
+     * Returns true if the engine itself must be replaced to go from this snapshot to other.
+     */
+    public boolean engineDiffers(ParticlesConfig other) {
+        return mEngine != other.mEngine || mPipelining != other.mPipelining
+                || isGpuEngine() != other.isGpuEngine();
+    }
+
+    /**
+     * Returns true if the engine buffers must be resized or reallocated to go from this snapshot
+     * to other.
+     */
+    public boolean buffersDiffer(ParticlesConfig other) {
+        return mNumParticles != other.mNumParticles
+                || mNumAttPoints != other.mNumAttPoints
+                || isSpeedOutput() != other.isSpeedOutput();
+    }
+
+    /**
+     * Returns true if the colors of the particles differ between this snapshot and other.
+     */
+    public boolean colorsDiffer(ParticlesConfig other) {
+        return mSlowColor != other.mSlowColor
+                || mFastColor != other.mFastColor
+                || mHueDirection != other.mHueDirection;
+    }
+
+    /**
+     * Returns true if the force coefficients differ between this snapshot and other.
+     */
+    public boolean forcesDiffer(ParticlesConfig other) {
+        return mF01Attraction != other.mF01Attraction
+                || mF01Drag != other.mF01Drag
+                || mForceModel != other.mForceModel
+                || !Arrays.equals(mForceParams, other.mForceParams);
+    }
+
+    /**
+     * Returns true if the simulation clock differs between this snapshot and other.
+     */
+    public boolean clockDiffers(ParticlesConfig other) {
+        return mSimRate != other.mSimRate || mMaxSubsteps != other.mMaxSubsteps;
+    }
+}
@@ -1,66 +1,116 @@
 package com.nfaralli.particleflow;
 
 import java.lang.Math;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
-import android.support.v8.renderscript.*;
 
 /**
  * Renderer in charge of drawing the particles.
- * Computing the particles trajectory is quite expensive and slow in java, hence the use of
- * renderscript.
+ * The particles are computed by a ParticleSimulation shared with the other renderers of the
+ * process (e.g. the wallpaper and its preview). Each renderer maps the simulation to its own
+ * viewport.
  * The loadShader and loadGlError methods are taken from a code sample of the Android tutorial:
  * http://developer.android.com/training/graphics/opengl/environment.html
  */
 public class ParticlesRenderer implements GLSurfaceView.Renderer {
 
     private static final String TAG = "ParticlesRenderer";
-    
-    private FloatBuffer mPointVertices;
-    private FloatBuffer mPointColors;
+
+    // Number of texels of the color ramp texture (Cf. mRampVertexShader).
+    private static final int RAMP_SIZE = ColorRamp.TEXTURE_SIZE;
+
+    // Vertex buffer objects containing the positions and colors (or speed coefficients) of the
+    // particles. Their storage is (re)allocated in onDrawFrame when the number of particles or the
+    // color mode changes.
+    private final int[] mVBOs = new int[2];
+    private int mVBOParticleCount;
+    private int mVBOColorSize;  // Number of bytes per particle in mVBOs[1].
 
     // mMVPMatrix is an abbreviation for "Model View Projection Matrix"
     private final float[] mMVPMatrix = new float[16];
     private final float[] mProjectionMatrix = new float[16];
     private final float[] mViewMatrix = new float[16];
 
-    private SharedPreferences mPrefs;
+    // Size of the simulation the projection matrix was computed for (Cf. updateProjection).
+    private int mProjectionWidth;
+    private int mProjectionHeight;
+
+    private final ParticleSimulation mSimulation;
+    // Preferences currently applied. Only used on the GL thread (apart from the constructor).
+    private ParticlesConfig mConfig;
+    // Preferences to apply at the beginning of the next frame (Cf. setConfig).
+    private final AtomicReference<ParticlesConfig> mPendingConfig =
+            new AtomicReference<ParticlesConfig>();
 
     private int mProgram;
     private int maPositionHandle;
     private int maColorHandle;
     private int muMVPMatrixHandle;
     private int muPointSizeHandle;
+    // Program used when the color is computed by the shaders from the speed coefficients.
+    private int mRampProgram;
+    private int maRampPositionHandle;
+    private int maSpeedHandle;
+    private int muRampMVPMatrixHandle;
+    private int muRampPointSizeHandle;
+    private int muRampHandle;
+    private final int[] mRampTexture = new int[1];
+    private volatile boolean mRampDirty;
+    // Color ramp currently in mRampTexture.
+    private ColorRamp mColorRamp;
+    // Program drawing the density texture (Cf. RENDER_MODE_DENSITY) in a quad covering the
+    // viewport, and the texture itself.
+    private int mDensityProgram;
+    private int maQuadPositionHandle;
+    private int muDensityHandle;
+    private int muDensityRampHandle;
+    private int muBackgroundHandle;
+    private final int[] mDensityTexture = new int[1];
+    // Size of the storage of mDensityTexture, 0 if not allocated yet.
+    private int mDensityTextureWidth;
+    private int mDensityTextureHeight;
+    private final FloatBuffer mQuad;
+    // Created by the first frame drawn in a density render mode.
+    private DensityGrid mDensityGrid;
+    private ForkJoinPool mDensityPool;
+    private float mDensityCoverage;
     private int mWidth;
     private int mHeight;
     
-    private RenderScript mRS;
-    private ScriptC_particleflow mScript;
-    private Boolean initialized = false;
-    private Boolean posDirty = false;
-    private Allocation indices;
-    private Allocation touch;
-    private Allocation position;
-    private Allocation delta;
-    private Allocation color;
-    private int mNumTouch;
-    private int mPartCount;
     private int mParticleSize;
-    private float[] touchPos;
-    private float[] pos;
-    private float[] col;
+
+    // Attraction points set by the touch events on the UI thread (Cf. postTouch), and their last
+    // positions picked up by the GL thread, in view coordinates.
+    private final TouchHandoff mTouchHandoff =
+            new TouchHandoff(ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS);
+    private final float[] mTouchPos = new float[2 * ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS];
+    // Time of the touch event picked up by the previous frame, 0 if none.
+    private long mDrawnEventTime;
+    // Time between the touch events and the display of the frames using them.
+    private final LatencyHistogram mTouchLatency = new LatencyHistogram();
+
+    // Duration of each stage of the last frames (Cf. onDrawFrame and drawParticles).
+    private final FrameStats mFrameStats = new FrameStats();
+    // Counts the vsyncs to detect the dropped frames, started and stopped by the view.
+    private final VsyncCounter mVsyncCounter = new VsyncCounter();
+    // Created with the context (Cf. onSurfaceCreated).
+    private GpuTimer mGpuTimer;
 
     private final String mVertexShader =
         "uniform mat4 uMVPMatrix;\n" +
@@ -81,25 +131,125 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
         "  gl_FragColor = vColor;\n" +
         "}\n";
 
+    // Shaders used in COLOR_MODE_SHADER: the color of each particle is read from uRamp, a
+    // RAMP_SIZE x 1 texture going from the slow color (left) to the fast color (right).
+    // Texture lookups in the vertex shader are optional in OpenGL ES 2.0, hence the fragment shader
+    // variant used when GL_MAX_VERTEX_TEXTURE_IMAGE_UNITS is 0.
+    private final String mRampVertexShader =
+        "uniform mat4 uMVPMatrix;\n" +
+        "uniform float uPointSize;\n" +
+        "uniform sampler2D uRamp;\n" +
+        "attribute vec4 aPosition;\n" +
+        "attribute float aSpeed;\n" +
+        "varying vec4 vColor;\n" +
+        "void main() {\n" +
+        "  gl_Position = uMVPMatrix * aPosition;\n" +
+        "  gl_PointSize = uPointSize;\n" +
+        "  vColor = texture2D(uRamp, vec2((aSpeed * " + (RAMP_SIZE - 1) + ".0 + 0.5) / " +
+                RAMP_SIZE + ".0, 0.5));\n" +
+        "}\n";
+
+    private final String mRampFragVertexShader =
+        "uniform mat4 uMVPMatrix;\n" +
+        "uniform float uPointSize;\n" +
+        "attribute vec4 aPosition;\n" +
+        "attribute float aSpeed;\n" +
+        "varying float vSpeed;\n" +
+        "void main() {\n" +
+        "  gl_Position = uMVPMatrix * aPosition;\n" +
+        "  gl_PointSize = uPointSize;\n" +
+        "  vSpeed = aSpeed;\n" +
+        "}\n";
+
+    private final String mRampFragmentShader =
+        "precision mediump float;\n" +
+        "uniform sampler2D uRamp;\n" +
+        "varying float vSpeed;\n" +
+        "void main() {\n" +
+        "  gl_FragColor = texture2D(uRamp, vec2((vSpeed * " + (RAMP_SIZE - 1) + ".0 + 0.5) / " +
+                RAMP_SIZE + ".0, 0.5));\n" +
+        "}\n";
+
+    // Shaders used in the density render modes: uDensity has the coverage of each cell in its
+    // luminance and its mean speed coefficient in its alpha (Cf. DensityGrid). The coverage blends
+    // the background with the color of the speed.
+    private final String mDensityVertexShader =
+        "attribute vec2 aPosition;\n" +
+        "varying vec2 vTexCoord;\n" +
+        "void main() {\n" +
+        "  gl_Position = vec4(aPosition, 0.0, 1.0);\n" +
+        "  vTexCoord = aPosition * 0.5 + 0.5;\n" +
+        "}\n";
+
+    private final String mDensityFragmentShader =
+        "precision mediump float;\n" +
+        "uniform sampler2D uDensity;\n" +
+        "uniform sampler2D uRamp;\n" +
+        "uniform vec4 uBackground;\n" +
+        "varying vec2 vTexCoord;\n" +
+        "void main() {\n" +
+        "  vec4 density = texture2D(uDensity, vTexCoord);\n" +
+        "  vec4 color = texture2D(uRamp, vec2((density.a * " + (RAMP_SIZE - 1) + ".0 + 0.5) / " +
+                RAMP_SIZE + ".0, 0.5));\n" +
+        "  gl_FragColor = mix(uBackground, color, density.r);\n" +
+        "}\n";
+
     /**
      * Public constructor.
-     * initScript is not called here as it will be called in onSurfaceChanged later on.
+     * The simulation is only initialized in onSurfaceChanged, once the size of the screen is
+     * known. release must be called once the renderer isn't used anymore.
      */
     public ParticlesRenderer(Context context) {
-        mPrefs = context.getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME,
-                Context.MODE_PRIVATE);
-        mRS = RenderScript.create(context);
-        mScript = new ScriptC_particleflow(mRS);
-        init();
+        ParticlesConfig config = ParticlesConfig.fromPrefs(context.getSharedPreferences(
+                ParticlesSurfaceView.SHARED_PREFS_NAME, Context.MODE_PRIVATE));
+        mConfig = config;
+        mParticleSize = config.getParticleSize();
+        mSimulation = ParticleSimulation.acquire(context, config);
+        // Triangle strip covering the viewport, in clip coordinates.
+        float[] quad = {-1, -1, 1, -1, -1, 1, 1, 1};
+        mQuad = ByteBuffer.allocateDirect(4 * quad.length).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mQuad.put(quad).position(0);
+        // The shared simulation may have been created with older preferences.
+        setConfig(config);
+    }
+
+    /**
+     * Release the simulation. The renderer must not be used afterwards.
+     */
+    public void release() {
+        mSimulation.detachRenderer(this);
+        mSimulation.release();
+        if (mDensityPool != null) {
+            mDensityPool.shutdown();
+        }
+    }
+
+    /**
+     * Should be called when preferences are changed. Can be called from any thread: the snapshot
+     * is applied on the GL thread at the beginning of the next frame (Cf. applyConfig). If several
+     * snapshots are set in between two frames, only the last one is applied.
+     */
+    public void setConfig(ParticlesConfig config) {
+        mPendingConfig.set(config);
     }
 
     /**
-     * Should be called when preferences are changed.
+     * Apply the preferences changes from mConfig to config. The changes of the simulation itself
+     * are applied by the simulation (Cf. ParticleSimulation.applyConfig).
+     * Must be called on the GL thread.
      */
-    public void onPrefsChanged() {
-        init();
-        initScript(true);
-        int bgColor = mPrefs.getInt("BGColor", ParticlesSurfaceView.DEFAULT_BG_COLOR);
+    private void applyConfig(ParticlesConfig config) {
+        ParticlesConfig old = mConfig;
+        mConfig = config;
+        mParticleSize = config.getParticleSize();
+        if (old.getBGColor() != config.getBGColor()) {
+            setClearColor(config.getBGColor());
+        }
+        mSimulation.applyConfig(config);
+    }
+
+    private void setClearColor(int bgColor) {
         float bgRed = Color.red(bgColor) / 255.f;
         float bgGreen = Color.green(bgColor) / 255.f;
         float bgBlue = Color.blue(bgColor) / 255.f;
@@ -107,43 +257,66 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
     }
 
     /**
-     * Initialization of member variables.
-     * Variables which interact directly with the script (e.g. allocations) are initialized in
-     * initScript.
+     * Set the position of the attraction points, in view coordinates. Can be called from any
+     * thread (usually the UI thread), the positions are picked up by the next frame.
+     *
+     * @param positions: positions (x, y) of the attraction points. Negative coordinates disable an
+     *                 attraction point.
+     * @param mask: attraction points set in positions, one bit per attraction point.
+     * @param eventTime: time of the touch event (Cf. MotionEvent.getEventTime()).
+     */
+    public void postTouch(float[] positions, int mask, long eventTime) {
+        mTouchHandoff.publish(positions, mask, eventTime);
+    }
+
+    /**
+     * Give the attraction points picked up from mTouchHandoff to the simulation.
+     * Must be called on the GL thread, with the lock of the simulation.
      */
-    private void init() {
-        mPartCount = mPrefs.getInt("NumParticles", ParticlesSurfaceView.DEFAULT_NUM_PARTICLES);
-        mParticleSize = mPrefs.getInt("ParticleSize", ParticlesSurfaceView.DEFAULT_PARTICLE_SIZE);
-        mNumTouch = mPrefs.getInt("NumAttPoints", ParticlesSurfaceView.DEFAULT_MAX_NUM_ATT_POINTS);
-        touchPos = new float[2 * mNumTouch];
-        pos = new float[2 * mPartCount];
-        col = new float[4 * mPartCount];
-        mPointVertices = ByteBuffer.allocateDirect(mPartCount * 2 * 4)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mPointColors = ByteBuffer.allocateDirect(mPartCount * 4 * 4)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private void applyTouch(int mask) {
+        if (mWidth <= 0 || mHeight <= 0) {
+            return;
+        }
+        // Map the view to the simulation (Cf. updateProjection). Negative coordinates are kept as
+        // is, they disable the attraction point.
+        float simWidth = mSimulation.getWidth();
+        float simHeight = mSimulation.getHeight();
+        for (int i = 0; mask != 0; i++, mask >>>= 1) {
+            if ((mask & 1) == 0) {
+                continue;
+            }
+            float x = mTouchPos[2 * i];
+            float y = mTouchPos[2 * i + 1];
+            if (x < 0 || y < 0) {
+                mSimulation.setTouch(i, x, y);
+            } else {
+                mSimulation.setTouch(i, x * simWidth / mWidth, simHeight - y * simHeight / mHeight);
+            }
+        }
+        mSimulation.syncTouch();
     }
 
-    // Set the position of the pointer 'index'.
-    // This does NOT update Allocation touch (i.e. it does not update the script).
-    // Use syncTouch() to update the Allocation touch with these new coordinates.
-    public void setTouch(int index, float x, float y){
-    	if(index >= mNumTouch) {
-    		return;
-    	}
-    	index *=2;
-        touchPos[index] = x;
-        touchPos[index+1] = mHeight - y;
-        posDirty = true;
+    /**
+     * Returns the histogram of the latency between the touch events and the display of the frames
+     * using them. Must only be used on the GL thread.
+     */
+    public LatencyHistogram getTouchLatency() {
+        return mTouchLatency;
     }
-    
-    // Sync the Allocation touch.
-    public void syncTouch() {
-    	if(!posDirty) {
-    		return;
-    	}
-    	touch.copyFrom(touchPos);
-    	posDirty = false;
+
+    /**
+     * Returns the durations of the stages of the last frames. Can be used from any thread.
+     */
+    public FrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    /**
+     * Returns the vsync counter used to count the dropped frames. Its start and stop methods must
+     * be called on the UI thread, when the view is resumed and paused.
+     */
+    public VsyncCounter getVsyncCounter() {
+        return mVsyncCounter;
     }
 
     /**
@@ -152,167 +325,463 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
         // Set the background frame color
-        int bgColor = mPrefs.getInt("BGColor", ParticlesSurfaceView.DEFAULT_BG_COLOR);
-        float bgRed = Color.red(bgColor) / 255.f;
-        float bgGreen = Color.green(bgColor) / 255.f;
-        float bgBlue = Color.blue(bgColor) / 255.f;
-        GLES20.glClearColor(bgRed, bgGreen, bgBlue, 1.0f);
+        setClearColor(mConfig.getBGColor());
 
         mProgram = createProgram(mVertexShader, mFragmentShader);
         if (mProgram == 0) {
             return;
         }
-        maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
-        checkGlError("glGetAttribLocation aPosition");
-        if (maPositionHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aPosition");
+        maPositionHandle = getAttribLocation(mProgram, "aPosition");
+        maColorHandle = getAttribLocation(mProgram, "aColor");
+        muMVPMatrixHandle = getUniformLocation(mProgram, "uMVPMatrix");
+        muPointSizeHandle = getUniformLocation(mProgram, "uPointSize");
+
+        int[] vertexTextureUnits = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VERTEX_TEXTURE_IMAGE_UNITS, vertexTextureUnits, 0);
+        if (vertexTextureUnits[0] > 0) {
+            mRampProgram = createProgram(mRampVertexShader, mFragmentShader);
+        } else {
+            mRampProgram = createProgram(mRampFragVertexShader, mRampFragmentShader);
         }
-        maColorHandle = GLES20.glGetAttribLocation(mProgram, "aColor");
-        checkGlError("glGetAttribLocation aColor");
-        if (maColorHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aColor");
+        if (mRampProgram == 0) {
+            return;
         }
-        muMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
-        if (muMVPMatrixHandle == -1) {
-            throw new RuntimeException("Could not get uniform location for uMVPMatrix");
+        maRampPositionHandle = getAttribLocation(mRampProgram, "aPosition");
+        maSpeedHandle = getAttribLocation(mRampProgram, "aSpeed");
+        muRampMVPMatrixHandle = getUniformLocation(mRampProgram, "uMVPMatrix");
+        muRampPointSizeHandle = getUniformLocation(mRampProgram, "uPointSize");
+        muRampHandle = getUniformLocation(mRampProgram, "uRamp");
+
+        mDensityProgram = createProgram(mDensityVertexShader, mDensityFragmentShader);
+        if (mDensityProgram == 0) {
+            return;
         }
+        maQuadPositionHandle = getAttribLocation(mDensityProgram, "aPosition");
+        muDensityHandle = getUniformLocation(mDensityProgram, "uDensity");
+        muDensityRampHandle = getUniformLocation(mDensityProgram, "uRamp");
+        muBackgroundHandle = getUniformLocation(mDensityProgram, "uBackground");
+
+        // The buffers and textures of the previous context (if any) are gone with it.
+        GLES20.glGenBuffers(2, mVBOs, 0);
+        checkGlError("glGenBuffers");
+        mVBOParticleCount = 0;
+        GLES20.glGenTextures(1, mRampTexture, 0);
+        setTextureParameters(mRampTexture[0]);
+        mRampDirty = true;
+        GLES20.glGenTextures(1, mDensityTexture, 0);
+        setTextureParameters(mDensityTexture[0]);
+        mDensityTextureWidth = 0;
+        mDensityTextureHeight = 0;
+        mGpuTimer = new GpuTimer();
+    }
 
-        muPointSizeHandle = GLES20.glGetUniformLocation(mProgram, "uPointSize");
-        if (muPointSizeHandle == -1) {
-            throw new RuntimeException("Could not get uniform location for uPointSize");
-        }
+    /**
+     * Bind texture and set its filtering (linear) and wrapping (clamped) parameters.
+     */
+    private void setTextureParameters(int texture) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        checkGlError("glTexParameteri");
     }
 
     /**
      * Called when starting the app, after a pause/resume, or when the screen orientation changes.
-     * Sets the initial attraction points and distributes all the particles uniformly over a disk
-     * (by calling the initParticles function of the script).
-     * It also allocates all the memory required for the script (Cf. Allocation.createSized()).
+     * The first renderer sets the size of the simulation (Cf. ParticleSimulation.setSize), which
+     * sets the initial attraction points and distributes all the particles uniformly over a disk,
+     * unless a snapshot of the previous particles can be restored (Cf. onPause).
      */
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
     	mWidth = width;
     	mHeight = height;
         GLES20.glViewport(0, 0, width, height);
+        mSimulation.setSize(width, height);
+        updateProjection();
+    }
 
-        Matrix.orthoM(mProjectionMatrix, 0, 0, -width, 0, height, 3, 7);
+    /**
+     * Compute the MVP matrix mapping the simulation to the whole viewport. The simulation has the
+     * size of this view, unless it's shared with a renderer which set its size first.
+     */
+    private void updateProjection() {
+        mProjectionWidth = mSimulation.getWidth();
+        mProjectionHeight = mSimulation.getHeight();
+        Matrix.orthoM(mProjectionMatrix, 0, 0, -mProjectionWidth, 0, mProjectionHeight, 3, 7);
         // Set the camera position (View matrix)
         Matrix.setLookAtM(mViewMatrix, 0, 0, 0, -3, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
         // Calculate the projection and view transformation
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
-        
-        if(mWidth == mScript.get_width() && mHeight == mScript.get_height() && initialized)
-        	return; // onSurfaceChanged called after resuming the activity. check before reinitialize.
-        initScript(false);
     }
 
     /**
-     * Initialize all the scrip parameters.
-     *
-     * @param forceAllocationsInit: set to true to force (re)initializing the Allocations.
+     * Reset the attraction points and particles. Must be called on the GL thread.
      */
-    private void initScript(boolean forceAllocationsInit) {
-        mScript.set_width(mWidth);
-        mScript.set_height(mHeight);
-        float hsv[] = new float[3];
-        Color.colorToHSV(mPrefs.getInt("SlowColor", ParticlesSurfaceView.DEFAULT_SLOW_COLOR), hsv);
-        mScript.set_slowHue(hsv[0] / 360.f);
-        mScript.set_slowSaturation(hsv[1]);
-        mScript.set_slowValue(hsv[2]);
-        Color.colorToHSV(mPrefs.getInt("FastColor", ParticlesSurfaceView.DEFAULT_FAST_COLOR), hsv);
-        mScript.set_fastHue(hsv[0] / 360.f);
-        mScript.set_fastSaturation(hsv[1]);
-        mScript.set_fastValue(hsv[2]);
-        mScript.set_hueDirection(mPrefs.getInt("HueDirection",
-                ParticlesSurfaceView.DEFAULT_HUE_DIRECTION));
-        mScript.set_f01AttractionCoef(mPrefs.getInt("F01Attraction",
-                ParticlesSurfaceView.DEFAULT_F01_ATTRACTION_COEF));
-        mScript.set_f01DragCoef(1 - mPrefs.getInt("F01Drag",
-                ParticlesSurfaceView.DEFAULT_F01_DRAG_COEF) / 100.f);
-        initAllocations(forceAllocationsInit);
-        resetAttractionPoints();
+    public void resetAttractionPoints() {
+        mSimulation.resetAttractionPoints();
     }
 
     /**
-     * Initialize the Allocations used by the script. If it was already initialized and forceInit is
-     * set to false, then return immediately.
-     *
-     * @param forceInit: set to true to force (re)initializing the Allocations.
+     * Should be called when the view is paused. Saves the particles and the attraction points
+     * (Cf. ParticleSimulation.saveSnapshot), releases what the engine holds in the GL context,
+     * which is destroyed with the pause, and lets the other renderers drive the frame rate
+     * governor while this one doesn't draw.
+     * Must be called on the GL thread.
      */
-    private void initAllocations(boolean forceInit) {
-        if(initialized && !forceInit) {
-            return;
+    public void onPause() {
+        mSimulation.detachRenderer(this);
+        mSimulation.saveSnapshot();
+        mSimulation.releaseContext();
+        if (mTouchLatency.getCount() > 0) {
+            Log.i(TAG, "Touch latency: " + mTouchLatency);
+            mTouchLatency.reset();
         }
-        int indices_[] = new int[mPartCount];
-        indices = Allocation.createSized(mRS, Element.I32(mRS), mPartCount);
-        for(int i=0; i<mPartCount; i++) {
-            indices_[i] = i;
-        }
-        indices.copyFrom(indices_);
-        touch = Allocation.createSized(mRS, Element.F32_2(mRS), mNumTouch);
-        position = Allocation.createSized(mRS, Element.F32_2(mRS), mPartCount);
-        delta = Allocation.createSized(mRS, Element.F32_2(mRS), mPartCount);
-        color = Allocation.createSized(mRS, Element.F32_4(mRS), mPartCount);
-        mScript.bind_gTouch(touch);
-        mScript.bind_position(position);
-        mScript.bind_delta(delta);
-        mScript.bind_color(color);
-        initialized = true;
+        mDrawnEventTime = 0;
+        mFrameStats.pause();
     }
 
     /**
-     * Reset the attraction points and particles. Allocations must have been initialized previously
-     * by initAllocations.
+     * Update and draw the particles.
      */
-    public void resetAttractionPoints() {
-        if (initialized && mWidth > 0 && mHeight > 0) {
-            float l = (mWidth < mHeight ? mWidth : mHeight) / 3;
-            setTouch(0, mWidth / 2, mHeight / 2 + (mNumTouch == 1 ? 0 : l));
-            for (int i = 1; i < mNumTouch; i++) {
-                setTouch(i,
-                        (float) (mWidth / 2 + l * Math.sin(i * 2 * Math.PI / mNumTouch)),
-                        (float) (mHeight / 2 + l * Math.cos(i * 2 * Math.PI / mNumTouch)));
+    @Override
+    public void onDrawFrame(GL10 unused) {
+        long frameStart = System.nanoTime();
+        if (mDrawnEventTime != 0) {
+            // The previous frame has been swapped by now (the swap blocks until the display
+            // takes it): that's when the touch it used reached the screen.
+            mTouchLatency.record(SystemClock.uptimeMillis() - mDrawnEventTime);
+            mDrawnEventTime = 0;
+        }
+        // Draw background color.
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        ParticlesConfig config = mPendingConfig.getAndSet(null);
+        if (config != null) {
+            applyConfig(config);
+        }
+        // The engine buffers must not change while they are uploaded.
+        synchronized (mSimulation) {
+            if (mTouchHandoff.poll(mTouchPos)) {
+                applyTouch(mTouchHandoff.getMask());
+                mDrawnEventTime = mTouchHandoff.getEventTime();
             }
-            syncTouch();
-            mScript.invoke_initParticles();
+            long simulateStart = System.nanoTime();
+            mSimulation.update(frameStart);
+            mFrameStats.record(FrameStats.STAGE_SIMULATE, System.nanoTime() - simulateStart);
+            drawParticles(mSimulation.getEngine());
         }
+        long gpuTime = mGpuTimer.poll();
+        if (gpuTime >= 0) {
+            // Measured a few frames ago, which doesn't matter for the percentiles.
+            mFrameStats.record(FrameStats.STAGE_GPU, gpuTime);
+        }
+        long frameEnd = System.nanoTime();
+        mSimulation.onFrame(this, frameStart, frameEnd);
+        mFrameStats.record(FrameStats.STAGE_FRAME, frameEnd - frameStart);
+        mFrameStats.endFrame(mVsyncCounter.getCount());
     }
 
     /**
-     * Update and draw the particles.
+     * Draw the current output of engine.
      */
-    @Override
-    public void onDrawFrame(GL10 unused) {
-        // Draw background color.
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        
-        GLES20.glUseProgram(mProgram);
-        checkGlError("glUseProgram");
- 
-        GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
-        GLES20.glUniform1f(muPointSizeHandle, mParticleSize);
-
-        mScript.forEach_updateParticles(indices);
-        // There might be a better way to copy an Allocation to a FloatBuffer...
-        position.copyTo(pos);
-        mPointVertices.position(0);
-        mPointVertices.put(pos);
-        mPointVertices.position(0);
-        GLES20.glVertexAttribPointer(maPositionHandle, 2, GLES20.GL_FLOAT, false, 8, mPointVertices);
+    private void drawParticles(ParticleEngine engine) {
+        if (mSimulation.getWidth() != mProjectionWidth
+                || mSimulation.getHeight() != mProjectionHeight) {
+            updateProjection();
+        }
+        boolean speedOutput = engine.isSpeedOutput();
+        // The engine outputs the speeds once the simulation has applied the render mode (Cf.
+        // ParticlesConfig.isSpeedOutput).
+        if (speedOutput && mConfig.getRenderMode() != ParticlesSurfaceView.RENDER_MODE_POINTS) {
+            drawDensity(engine);
+            return;
+        }
+        int partCount = engine.getParticleCount();
+        int activeCount = engine.getActiveCount();
+        int colorSize = speedOutput ? 4 : 4 * 4;
+        boolean gpuEngine = engine instanceof GLParticleEngine;
+        if (!gpuEngine && (partCount != mVBOParticleCount || colorSize != mVBOColorSize)) {
+            allocateVBOs(partCount, colorSize);
+        }
+
+        int positionHandle;
+        if (speedOutput) {
+            updateColorRamp();
+            GLES20.glUseProgram(mRampProgram);
+            checkGlError("glUseProgram");
+            GLES20.glUniformMatrix4fv(muRampMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+            GLES20.glUniform1f(muRampPointSizeHandle, mParticleSize);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mRampTexture[0]);
+            GLES20.glUniform1i(muRampHandle, 0);
+            positionHandle = maRampPositionHandle;
+        } else {
+            GLES20.glUseProgram(mProgram);
+            checkGlError("glUseProgram");
+            GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+            GLES20.glUniform1f(muPointSizeHandle, mParticleSize);
+            positionHandle = maPositionHandle;
+        }
+
+        if (gpuEngine) {
+            if (!bindEngineBuffer((GLParticleEngine) engine, positionHandle, speedOutput)) {
+                return;
+            }
+        } else {
+            uploadEngineOutput(engine, positionHandle, speedOutput, activeCount);
+        }
+
+        long drawStart = System.nanoTime();
+        mGpuTimer.begin();
+        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, activeCount);
+        mGpuTimer.end();
+        checkGlError("glDrawArrays");
+        mFrameStats.record(FrameStats.STAGE_DRAW, System.nanoTime() - drawStart);
+        // Both programs share the attribute slots, don't leave any of them pointing to a buffer
+        // which may be reallocated with a different layout.
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(speedOutput ? maSpeedHandle : maColorHandle);
+    }
+
+    /**
+     * Upload the current output of engine to the VBOs, and point the attributes of the current
+     * program to them.
+     */
+    private void uploadEngineOutput(ParticleEngine engine, int positionHandle,
+                                    boolean speedOutput, int activeCount) {
+        // Only the engines which can't share their buffers copy anything here (Cf.
+        // ParticleEngine.readPositions).
+        long readbackStart = System.nanoTime();
+        Buffer positions = engine.readPositions();
+        Buffer colors = speedOutput ? engine.readSpeeds() : engine.readColors();
+        long uploadStart = System.nanoTime();
+        mFrameStats.record(FrameStats.STAGE_READBACK, uploadStart - readbackStart);
+
+        // The engine buffers are uploaded as is, without any intermediate copy.
+        uploadVBO(mVBOs[0], positions, 2 * 4 * activeCount);
+        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 8, 0);
+        checkGlError("glVertexAttribPointer maPosition");
+        GLES20.glEnableVertexAttribArray(positionHandle);
+
+        if (speedOutput) {
+            uploadVBO(mVBOs[1], colors, 4 * activeCount);
+            GLES20.glVertexAttribPointer(maSpeedHandle, 1, GLES20.GL_FLOAT, false, 4, 0);
+            checkGlError("glVertexAttribPointer maSpeed");
+            GLES20.glEnableVertexAttribArray(maSpeedHandle);
+        } else {
+            uploadVBO(mVBOs[1], colors, 4 * 4 * activeCount);
+            GLES20.glVertexAttribPointer(maColorHandle, 4, GLES20.GL_FLOAT, false, 16, 0);
+            checkGlError("glVertexAttribPointer maColor");
+            GLES20.glEnableVertexAttribArray(maColorHandle);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mFrameStats.record(FrameStats.STAGE_UPLOAD, System.nanoTime() - uploadStart);
+    }
+
+    /**
+     * Point the attributes of the current program to the buffer updated by engine, which already
+     * holds the particles in the layout of TransformFeedbackShaders: nothing is read back nor
+     * uploaded. Returns false if the engine has no buffer to draw.
+     */
+    private boolean bindEngineBuffer(GLParticleEngine engine, int positionHandle,
+                                     boolean speedOutput) {
+        int buffer = engine.getOutputBuffer();
+        if (buffer == 0) {
+            return false;
+        }
+        int stride = engine.getOutputStride();
+        int outputOffset = 4 * TransformFeedbackShaders.OUTPUT_OFFSET;
+        mFrameStats.record(FrameStats.STAGE_READBACK, 0);
+        mFrameStats.record(FrameStats.STAGE_UPLOAD, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, stride, 0);
         checkGlError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(maPositionHandle);
-
-        color.copyTo(col);
-        mPointColors.position(0);
-        mPointColors.put(col);
-        mPointColors.position(0);
-        GLES20.glVertexAttribPointer(maColorHandle, 4, GLES20.GL_FLOAT, false, 16, mPointColors);
-        checkGlError("glVertexAttribPointer maColor");
-        GLES20.glEnableVertexAttribArray(maColorHandle);
-        
-        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, mPartCount);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        if (speedOutput) {
+            GLES20.glVertexAttribPointer(maSpeedHandle, 1, GLES20.GL_FLOAT, false, stride,
+                    outputOffset);
+            checkGlError("glVertexAttribPointer maSpeed");
+            GLES20.glEnableVertexAttribArray(maSpeedHandle);
+        } else {
+            GLES20.glVertexAttribPointer(maColorHandle, 4, GLES20.GL_FLOAT, false, stride,
+                    outputOffset);
+            checkGlError("glVertexAttribPointer maColor");
+            GLES20.glEnableVertexAttribArray(maColorHandle);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        return true;
+    }
+
+    /**
+     * Draw the current output of engine as a texture (Cf. DensityGrid) stretched over the
+     * viewport, with one cell per pixel (RENDER_MODE_DENSITY) or per 2x2 pixels
+     * (RENDER_MODE_DENSITY_HALF). The texture is computed on the CPU, so that the upload only
+     * depends on the size of the viewport, not on the number of particles.
+     * The engine must output the speed coefficients.
+     */
+    private void drawDensity(ParticleEngine engine) {
+        int cellSize =
+                mConfig.getRenderMode() == ParticlesSurfaceView.RENDER_MODE_DENSITY_HALF ? 2 : 1;
+        int gridWidth = Math.max(1, mWidth / cellSize);
+        int gridHeight = Math.max(1, mHeight / cellSize);
+        // Area of a particle relative to the area of a cell.
+        float coverage = mParticleSize * mParticleSize / (float) (cellSize * cellSize);
+        if (mDensityGrid == null) {
+            // ForkJoinPool is only available on API 21 and above (Cf.
+            // ParticleSimulation.createEngine), the grid is accumulated on the GL thread before.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mDensityPool = new ForkJoinPool();
+            }
+            mDensityGrid = new DensityGrid(mDensityPool);
+        }
+        if (gridWidth != mDensityGrid.getWidth() || gridHeight != mDensityGrid.getHeight()
+                || coverage != mDensityCoverage) {
+            mDensityGrid.setSize(gridWidth, gridHeight, coverage);
+            mDensityCoverage = coverage;
+        }
+        updateColorRamp();
+
+        long readbackStart = System.nanoTime();
+        FloatBuffer positions = engine.readPositions();
+        FloatBuffer speeds = engine.readSpeeds();
+        long uploadStart = System.nanoTime();
+        mFrameStats.record(FrameStats.STAGE_READBACK, uploadStart - readbackStart);
+
+        mDensityGrid.accumulate(positions, speeds, engine.getActiveCount(),
+                mSimulation.getWidth(), mSimulation.getHeight());
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mDensityTexture[0]);
+        // Rows of 2 bytes per texel.
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 2);
+        if (gridWidth != mDensityTextureWidth || gridHeight != mDensityTextureHeight) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE_ALPHA, gridWidth,
+                    gridHeight, 0, GLES20.GL_LUMINANCE_ALPHA, GLES20.GL_UNSIGNED_BYTE,
+                    mDensityGrid.getTexture());
+            checkGlError("glTexImage2D");
+            mDensityTextureWidth = gridWidth;
+            mDensityTextureHeight = gridHeight;
+        } else {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, gridWidth, gridHeight,
+                    GLES20.GL_LUMINANCE_ALPHA, GLES20.GL_UNSIGNED_BYTE, mDensityGrid.getTexture());
+            checkGlError("glTexSubImage2D");
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        long drawStart = System.nanoTime();
+        mFrameStats.record(FrameStats.STAGE_UPLOAD, drawStart - uploadStart);
+
+        GLES20.glUseProgram(mDensityProgram);
+        checkGlError("glUseProgram");
+        GLES20.glUniform1i(muDensityHandle, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mRampTexture[0]);
+        GLES20.glUniform1i(muDensityRampHandle, 1);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        int bgColor = mConfig.getBGColor();
+        GLES20.glUniform4f(muBackgroundHandle, Color.red(bgColor) / 255.f,
+                Color.green(bgColor) / 255.f, Color.blue(bgColor) / 255.f, 1.0f);
+        // The quad is read from client memory, no buffer object must be bound.
+        GLES20.glVertexAttribPointer(maQuadPositionHandle, 2, GLES20.GL_FLOAT, false, 8, mQuad);
+        checkGlError("glVertexAttribPointer aPosition");
+        GLES20.glEnableVertexAttribArray(maQuadPositionHandle);
+        mGpuTimer.begin();
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        mGpuTimer.end();
         checkGlError("glDrawArrays");
+        mFrameStats.record(FrameStats.STAGE_DRAW, System.nanoTime() - drawStart);
+        GLES20.glDisableVertexAttribArray(maQuadPositionHandle);
+    }
+
+    /**
+     * Upload the color ramp of the simulation to mRampTexture if it changed.
+     */
+    private void updateColorRamp() {
+        ColorRamp colorRamp = mSimulation.getColorRamp();
+        if (mRampDirty || colorRamp != mColorRamp) {
+            mRampDirty = false;
+            mColorRamp = colorRamp;
+            uploadColorRamp();
+        }
+    }
+
+    /**
+     * Returns the number of particles currently updated and drawn. Lower than the NumParticles
+     * preference when the frame rate governor (Cf. TargetFps preference) had to shed particles.
+     * Can be called from any thread.
+     */
+    public int getActiveParticleCount() {
+        return mSimulation.getActiveParticleCount();
+    }
+
+    /**
+     * (Re)allocate the storage of the buffer objects for partCount particles.
+     *
+     * @param colorSize: number of bytes per particle of the color buffer (16 for RGBA colors, 4
+     *                 for speed coefficients).
+     */
+    private void allocateVBOs(int partCount, int colorSize) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBOs[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, 2 * 4 * partCount, null,
+                GLES20.GL_DYNAMIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBOs[1]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, colorSize * partCount, null,
+                GLES20.GL_DYNAMIC_DRAW);
+        checkGlError("glBufferData");
+        mVBOParticleCount = partCount;
+        mVBOColorSize = colorSize;
+    }
+
+    /**
+     * Fill the color ramp texture with the colors from slow (left) to fast (right) particles.
+     */
+    private void uploadColorRamp() {
+        ByteBuffer ramp = ByteBuffer.allocateDirect(4 * RAMP_SIZE);
+        for (int i = 0; i < RAMP_SIZE; i++) {
+            int color = mColorRamp.getArgb(i / (float) (RAMP_SIZE - 1));
+            ramp.put((byte) Color.red(color));
+            ramp.put((byte) Color.green(color));
+            ramp.put((byte) Color.blue(color));
+            ramp.put((byte) 0xFF);
+        }
+        ramp.position(0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mRampTexture[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, RAMP_SIZE, 1, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ramp);
+        checkGlError("glTexImage2D");
+    }
+
+    /**
+     * Bind the buffer object vbo and copy the first size bytes of data into it.
+     * data doesn't have to be a direct buffer: glBufferSubData copies it right away, contrary to
+     * glVertexAttribPointer which reads client memory at draw time.
+     */
+    private void uploadVBO(int vbo, Buffer data, int size) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, size, data);
+        checkGlError("glBufferSubData");
+    }
+
+    private int getAttribLocation(int program, String name) {
+        int handle = GLES20.glGetAttribLocation(program, name);
+        checkGlError("glGetAttribLocation " + name);
+        if (handle == -1) {
+            throw new RuntimeException("Could not get attrib location for " + name);
+        }
+        return handle;
+    }
+
+    private int getUniformLocation(int program, String name) {
+        int handle = GLES20.glGetUniformLocation(program, name);
+        checkGlError("glGetUniformLocation " + name);
+        if (handle == -1) {
+            throw new RuntimeException("Could not get uniform location for " + name);
+        }
+        return handle;
     }
 
     private int createProgram(String vertexSource, String fragmentSource) {
@@ -0,0 +1,190 @@
+package com.nfaralli.particleflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Snapshot of the state of the particles (positions and velocities) and of the attraction points,
+ * saved to a file when the view is paused so that the flow can be restored as is when it comes
+ * back, even if the process was killed in between.
+ * The file is memory-mapped: the engine copies its state directly into the mapping, and back. The
+ * mapping is flushed to the disk on a background thread (Cf. write), so that the GL thread only
+ * pays for the copy.
+ *
+ * File format (native byte order, the file never leaves the device):
+ * - header: MAGIC, VERSION, width, height, number of particles, number of attraction points
+ *   (6 ints).
+ * - positions of the particles (2 floats per particle).
+ * - velocities of the particles (2 floats per particle).
+ * - positions of the attraction points (2 floats per attraction point).
+ * A snapshot is only restored if it was taken with the same number of particles and number of
+ * attraction points. If it was taken with another screen size (e.g. before a rotation), the flow
+ * is rescaled to the current one (Cf. ParticleEngine.rescale).
+ */
+public class ParticlesSnapshot {
+
+    private static final int MAGIC = 0x50465331;  // "PFS1"
+    // Must be incremented whenever the format changes.
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final String TAG = "ParticlesSnapshot";
+
+    // Flushes the snapshots to the disk, one at a time, and last flush queued.
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+    private static volatile Future<?> sPendingWrite;
+
+    private ParticlesSnapshot() {
+    }
+
+    /**
+     * Save the state of engine and the attraction points touchPos (2 floats per attraction
+     * point, Cf. ParticleEngine.setTouch) into file.
+     * The snapshot is written to a temporary file first, so that file is never left half written.
+     * Only the copy into the mapping is done by the caller: the mapping is flushed, and the
+     * temporary file renamed, on a background thread. Failures at that point are only logged.
+     */
+    public static void write(File file, ParticleEngine engine, float[] touchPos)
+            throws IOException {
+        int partCount = engine.getParticleCount();
+        int numTouch = engine.getNumTouch();
+        long size = getFileSize(partCount, numTouch);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final File dstFile = file;
+        // The temporary file of the previous snapshot may still be flushed.
+        awaitPendingWrite();
+        final RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        final MappedByteBuffer buffer;
+        boolean copied = false;
+        try {
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(engine.getWidth());
+            buffer.putInt(engine.getHeight());
+            buffer.putInt(partCount);
+            buffer.putInt(numTouch);
+            engine.saveState(floatSlice(buffer, HEADER_SIZE, 2 * partCount),
+                    floatSlice(buffer, HEADER_SIZE + 8 * partCount, 2 * partCount));
+            floatSlice(buffer, HEADER_SIZE + 16 * partCount, 2 * numTouch)
+                    .put(touchPos, 0, 2 * numTouch);
+            copied = true;
+        } finally {
+            if (!copied) {
+                raf.close();
+            }
+        }
+        sPendingWrite = sWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    try {
+                        buffer.force();
+                    } finally {
+                        raf.close();
+                    }
+                    if (!tmpFile.renameTo(dstFile)) {
+                        tmpFile.delete();
+                        throw new IOException("Could not rename " + tmpFile + " to " + dstFile);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save the particles: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until the last snapshot written is on the disk.
+     */
+    private static void awaitPendingWrite() {
+        Future<?> pending = sPendingWrite;
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Could not save the particles: " + e.getCause());
+        }
+    }
+
+    /**
+     * Restore the state of engine and the attraction points touchPos from file.
+     * engine must have been allocated (Cf. ParticleEngine.allocate) and its size set beforehand.
+     * Returns false, leaving engine and touchPos untouched, if there is no snapshot or if it
+     * doesn't match the current engine. The particles and the attraction points are rescaled to
+     * the size of engine if needed.
+     */
+    public static boolean read(File file, ParticleEngine engine, float[] touchPos)
+            throws IOException {
+        int partCount = engine.getParticleCount();
+        int numTouch = engine.getNumTouch();
+        long size = getFileSize(partCount, numTouch);
+        awaitPendingWrite();
+        if (!file.exists() || file.length() != size || touchPos.length < 2 * numTouch) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return false;
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            if (width <= 0 || height <= 0
+                    || buffer.getInt() != partCount
+                    || buffer.getInt() != numTouch) {
+                return false;
+            }
+            engine.restoreState(floatSlice(buffer, HEADER_SIZE, 2 * partCount),
+                    floatSlice(buffer, HEADER_SIZE + 8 * partCount, 2 * partCount));
+            floatSlice(buffer, HEADER_SIZE + 16 * partCount, 2 * numTouch)
+                    .get(touchPos, 0, 2 * numTouch);
+            int newWidth = engine.getWidth();
+            int newHeight = engine.getHeight();
+            if (width != newWidth || height != newHeight) {
+                for (int i = 0; i < 2 * numTouch; i += 2) {
+                    touchPos[i] *= newWidth / (float) width;
+                    touchPos[i + 1] *= newHeight / (float) height;
+                }
+                engine.setSize(width, height);
+                engine.rescale(newWidth, newHeight);
+            }
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long getFileSize(int partCount, int numTouch) {
+        return HEADER_SIZE + 4L * (4L * partCount + 2L * numTouch);
+    }
+
+    /**
+     * Returns a view of the count floats of buffer starting at byte offset.
+     */
+    private static FloatBuffer floatSlice(ByteBuffer buffer, int offset, int count) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + 4 * count);
+        return slice.slice().order(buffer.order()).asFloatBuffer();
+    }
+}
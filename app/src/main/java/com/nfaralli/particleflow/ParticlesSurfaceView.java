@@ -28,6 +28,38 @@ public class ParticlesSurfaceView extends GLSurfaceView
     public static final int DEFAULT_HUE_DIRECTION = 0;
     public static final int DEFAULT_F01_ATTRACTION_COEF = 100;
     public static final int DEFAULT_F01_DRAG_COEF = 4;
+    // The parameters of each model, and their defaults, are declared by ForceModel.
+    public static final int DEFAULT_FORCE_MODEL = ForceModel.ATTRACTION;
+    public static final int ENGINE_RENDERSCRIPT = 0;
+    public static final int ENGINE_JAVA = 1;
+    public static final int ENGINE_GPU = 2;  // OpenGL ES 3.0 transform feedback.
+    public static final int ENGINE_AUTO = 3;  // Fastest of renderscript and java (EngineTuner).
+    public static final int DEFAULT_ENGINE = ENGINE_AUTO;
+    public static final int PIPELINING_OFF = 0;
+    public static final int PIPELINING_ON = 1;  // Simulation of frame N+1 while drawing frame N.
+    public static final int DEFAULT_PIPELINING = PIPELINING_OFF;
+    // Possible numbers of updates between two reorderings of the particles (0 to never reorder
+    // them, Cf. ParticleEngine.setReorderInterval).
+    public static final int[] REORDER_INTERVAL_VALUES = {0, 30, 120};
+    public static final int DEFAULT_REORDER_INTERVAL = 0;
+    public static final int COLOR_MODE_PARTICLE = 0;  // RGBA colors computed by the engine.
+    public static final int COLOR_MODE_SHADER = 1;  // Speed coefficients, colors from the shaders.
+    public static final int DEFAULT_COLOR_MODE = COLOR_MODE_PARTICLE;
+    public static final int RENDER_MODE_POINTS = 0;  // One point per particle.
+    public static final int RENDER_MODE_DENSITY = 1;  // Density texture, Cf. DensityGrid.
+    public static final int RENDER_MODE_DENSITY_HALF = 2;  // Same with 2x2 pixels per cell.
+    public static final int DEFAULT_RENDER_MODE = RENDER_MODE_POINTS;
+    // Possible values of the target frame rate (0 to disable the frame rate governor).
+    public static final int[] TARGET_FPS_VALUES = {0, 30, 60};
+    public static final int DEFAULT_TARGET_FPS = 0;
+    // Possible values of the simulation rate, in steps per second (Cf. SimulationClock).
+    public static final int[] SIM_RATE_VALUES = {30, 60, 120};
+    public static final int DEFAULT_SIM_RATE = SimulationClock.REFERENCE_RATE;
+    public static final int DEFAULT_MAX_SUBSTEPS = 4;
+    public static final int MAX_MAX_SUBSTEPS = 16;
+    public static final int HUD_OFF = 0;
+    public static final int HUD_ON = 1;  // Frame statistics drawn over the particles.
+    public static final int DEFAULT_HUD = HUD_OFF;
 
     private final ParticlesRenderer mRenderer;
     // The count array is a hack to activate or deactivate an attraction point.
@@ -38,17 +70,25 @@ public class ParticlesSurfaceView extends GLSurfaceView
     // This is necessary when moving several attraction points simultaneously and lifting all the
     // fingers at once, which usually results in several touch events, not just one.
     private int mCount[];
+    // Positions of the attraction points set by the touch events (Cf. ParticlesRenderer.postTouch)
+    // and attraction points set so far, one bit per attraction point.
+    private final float[] mTouchPos = new float[2 * MAX_MAX_NUM_ATT_POINTS];
+    private int mTouchMask;
     private final SharedPreferences mPrefs;
 
     public ParticlesSurfaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
-        // Create an OpenGL ES 2.0 context.
+        // Create an OpenGL ES 2.0 context, or 3.0 when supported (for GLParticleEngine, the
+        // renderer itself only uses OpenGL ES 2.0).
         // Don't forget to set the following line in the manifest:
         // <uses-feature android:glEsVersion="0x00020000" android:required="true" />
         // Also, don't use setPreserveEGLContextOnPause, or double check that a change to the
         // background color via the settings menu still works.
-        setEGLContextClientVersion(2);
+        // The contexts of all the views share their objects (Cf. SharedContextFactory).
+        int clientVersion = GLParticleEngine.isSupported(context) ? 3 : 2;
+        setEGLContextClientVersion(clientVersion);
+        setEGLContextFactory(new SharedContextFactory(clientVersion));
 
         // Create and set the Renderer for drawing on the GLSurfaceView
         mRenderer = new ParticlesRenderer(context);
@@ -63,6 +103,7 @@ public class ParticlesSurfaceView extends GLSurfaceView
     @Override
     public void onResume() {
         super.onResume();
+        mRenderer.getVsyncCounter().start();
         // use sticky immersive mode (available only for API 19 and above).
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             this.setSystemUiVisibility(View.SYSTEM_UI_FLAG_LAYOUT_STABLE
@@ -74,6 +115,35 @@ public class ParticlesSurfaceView extends GLSurfaceView
         }
     }
 
+    /**
+     * Should be called when the view is destroyed, after onPause. Releases the simulation shared
+     * with the other views (Cf. ParticleSimulation).
+     */
+    public void onDestroy() {
+        mPrefs.unregisterOnSharedPreferenceChangeListener(this);
+        mRenderer.release();
+    }
+
+    @Override
+    public void onPause() {
+        // Queued events are run before the GL thread actually pauses.
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.onPause();
+            }
+        });
+        super.onPause();
+        mRenderer.getVsyncCounter().stop();
+    }
+
+    /**
+     * Returns the durations of the stages of the last frames drawn by this view.
+     */
+    public FrameStats getFrameStats() {
+        return mRenderer.getFrameStats();
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent e) {
     	int numPointers;
@@ -90,7 +160,7 @@ public class ParticlesSurfaceView extends GLSurfaceView
             		ids |= 1 << id;
             		if(id < mCount.length) {
             		    mCount[id] = 0;
-      	        	    mRenderer.setTouch(id, e.getX(index), e.getY(index));
+      	        	    setTouch(id, e.getX(index), e.getY(index));
             		}
             	}
                 // Check which attraction points should be deactivated.
@@ -98,28 +168,46 @@ public class ParticlesSurfaceView extends GLSurfaceView
                 	if ((ids & 1) == 0) {
                     	if(mCount[id]++ >= 3){
                             // Negative coordinates are used to deactivate an attraction point.
-              	        	mRenderer.setTouch(id, -1.0f, -1.0f);
+              	        	setTouch(id, -1.0f, -1.0f);
                     	}
                 	}
             	}
-                // syncTouch() must be used to update the script.
-            	mRenderer.syncTouch();
+                // Hand the new positions over to the GL thread.
+            	mRenderer.postTouch(mTouchPos, mTouchMask, e.getEventTime());
                 requestRender();
                 break;
         }
         return true;
     }
 
+    private void setTouch(int id, float x, float y) {
+        mTouchPos[2 * id] = x;
+        mTouchPos[2 * id + 1] = y;
+        mTouchMask |= 1 << id;
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
         if (key == "ShowSettingsHint") {
             return;
         }
-        mCount = new int[mPrefs.getInt("NumAttPoints", DEFAULT_MAX_NUM_ATT_POINTS)];
-        mRenderer.onPrefsChanged();
+        // The renderer only rebuilds what changed since the previous snapshot.
+        ParticlesConfig config = ParticlesConfig.fromPrefs(prefs);
+        if (config.getNumAttPoints() != mCount.length) {
+            mCount = new int[config.getNumAttPoints()];
+            // The renderer places the new attraction points itself.
+            mTouchMask = 0;
+        }
+        mRenderer.setConfig(config);
     }
 
     public void resetAttractionPoints(){
-        mRenderer.resetAttractionPoints();
+        // The engine must only be used from the GL thread.
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.resetAttractionPoints();
+            }
+        });
     }
 }
@@ -0,0 +1,434 @@
+package com.nfaralli.particleflow;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Engine running another engine on a worker thread, so that the particles of the next frame are
+ * computed while the renderer draws the current one. The frame time gets close to
+ * max(simulation, drawing) instead of simulation + drawing, at the cost of one frame of latency.
+ *
+ * The worker copies the output of the engine (positions and colors or speeds) into one of three
+ * slots. The slots are exchanged through a triple buffer:
+ * - the worker (producer) owns the back slot. Once it is filled, the back slot is swapped with
+ *   the middle slot, which is flagged as fresh.
+ * - the renderer (consumer) owns the front slot. In acquireOutput, if the middle slot is fresh,
+ *   it is swapped with the front slot.
+ * Both swaps are a single atomic exchange, so that neither thread ever waits for the other in the
+ * frame loop. The renderer may draw the same state twice (simulation slower than drawing), and
+ * states may be skipped (drawing slower than simulation), but a slot is never read while written.
+ *
+ * update only requests a step from the worker. The other methods changing the engine state
+ * (allocate, initParticles...) are rare: they wait for the worker to be idle and are forwarded
+ * to the engine from the calling thread. setTouch and setActiveCount are lock-free as well, their
+ * values are handed to the worker which applies them before its next step.
+ */
+public class PipelinedParticleEngine extends ParticleEngine {
+
+    static final int NUM_SLOTS = 3;
+    // Flag set on mMiddle when the middle slot holds a state the consumer hasn't seen yet.
+    private static final int FRESH = 0x10;
+    private static final int INDEX_MASK = 0x0F;
+
+    private final ParticleEngine mEngine;
+    private final Thread mWorker;
+
+    // Output of the engine: positions and colors or speeds, and number of active particles.
+    private float[][] mPositions;
+    private float[][] mOutputs;
+    private final int[] mActiveCounts;
+    private FloatBuffer[] mPositionBuffers;
+    private FloatBuffer[] mOutputBuffers;
+    // Triple buffer indices. mBack belongs to the producer, mFront to the consumer.
+    private final AtomicInteger mMiddle;
+    private int mBack;
+    private int mFront;
+
+    // Number of steps requested by update and not run yet.
+    private final AtomicInteger mPendingSteps;
+    // Maximum number of steps run by a batch, the others are dropped.
+    private volatile int mMaxSteps;
+    // Attraction points to apply before the next step, handed over to the worker without
+    // allocations (Cf. setTouch), and the worker copy of them. Replaced with the slots.
+    private TouchHandoff mPendingTouch;
+    private float[] mWorkerTouch;
+    // Number of active particles to apply before the next step, -1 if unchanged.
+    private final AtomicInteger mPendingActiveCount;
+    // Duration of the last batch of steps (System.nanoTime() based).
+    private volatile long mBatchNanos;
+
+    // Handshake between the worker and the threads changing the engine state, and thread waiting
+    // in pause, unparked by the worker once it is idle (null if none).
+    private volatile boolean mPaused;
+    private volatile boolean mWorking;
+    private volatile boolean mQuit;
+    private volatile Thread mPauser;
+
+    /**
+     * @param engine: engine updated on the worker thread. Belongs to this engine from now on.
+     * @param maxSteps: maximum number of steps run at once (Cf. setMaxSteps).
+     */
+    public PipelinedParticleEngine(ParticleEngine engine, int maxSteps) {
+        mEngine = engine;
+        mMaxSteps = maxSteps;
+        mPositions = new float[NUM_SLOTS][0];
+        mOutputs = new float[NUM_SLOTS][0];
+        mActiveCounts = new int[NUM_SLOTS];
+        mPositionBuffers = new FloatBuffer[NUM_SLOTS];
+        mOutputBuffers = new FloatBuffer[NUM_SLOTS];
+        wrapSlots();
+        mBack = 0;
+        mMiddle = new AtomicInteger(1);
+        mFront = 2;
+        mPendingSteps = new AtomicInteger();
+        mPendingTouch = new TouchHandoff(ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS);
+        mWorkerTouch = new float[0];
+        mPendingActiveCount = new AtomicInteger(-1);
+        mPaused = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "ParticleSimulation");
+        mWorker.start();
+    }
+
+    /**
+     * Set the maximum number of steps run by a batch. When the simulation can't keep up, the
+     * steps requested above this limit are dropped.
+     */
+    public void setMaxSteps(int maxSteps) {
+        mMaxSteps = maxSteps;
+    }
+
+    /**
+     * Returns the duration (in nanoseconds) of the last batch of steps run by the worker, i.e.
+     * the simulation part of the frame time.
+     */
+    public long getBatchNanos() {
+        return mBatchNanos;
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        super.setSize(width, height);
+        pause();
+        mEngine.setSize(width, height);
+        resume();
+    }
+
+    @Override
+    public void rescale(int width, int height) {
+        super.setSize(width, height);
+        pause();
+        mEngine.rescale(width, height);
+        // Same as initParticles, publish the rescaled state right away.
+        publish();
+        resume();
+    }
+
+    @Override
+    public void setColorRamp(ColorRamp colorRamp) {
+        super.setColorRamp(colorRamp);
+        pause();
+        mEngine.setColorRamp(colorRamp);
+        resume();
+    }
+
+    @Override
+    public void setForceCoefs(float attractionCoef, float dragCoef) {
+        super.setForceCoefs(attractionCoef, dragCoef);
+        pause();
+        mEngine.setForceCoefs(attractionCoef, dragCoef);
+        resume();
+    }
+
+    @Override
+    public void setForceModel(ForceModel model, float[] params) {
+        super.setForceModel(model, params);
+        pause();
+        mEngine.setForceModel(model, params);
+        resume();
+    }
+
+    @Override
+    public void setReorderInterval(int interval) {
+        super.setReorderInterval(interval);
+        pause();
+        mEngine.setReorderInterval(interval);
+        resume();
+    }
+
+    @Override
+    public void setLaunchSize(int launchSize) {
+        super.setLaunchSize(launchSize);
+        pause();
+        mEngine.setLaunchSize(launchSize);
+        resume();
+    }
+
+    @Override
+    public void setInitStep(int count) {
+        super.setInitStep(count);
+        pause();
+        mEngine.setInitStep(count);
+        resume();
+    }
+
+    @Override
+    public void setTimeScale(float timeScale) {
+        super.setTimeScale(timeScale);
+        pause();
+        mEngine.setTimeScale(timeScale);
+        resume();
+    }
+
+    @Override
+    public void setSpeedOutput(boolean speedOutput) {
+        super.setSpeedOutput(speedOutput);
+        pause();
+        mEngine.setSpeedOutput(speedOutput);
+        resume();
+    }
+
+    @Override
+    public void setActiveCount(int count) {
+        super.setActiveCount(count);
+        mPendingActiveCount.set(mActiveCount);
+    }
+
+    @Override
+    public int getActiveCount() {
+        // Number of particles of the state being drawn.
+        return mActiveCounts[mFront];
+    }
+
+    @Override
+    public void allocate(int partCount, int numTouch) {
+        pause();
+        mEngine.allocate(partCount, numTouch);
+        mPartCount = partCount;
+        mActiveCount = partCount;
+        mNumTouch = numTouch;
+        allocateSlots();
+        resume();
+    }
+
+    @Override
+    public void setDeterministic(boolean deterministic, int seed) {
+        super.setDeterministic(deterministic, seed);
+        pause();
+        mEngine.setDeterministic(deterministic, seed);
+        resume();
+    }
+
+    // The steps are run by mEngine, and the steps above the maximum of a batch are dropped (Cf.
+    // setMaxSteps): the number of updates may be greater than the number of steps.
+    @Override
+    public int getStep() {
+        pause();
+        int step = mEngine.getStep();
+        resume();
+        return step;
+    }
+
+    @Override
+    public void resize(int partCount, int numTouch) {
+        pause();
+        mEngine.resize(partCount, numTouch);
+        mPartCount = partCount;
+        mActiveCount = partCount;
+        mNumTouch = numTouch;
+        allocateSlots();
+        // Act as the producer (Cf. initParticles) so that the kept particles are drawn right away.
+        publish();
+        resume();
+    }
+
+    // The callers hold the lock of the simulation: they take turns as the producer of
+    // mPendingTouch, and the worker is its consumer.
+    @Override
+    public void setTouch(float[] touchPos) {
+        mPendingTouch.publish(touchPos, -1, 0);
+    }
+
+    @Override
+    public void saveState(FloatBuffer position, FloatBuffer delta) {
+        pause();
+        mEngine.saveState(position, delta);
+        resume();
+    }
+
+    @Override
+    public void restoreState(FloatBuffer position, FloatBuffer delta) {
+        pause();
+        mEngine.restoreState(position, delta);
+        // Same as initParticles, publish the restored state right away.
+        publish();
+        resume();
+    }
+
+    @Override
+    public void initParticles() {
+        pause();
+        mEngine.initParticles();
+        // The worker is paused: act as the producer and publish the initial state right away.
+        publish();
+        resume();
+    }
+
+    /**
+     * Never called: initParticles and update are forwarded as a whole, and the wrapped engine
+     * initializes its particles itself.
+     */
+    @Override
+    protected void initRange(int from, int to) {
+    }
+
+    @Override
+    public void update() {
+        mPendingSteps.incrementAndGet();
+        LockSupport.unpark(mWorker);
+    }
+
+    @Override
+    public void acquireOutput() {
+        if ((mMiddle.get() & FRESH) != 0) {
+            mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        }
+    }
+
+    @Override
+    public FloatBuffer readPositions() {
+        FloatBuffer buffer = mPositionBuffers[mFront];
+        buffer.position(0);
+        return buffer;
+    }
+
+    @Override
+    public FloatBuffer readColors() {
+        FloatBuffer buffer = mOutputBuffers[mFront];
+        buffer.position(0);
+        return buffer;
+    }
+
+    @Override
+    public FloatBuffer readSpeeds() {
+        FloatBuffer buffer = mOutputBuffers[mFront];
+        buffer.position(0);
+        return buffer;
+    }
+
+    @Override
+    public void destroy() {
+        mQuit = true;
+        LockSupport.unpark(mWorker);
+        boolean interrupted = false;
+        while (mWorker.isAlive()) {
+            try {
+                mWorker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mEngine.destroy();
+    }
+
+    /**
+     * (Re)allocate the slots for the current number of particles and output mode.
+     * The worker must be paused.
+     */
+    private void allocateSlots() {
+        mPendingActiveCount.set(-1);
+        mPendingSteps.set(0);
+        // The number of attraction points may have changed: drop the pending ones.
+        mPendingTouch = new TouchHandoff(ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS);
+        mWorkerTouch = new float[2 * mNumTouch];
+        int outputSize = mSpeedOutput ? mPartCount : 4 * mPartCount;
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            mPositions[i] = new float[2 * mPartCount];
+            mOutputs[i] = new float[outputSize];
+            mActiveCounts[i] = 0;
+        }
+        wrapSlots();
+    }
+
+    private void wrapSlots() {
+        for (int i = 0; i < NUM_SLOTS; i++) {
+            mPositionBuffers[i] = FloatBuffer.wrap(mPositions[i]);
+            mOutputBuffers[i] = FloatBuffer.wrap(mOutputs[i]);
+        }
+    }
+
+    /**
+     * Wait until the worker is idle and keep it idle until resume is called.
+     */
+    private void pause() {
+        // mPauser must be set before mPaused (Cf. setIdle).
+        mPauser = Thread.currentThread();
+        mPaused = true;
+        while (mWorking) {
+            LockSupport.park(this);
+        }
+        mPauser = null;
+    }
+
+    private void resume() {
+        mPaused = false;
+        LockSupport.unpark(mWorker);
+    }
+
+    /**
+     * Copy the output of the engine in the back slot and swap it with the middle one.
+     * Must only be called by the producer, i.e. the worker or a thread which paused it.
+     */
+    private void publish() {
+        mEngine.copyOutput(mPositions[mBack], mOutputs[mBack]);
+        mActiveCounts[mBack] = mEngine.getActiveCount();
+        mBack = mMiddle.getAndSet(mBack | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Flag the worker as idle, and wake up the thread waiting for it in pause, if any. Either
+     * this sees mPaused set, or pause sees mWorking cleared.
+     */
+    private void setIdle() {
+        mWorking = false;
+        if (mPaused) {
+            LockSupport.unpark(mPauser);
+        }
+    }
+
+    private void runWorker() {
+        while (!mQuit) {
+            // mWorking must be set before checking mPaused (Cf. pause).
+            mWorking = true;
+            int steps = mPaused ? 0 : mPendingSteps.getAndSet(0);
+            if (steps == 0) {
+                setIdle();
+                LockSupport.park(this);
+                continue;
+            }
+            long start = System.nanoTime();
+            if (mPendingTouch.poll(mWorkerTouch)) {
+                mEngine.setTouch(mWorkerTouch);
+            }
+            int activeCount = mPendingActiveCount.getAndSet(-1);
+            if (activeCount >= 0) {
+                mEngine.setActiveCount(activeCount);
+            }
+            steps = Math.min(steps, mMaxSteps);
+            for (int i = 0; i < steps; i++) {
+                mEngine.update();
+            }
+            publish();
+            mBatchNanos = System.nanoTime() - start;
+            setIdle();
+        }
+    }
+}
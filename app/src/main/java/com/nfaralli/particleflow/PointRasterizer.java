@@ -0,0 +1,374 @@
+package com.nfaralli.particleflow;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Software version of ParticlesRenderer.drawParticles, for the machines without a GPU (e.g. to
+ * export frames on a build server, Cf. FrameExport in the benchmark module).
+ * Draws the same square points as the shaders of the renderer: with the same MVP matrix, a point
+ * of size s at (x, y) in the simulation covers the pixels whose center is within the s x s square
+ * centered at (x, y) scaled to the frame. Like GL, it drops the points whose center is out of the
+ * frame, and draws the particles in order (the last one wins). In speed output mode, the color
+ * ramp is interpolated linearly between ColorRamp.TEXTURE_SIZE colors, as the ramp texture.
+ *
+ * The frame is split into tiles of TILE_SIZE x TILE_SIZE pixels. The particles are first binned
+ * into the tiles they cover (a counting sort, in parallel over ranges of particles, which keeps
+ * the particles of each tile in order), then the tiles are drawn in parallel. Each pixel is only
+ * written by the thread drawing its tile, without any lock.
+ * Like the engines, it does not depend on any Android class.
+ */
+public class PointRasterizer {
+
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    // Maximum width and height of the frame: the bounds of a point are packed on 16 bits.
+    private static final int MAX_SIZE = 0xFFFF;
+    // Minimum number of particles binned by a single task, and number of tiles drawn by a task.
+    private static final int MIN_CHUNK_SIZE = 16384;
+    private static final int TILES_PER_TASK = 4;
+    private static final int COUNT = 0;
+    private static final int SCATTER = 1;
+    private static final int DRAW = 2;
+
+    private final ForkJoinPool mPool;
+
+    // Frame, ARGB, row by row from the top.
+    private int mWidth;
+    private int mHeight;
+    private int[] mPixels = new int[0];
+    private int mTilesX;
+    private int mTilesY;
+    private int mBackground = 0xFF000000;
+    private float mPointSize = 1;
+    // Colors of the ramp texture (ARGB), Cf. ParticlesRenderer.uploadColorRamp.
+    private ColorRamp mColorRamp;
+    private final int[] mRamp = new int[ColorRamp.TEXTURE_SIZE];
+
+    // Input of the current frame. Copies of the engine output if it isn't backed by an array.
+    private float[] mPosition;
+    private float[] mOutput;
+    private boolean mSpeedOutput;
+    private int mCount;
+    private float mScaleX;
+    private float mScaleY;
+    private float[] mPositionCopy = new float[0];
+    private float[] mOutputCopy = new float[0];
+    // Pixels covered by each particle: x0, x1, y0 and y1 (ends excluded, y from the top) packed
+    // 16 bits each, 0 if it isn't drawn.
+    private long[] mBounds = new long[0];
+    // Particles are binned by chunks of mChunkSize. mChunkCounts[c * numTiles + t] is the number
+    // of particles of chunk c covering tile t, then the index in mBins of its first particle.
+    private int mNumChunks;
+    private int mChunkSize;
+    private int[] mChunkCounts = new int[0];
+    // The particles covering tile t are mBins[mBinStart[t]] to mBins[mBinStart[t + 1] - 1].
+    private int[] mBinStart = new int[0];
+    private int[] mBins = new int[0];
+
+    public PointRasterizer(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Set the size of the frame, i.e. of the viewport. The simulation is scaled to the whole
+     * frame, as by ParticlesRenderer.updateProjection.
+     */
+    public void setSize(int width, int height) {
+        if (width <= 0 || height <= 0 || width > MAX_SIZE || height > MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mPixels = new int[width * height];
+        mTilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        mTilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        mBinStart = new int[mTilesX * mTilesY + 1];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the frame drawn by the last call to draw: getWidth() * getHeight() ARGB colors, row
+     * by row from the top. Belongs to the rasterizer, and is overwritten by the next draw.
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    /**
+     * Set the background color (as defined by android.graphics.Color, alpha is ignored).
+     */
+    public void setBackground(int color) {
+        mBackground = 0xFF000000 | color;
+    }
+
+    /**
+     * Set the size of the points, in pixels. Same as the ParticleSize preference.
+     */
+    public void setPointSize(float size) {
+        // Same as GL: the size is clamped to the aliased point size range, which starts at 1.
+        mPointSize = Math.max(size, 1);
+    }
+
+    /**
+     * Set the colors used when the engine only outputs the speed coefficients.
+     */
+    public void setColorRamp(ColorRamp colorRamp) {
+        if (colorRamp == mColorRamp) {
+            return;
+        }
+        mColorRamp = colorRamp;
+        for (int i = 0; i < ColorRamp.TEXTURE_SIZE; i++) {
+            mRamp[i] = colorRamp.getArgb(i / (float) (ColorRamp.TEXTURE_SIZE - 1));
+        }
+    }
+
+    /**
+     * Draw the current output of engine (positions and colors or speed coefficients of its active
+     * particles) into the frame. Same as ParticlesRenderer.drawParticles, glClear included.
+     * The engine must not be updated meanwhile.
+     */
+    public void draw(ParticleEngine engine) {
+        mCount = engine.getActiveCount();
+        mSpeedOutput = engine.isSpeedOutput();
+        mScaleX = mWidth / (float) engine.getWidth();
+        mScaleY = mHeight / (float) engine.getHeight();
+        mPosition = getArray(engine.readPositions(), 2 * mCount, false);
+        mOutput = getArray(mSpeedOutput ? engine.readSpeeds() : engine.readColors(),
+                (mSpeedOutput ? 1 : 4) * mCount, true);
+        if (mBounds.length < mCount) {
+            mBounds = new long[mCount];
+        }
+        int numTiles = mTilesX * mTilesY;
+        mChunkSize = Math.max(MIN_CHUNK_SIZE, mCount / (4 * mPool.getParallelism()) + 1);
+        mNumChunks = (mCount + mChunkSize - 1) / mChunkSize;
+        if (mChunkCounts.length < mNumChunks * numTiles) {
+            mChunkCounts = new int[mNumChunks * numTiles];
+        }
+        Arrays.fill(mChunkCounts, 0, mNumChunks * numTiles, 0);
+        mPool.invoke(new PassTask(COUNT, 0, mNumChunks));
+        // Turn the counts into the start of each chunk in each tile: tile by tile, then chunk by
+        // chunk so that the particles of a tile stay in order.
+        int start = 0;
+        for (int t = 0; t < numTiles; t++) {
+            mBinStart[t] = start;
+            for (int c = 0; c < mNumChunks; c++) {
+                int count = mChunkCounts[c * numTiles + t];
+                mChunkCounts[c * numTiles + t] = start;
+                start += count;
+            }
+        }
+        mBinStart[numTiles] = start;
+        if (mBins.length < start) {
+            mBins = new int[start + start / 8];
+        }
+        mPool.invoke(new PassTask(SCATTER, 0, mNumChunks));
+        mPool.invoke(new PassTask(DRAW, 0, numTiles));
+        mPosition = null;
+        mOutput = null;
+    }
+
+    /**
+     * Returns the array backing buffer, or a copy of its first size floats.
+     */
+    private float[] getArray(FloatBuffer buffer, int size, boolean output) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0) {
+            return buffer.array();
+        }
+        float[] copy = output ? mOutputCopy : mPositionCopy;
+        if (copy.length < size) {
+            copy = new float[size];
+            if (output) {
+                mOutputCopy = copy;
+            } else {
+                mPositionCopy = copy;
+            }
+        }
+        buffer.position(0);
+        buffer.get(copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Compute the bounds of the particles of chunk c, and count them in each tile they cover.
+     */
+    private void countChunk(int c) {
+        int numTiles = mTilesX * mTilesY;
+        int offset = c * numTiles;
+        int from = c * mChunkSize;
+        int to = Math.min(from + mChunkSize, mCount);
+        float half = mPointSize / 2;
+        float x, y;
+        int x0, x1, y0, y1;
+        for (int i = from; i < to; i++) {
+            // Window coordinates (y from the top). The points whose center is out of the frame are
+            // clipped.
+            x = mPosition[2 * i] * mScaleX;
+            y = mHeight - mPosition[2 * i + 1] * mScaleY;
+            if (!(x >= 0 && x <= mWidth && y >= 0 && y <= mHeight)) {
+                mBounds[i] = 0;
+                continue;
+            }
+            // Pixel columns whose center is within [x - half, x + half), and rows within
+            // (y - half, y + half] (the GL rows go from the bottom).
+            x0 = Math.max(ceil(x - half - 0.5f), 0);
+            x1 = Math.min(ceil(x + half - 0.5f), mWidth);
+            y0 = Math.max(floor(y - half - 0.5f) + 1, 0);
+            y1 = Math.min(floor(y + half - 0.5f) + 1, mHeight);
+            if (x0 >= x1 || y0 >= y1) {
+                mBounds[i] = 0;
+                continue;
+            }
+            mBounds[i] = x0 | ((long) x1 << 16) | ((long) y0 << 32) | ((long) y1 << 48);
+            for (int ty = y0 >> TILE_SHIFT; ty <= (y1 - 1) >> TILE_SHIFT; ty++) {
+                for (int tx = x0 >> TILE_SHIFT; tx <= (x1 - 1) >> TILE_SHIFT; tx++) {
+                    mChunkCounts[offset + ty * mTilesX + tx]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the particles of chunk c to the bins of the tiles they cover.
+     */
+    private void scatterChunk(int c) {
+        int offset = c * mTilesX * mTilesY;
+        int from = c * mChunkSize;
+        int to = Math.min(from + mChunkSize, mCount);
+        long bounds;
+        int x0, x1, y0, y1;
+        for (int i = from; i < to; i++) {
+            bounds = mBounds[i];
+            if (bounds == 0) {
+                continue;
+            }
+            x0 = (int) bounds & 0xFFFF;
+            x1 = (int) (bounds >>> 16) & 0xFFFF;
+            y0 = (int) (bounds >>> 32) & 0xFFFF;
+            y1 = (int) (bounds >>> 48);
+            for (int ty = y0 >> TILE_SHIFT; ty <= (y1 - 1) >> TILE_SHIFT; ty++) {
+                for (int tx = x0 >> TILE_SHIFT; tx <= (x1 - 1) >> TILE_SHIFT; tx++) {
+                    mBins[mChunkCounts[offset + ty * mTilesX + tx]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Clear tile t and draw its particles.
+     */
+    private void drawTile(int t) {
+        int tileX0 = (t % mTilesX) << TILE_SHIFT;
+        int tileY0 = (t / mTilesX) << TILE_SHIFT;
+        int tileX1 = Math.min(tileX0 + TILE_SIZE, mWidth);
+        int tileY1 = Math.min(tileY0 + TILE_SIZE, mHeight);
+        int[] pixels = mPixels;
+        for (int y = tileY0; y < tileY1; y++) {
+            Arrays.fill(pixels, y * mWidth + tileX0, y * mWidth + tileX1, mBackground);
+        }
+        long bounds;
+        int i, color, x0, x1, y0, y1;
+        for (int k = mBinStart[t]; k < mBinStart[t + 1]; k++) {
+            i = mBins[k];
+            bounds = mBounds[i];
+            x0 = Math.max((int) bounds & 0xFFFF, tileX0);
+            x1 = Math.min((int) (bounds >>> 16) & 0xFFFF, tileX1);
+            y0 = Math.max((int) (bounds >>> 32) & 0xFFFF, tileY0);
+            y1 = Math.min((int) (bounds >>> 48), tileY1);
+            color = mSpeedOutput ? getRampColor(mOutput[i])
+                    : 0xFF000000 | (toByte(mOutput[4 * i]) << 16)
+                            | (toByte(mOutput[4 * i + 1]) << 8) | toByte(mOutput[4 * i + 2]);
+            if (x1 - x0 == 1) {
+                // Most common case: points of size 1.
+                for (int y = y0; y < y1; y++) {
+                    pixels[y * mWidth + x0] = color;
+                }
+            } else {
+                for (int y = y0; y < y1; y++) {
+                    for (int p = y * mWidth + x0; p < y * mWidth + x1; p++) {
+                        pixels[p] = color;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the color of the ramp texture for the speed coefficient coef, with a linear filter.
+     */
+    private int getRampColor(float coef) {
+        float t = Math.max(0, Math.min(coef, 1)) * (ColorRamp.TEXTURE_SIZE - 1);
+        int k = Math.min((int) t, ColorRamp.TEXTURE_SIZE - 2);
+        float f = t - k;
+        int c0 = mRamp[k];
+        int c1 = mRamp[k + 1];
+        return 0xFF000000
+                | (lerp((c0 >> 16) & 0xFF, (c1 >> 16) & 0xFF, f) << 16)
+                | (lerp((c0 >> 8) & 0xFF, (c1 >> 8) & 0xFF, f) << 8)
+                | lerp(c0 & 0xFF, c1 & 0xFF, f);
+    }
+
+    private static int lerp(int a, int b, float f) {
+        return (int) (a + f * (b - a) + 0.5f);
+    }
+
+    // Conversion of a color component to 8 bits, as done by GL when writing to the framebuffer.
+    private static int toByte(float c) {
+        return c <= 0 ? 0 : c >= 1 ? 255 : (int) (c * 255 + 0.5f);
+    }
+
+    private static int floor(float v) {
+        int i = (int) v;
+        return v < i ? i - 1 : i;
+    }
+
+    private static int ceil(float v) {
+        int i = (int) v;
+        return v > i ? i + 1 : i;
+    }
+
+    /**
+     * Task running one of the passes of draw over a range of chunks (COUNT, SCATTER) or of tiles
+     * (DRAW), split in halves until it is small enough.
+     */
+    private class PassTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mPass;
+        private final int mFrom;
+        private final int mTo;
+
+        PassTask(int pass, int from, int to) {
+            mPass = pass;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > (mPass == DRAW ? TILES_PER_TASK : 1)) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new PassTask(mPass, mFrom, mid), new PassTask(mPass, mid, mTo));
+                return;
+            }
+            for (int k = mFrom; k < mTo; k++) {
+                if (mPass == COUNT) {
+                    countChunk(k);
+                } else if (mPass == SCATTER) {
+                    scatterChunk(k);
+                } else {
+                    drawTile(k);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package com.nfaralli.particleflow;
+
+import java.nio.FloatBuffer;
+
+import android.content.Context;
+import android.support.v8.renderscript.*;
+
+/**
+ * Engine running the particleflow script with renderscript.
+ */
+public class RSParticleEngine extends ParticleEngine {
+
+    private RenderScript mRS;
+    private ScriptC_particleflow mScript;
+    private Allocation touch;
+    // Position and velocity of the particles, packed (x, y, dx, dy): input and output of the
+    // kernels, which update it in place. The kernels also store the color or speed coefficient of
+    // each particle (Cf. storeOutput in particleflow.rs).
+    private Allocation state;
+    private Allocation color;
+    private Allocation speed;
+    private Allocation colorRampTable;
+    // Uniform grid of ForceModel.NEIGHBORS (Cf. particleflow.rs), null until needed.
+    private Allocation cellStart;
+    private Allocation cellOf;
+    private Allocation sortedPosition;
+    private int mGridWidth;
+    private int mGridHeight;
+    // Tables of ForceModel.TURBULENCE (Cf. ParticleEngine.fillTurbulence), and their copies,
+    // null until needed.
+    private Allocation turbulenceX;
+    private Allocation turbulenceY;
+    private float[] turbX;
+    private float[] turbY;
+    // Ranges of particles given to each launch of the kernels, {null} for a single launch over
+    // all of them (Cf. setLaunchSize).
+    private Script.LaunchOptions[] mLaunches = {null};
+    // Number of particles covered by mLaunches, updated when the number of active particles
+    // changes (Cf. update).
+    private int mLaunchCount;
+    // Single launch over the active particles, building the grid of ForceModel.NEIGHBORS.
+    private Script.LaunchOptions mGridLaunch;
+    // Copy of the state Allocation (also holding the positions extracted from it, Cf.
+    // readPositions), copies of the color and speed Allocations, and buffers wrapping them.
+    private float[] st;
+    private float[] col;
+    private float[] spd;
+    private FloatBuffer mPosBuffer;
+    private FloatBuffer mColBuffer;
+    private FloatBuffer mSpdBuffer;
+
+    public RSParticleEngine(Context context) {
+        mRS = RenderScript.create(context);
+        mScript = new ScriptC_particleflow(mRS);
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        super.setSize(width, height);
+        mScript.set_width(width);
+        mScript.set_height(height);
+    }
+
+    @Override
+    public void setColorRamp(ColorRamp colorRamp) {
+        super.setColorRamp(colorRamp);
+        if (colorRampTable == null) {
+            colorRampTable = Allocation.createSized(mRS, Element.F32_4(mRS),
+                    ColorRamp.TABLE_SIZE);
+            mScript.bind_colorRamp(colorRampTable);
+            mScript.set_colorRampMaxIndex(ColorRamp.TABLE_SIZE - 1);
+        }
+        colorRampTable.copyFrom(colorRamp.getTable());
+        mScript.set_colorRampScale(colorRamp.getScale());
+    }
+
+    @Override
+    public void setForceCoefs(float attractionCoef, float dragCoef) {
+        super.setForceCoefs(attractionCoef, dragCoef);
+        updateForceCoefs();
+    }
+
+    @Override
+    public void setForceModel(ForceModel model, float[] params) {
+        super.setForceModel(model, params);
+        updateForceCoefs();
+    }
+
+    @Override
+    public void setTimeScale(float timeScale) {
+        super.setTimeScale(timeScale);
+        updateForceCoefs();
+    }
+
+    /**
+     * Give the script the force coefficients scaled to the duration of an update.
+     */
+    private void updateForceCoefs() {
+        mScript.set_f01AttractionCoef(mAttractionCoef * mTimeScale);
+        mScript.set_f01DragCoef((float) Math.pow(mDragCoef, mTimeScale));
+        mScript.set_timeScale(mTimeScale);
+        // Only the globals of the current model are used.
+        switch (mForceModel.getId()) {
+            case ForceModel.NEIGHBORS:
+                mScript.set_neighborCoef(mForceParams[ForceModel.NEIGHBOR_COEF] * mTimeScale);
+                mScript.set_neighborRadius(mForceParams[ForceModel.NEIGHBOR_RADIUS]);
+                break;
+            case ForceModel.VORTEX:
+                mScript.set_vortexSwirlCoef(mForceParams[ForceModel.VORTEX_SWIRL] * mTimeScale);
+                break;
+            case ForceModel.REPULSOR:
+                float radius = mForceParams[ForceModel.REPULSOR_RADIUS];
+                mScript.set_repulsorSqRadius(radius * radius);
+                break;
+        }
+    }
+
+    /**
+     * Compute the tables of ForceModel.TURBULENCE for this update, (re)allocated if the size of
+     * the screen changed.
+     */
+    private void updateTurbulence() {
+        if (turbulenceX == null || turbX.length != mHeight + 1 || turbY.length != mWidth + 1) {
+            turbX = new float[mHeight + 1];
+            turbY = new float[mWidth + 1];
+            turbulenceX = Allocation.createSized(mRS, Element.F32(mRS), mHeight + 1);
+            turbulenceY = Allocation.createSized(mRS, Element.F32(mRS), mWidth + 1);
+            mScript.bind_turbulenceX(turbulenceX);
+            mScript.bind_turbulenceY(turbulenceY);
+        }
+        fillTurbulence(turbX, turbY);
+        turbulenceX.copyFrom(turbX);
+        turbulenceY.copyFrom(turbY);
+    }
+
+    /**
+     * (Re)allocate the grid of ForceModel.NEIGHBORS if the number of cells or of particles changed.
+     */
+    private void updateGrid() {
+        float radius = mForceParams[ForceModel.NEIGHBOR_RADIUS];
+        int gridWidth = Math.max(1, (int) Math.ceil(mWidth / radius));
+        int gridHeight = Math.max(1, (int) Math.ceil(mHeight / radius));
+        if (cellStart == null || gridWidth != mGridWidth || gridHeight != mGridHeight) {
+            mGridWidth = gridWidth;
+            mGridHeight = gridHeight;
+            // Cf. NeighborGrid.setSize.
+            cellStart = Allocation.createSized(mRS, Element.I32(mRS), gridWidth * gridHeight + 3);
+            mScript.bind_cellStart(cellStart);
+            mScript.set_gridWidth(gridWidth);
+            mScript.set_gridHeight(gridHeight);
+        }
+        if (cellOf == null) {
+            cellOf = Allocation.createSized(mRS, Element.I32(mRS), mPartCount);
+            sortedPosition = Allocation.createSized(mRS, Element.F32_2(mRS), mPartCount);
+            mScript.bind_cellOf(cellOf);
+            mScript.bind_sortedPosition(sortedPosition);
+        }
+    }
+
+    @Override
+    public void allocate(int partCount, int numTouch) {
+        mPartCount = partCount;
+        mActiveCount = partCount;
+        mInitCount = partCount;
+        updateLaunches();
+        mNumTouch = numTouch;
+        // The grid is reallocated for the new number of particles in the next update.
+        cellOf = null;
+        sortedPosition = null;
+        touch = Allocation.createSized(mRS, Element.F32_2(mRS), numTouch);
+        state = Allocation.createSized(mRS, Element.F32_4(mRS), partCount);
+        mScript.bind_gTouch(touch);
+        mScript.set_speedOutput(mSpeedOutput ? 1 : 0);
+        st = new float[4 * partCount];
+        mPosBuffer = FloatBuffer.wrap(st);
+        if (mSpeedOutput) {
+            speed = Allocation.createSized(mRS, Element.F32(mRS), partCount);
+            mScript.set_speed(speed);
+            spd = new float[partCount];
+            mSpdBuffer = FloatBuffer.wrap(spd);
+            color = null;
+            col = null;
+        } else {
+            color = Allocation.createSized(mRS, Element.F32_4(mRS), partCount);
+            mScript.set_color(color);
+            col = new float[4 * partCount];
+            mColBuffer = FloatBuffer.wrap(col);
+            speed = null;
+            spd = null;
+        }
+    }
+
+    @Override
+    public void resize(int partCount, int numTouch) {
+        // The particles still to initialize are initialized along with the new ones.
+        int kept = Math.min(mInitCount, partCount);
+        // Read back the state to keep before the Allocations are replaced.
+        float[] oldState = st;
+        float[] oldOutput = null;
+        float[] oldTouch = null;
+        if (kept > 0) {
+            state.copyTo(oldState);
+            // The outputs are only worth keeping if the output mode didn't change.
+            if (mSpeedOutput && speed != null) {
+                speed.copyTo(spd);
+                oldOutput = spd;
+            } else if (!mSpeedOutput && color != null) {
+                color.copyTo(col);
+                oldOutput = col;
+            }
+        }
+        if (numTouch == mNumTouch && touch != null) {
+            oldTouch = new float[2 * numTouch];
+            touch.copyTo(oldTouch);
+        }
+        allocate(partCount, numTouch);
+        if (kept > 0) {
+            state.copy1DRangeFrom(0, kept, oldState);
+            if (oldOutput != null) {
+                (mSpeedOutput ? speed : color).copy1DRangeFrom(0, kept, oldOutput);
+            }
+        }
+        if (oldTouch != null) {
+            touch.copyFrom(oldTouch);
+        }
+        mInitCount = kept;
+        initPending();
+    }
+
+    @Override
+    public void setLaunchSize(int launchSize) {
+        super.setLaunchSize(launchSize);
+        updateLaunches();
+    }
+
+    /**
+     * Split the active particles into launches of mLaunchSize particles.
+     */
+    private void updateLaunches() {
+        int activeCount = getActiveCount();
+        mLaunchCount = activeCount;
+        mGridLaunch = activeCount == mPartCount
+                ? null : new Script.LaunchOptions().setX(0, activeCount);
+        if (mLaunchSize <= 0 || mLaunchSize >= activeCount) {
+            mLaunches = new Script.LaunchOptions[] {activeCount == mPartCount
+                    ? null : new Script.LaunchOptions().setX(0, activeCount)};
+            return;
+        }
+        mLaunches = new Script.LaunchOptions[(activeCount + mLaunchSize - 1) / mLaunchSize];
+        for (int i = 0; i < mLaunches.length; i++) {
+            mLaunches[i] = new Script.LaunchOptions().setX(i * mLaunchSize,
+                    Math.min(activeCount, (i + 1) * mLaunchSize));
+        }
+    }
+
+    @Override
+    public void setTouch(float[] touchPos) {
+        touch.copyFrom(touchPos);
+    }
+
+    // The state is only copied to the CPU here and in resize: its copy is not kept.
+    @Override
+    public void saveState(FloatBuffer position, FloatBuffer delta) {
+        completeInit();
+        state.copyTo(st);
+        for (int i = 0; i < mPartCount; i++) {
+            position.put(st[4 * i]);
+            position.put(st[4 * i + 1]);
+            delta.put(st[4 * i + 2]);
+            delta.put(st[4 * i + 3]);
+        }
+    }
+
+    @Override
+    public void restoreState(FloatBuffer position, FloatBuffer delta) {
+        for (int i = 0; i < mPartCount; i++) {
+            st[4 * i] = position.get();
+            st[4 * i + 1] = position.get();
+            st[4 * i + 2] = delta.get();
+            st[4 * i + 3] = delta.get();
+        }
+        state.copyFrom(st);
+        mInitCount = mPartCount;
+    }
+
+    /**
+     * Same as ParticleEngine.rescale, in place with the rescaleParticles kernel, which also
+     * recomputes the colors (or speed coefficients). The particles still to initialize are
+     * initialized for the new size.
+     */
+    @Override
+    public void rescale(int width, int height) {
+        if (mWidth > 0 && mHeight > 0 && mInitCount > 0) {
+            mScript.set_rescaleX(width / (float) mWidth);
+            mScript.set_rescaleY(height / (float) mHeight);
+            Script.LaunchOptions launch = mInitCount == mPartCount
+                    ? null : new Script.LaunchOptions().setX(0, mInitCount);
+            mScript.forEach_rescaleParticles(state, state, launch);
+        }
+        setSize(width, height);
+    }
+
+    /**
+     * Initialize the particles [from, to) with the initParticles kernel, in parallel.
+     */
+    @Override
+    protected void initRange(int from, int to) {
+        mScript.set_seed(mSeed);
+        Script.LaunchOptions launch = new Script.LaunchOptions().setX(from, to);
+        mScript.forEach_initParticles(state, launch);
+    }
+
+    @Override
+    public void update() {
+        initPending();
+        int activeCount = getActiveCount();
+        if (activeCount == 0) {
+            return;
+        }
+        if (activeCount != mLaunchCount) {
+            updateLaunches();
+        }
+        // Keys of the random numbers of this update (Cf. ParticleRandom).
+        mScript.set_seed(mSeed);
+        mScript.set_step(mStep);
+        if (mForceModel.getId() == ForceModel.NEIGHBORS) {
+            updateGrid();
+            mScript.invoke_clearGrid();
+            mScript.forEach_countCells(state, cellOf, mGridLaunch);
+            mScript.invoke_scanGrid();
+            mScript.forEach_sortCells(state, mGridLaunch);
+        } else if (mForceModel.getId() == ForceModel.TURBULENCE) {
+            updateTurbulence();
+        }
+        for (Script.LaunchOptions launch : mLaunches) {
+            launchKernel(launch);
+        }
+        advanceTime();
+    }
+
+    /**
+     * Launch the kernel of the current model over the particles of launch, all of them if null,
+     * in place.
+     */
+    private void launchKernel(Script.LaunchOptions launch) {
+        switch (mForceModel.getId()) {
+            case ForceModel.NEIGHBORS:
+                mScript.forEach_updateParticlesNeighbors(state, state, launch);
+                break;
+            case ForceModel.VORTEX:
+                mScript.forEach_updateParticlesVortex(state, state, launch);
+                break;
+            case ForceModel.REPULSOR:
+                mScript.forEach_updateParticlesRepulsor(state, state, launch);
+                break;
+            case ForceModel.TURBULENCE:
+                mScript.forEach_updateParticlesTurbulence(state, state, launch);
+                break;
+            default:
+                mScript.forEach_updateParticlesAttraction(state, state, launch);
+                break;
+        }
+    }
+
+    // The support library cannot map an Allocation, so one copy is needed to get the data out of
+    // the script. Only the active particles are copied: the others are not drawn.
+    @Override
+    public FloatBuffer readPositions() {
+        copyPositions(st);
+        mPosBuffer.position(0);
+        return mPosBuffer;
+    }
+
+    @Override
+    public FloatBuffer readColors() {
+        copyOutput(color, col);
+        mColBuffer.position(0);
+        return mColBuffer;
+    }
+
+    @Override
+    public FloatBuffer readSpeeds() {
+        copyOutput(speed, spd);
+        mSpdBuffer.position(0);
+        return mSpdBuffer;
+    }
+
+    // Copy the Allocations directly into the destination arrays.
+    @Override
+    public void copyOutput(float[] position, float[] output) {
+        copyPositions(position);
+        if (mSpeedOutput) {
+            copyOutput(speed, output);
+        } else {
+            copyOutput(color, output);
+        }
+    }
+
+    /**
+     * Copy the positions of the active particles into position, through st.
+     */
+    private void copyPositions(float[] position) {
+        int count = getActiveCount();
+        if (count == 0) {
+            return;
+        }
+        state.copy1DRangeTo(0, count, st);
+        // Position i only overwrites the state of particles <= i / 2, which have already been
+        // read: position can be st itself, the positions are then packed at its beginning.
+        for (int i = 0; i < count; i++) {
+            position[2 * i] = st[4 * i];
+            position[2 * i + 1] = st[4 * i + 1];
+        }
+    }
+
+    /**
+     * Copy the outputs of allocation (color or speed) for the active particles into output.
+     */
+    private void copyOutput(Allocation allocation, float[] output) {
+        int count = getActiveCount();
+        if (count > 0) {
+            allocation.copy1DRangeTo(0, count, output);
+        }
+    }
+
+    /**
+     * Wait for the kernels launched so far to complete: update only queues them.
+     */
+    void finish() {
+        mRS.finish();
+    }
+
+    @Override
+    public void destroy() {
+        mScript.destroy();
+        mRS.destroy();
+    }
+}
@@ -2,24 +2,45 @@ package com.nfaralli.particleflow;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.FrameLayout;
 import android.widget.Spinner;
+import android.widget.TextView;
+import android.widget.Toast;
 
 public class SettingsView extends FrameLayout {
 
     private ValidatedEditText mNumParticles;
+    // Memory used by the particles with the current values, Cf. MemoryBudget.
+    private TextView mMemoryEstimate;
     private ValidatedEditText mParticleSize;
     private ValidatedEditText mNumAttPoints;
     private ValidatedEditText mF01Attraction;
     private ValidatedEditText mF01Drag;
+    private Spinner mForceModel;
+    private ForceModel[] mForceModels;
+    // Fields of the parameters of each force model. In the layout, each field is in a row tagged
+    // with the preference key of its parameter, only shown when its model is selected.
+    private ValidatedEditText[][] mForceParams;
     private ColorView mBGColor;
     private ColorView mSlowPColor;
     private ColorView mFastPColor;
     private GradientView mBGGradientView;
     private GradientView mPartGradientView;
     private Spinner mHueDirection;
+    private Spinner mColorMode;
+    private Spinner mRenderMode;
+    private Spinner mEngine;
+    private Spinner mPipelining;
+    private Spinner mReorderInterval;
+    private Spinner mTargetFps;
+    private Spinner mSimRate;
+    private ValidatedEditText mMaxSubsteps;
+    private Spinner mHud;
     private SharedPreferences mPrefs;
 
     public SettingsView(Context context) {
@@ -28,6 +49,7 @@ public class SettingsView extends FrameLayout {
         mNumParticles = (ValidatedEditText)findViewById(R.id.numParticles);
         mNumParticles.setMinValue(1);
         mNumParticles.setMaxValue(ParticlesSurfaceView.MAX_NUM_PARTICLES);
+        mMemoryEstimate = (TextView)findViewById(R.id.memoryEstimate);
         mParticleSize = (ValidatedEditText)findViewById(R.id.particleSize);
         mParticleSize.setMinValue(1);
         mParticleSize.setMaxValue(50);
@@ -40,12 +62,36 @@ public class SettingsView extends FrameLayout {
         mBGGradientView = (GradientView)findViewById(R.id.bgGradientView);
         mPartGradientView = (GradientView)findViewById(R.id.gradientView);
         mHueDirection = (Spinner)findViewById(R.id.hueDirection);
+        mColorMode = (Spinner)findViewById(R.id.colorMode);
+        mRenderMode = (Spinner)findViewById(R.id.renderMode);
         mF01Attraction = (ValidatedEditText)findViewById(R.id.f01_attraction);
         mF01Attraction.setMinValue(0);
         mF01Attraction.setMaxValue(1000);
         mF01Drag = (ValidatedEditText)findViewById(R.id.f01_drag);
         mF01Drag.setMinValue(0);
         mF01Drag.setMaxValue(100);
+        mForceModel = (Spinner)findViewById(R.id.forceModel);
+        mForceModels = ForceModel.getAll();
+        mForceParams = new ValidatedEditText[mForceModels.length][];
+        for (int m = 0; m < mForceModels.length; m++) {
+            ForceModel.Param[] params = mForceModels[m].getParams();
+            mForceParams[m] = new ValidatedEditText[params.length];
+            for (int i = 0; i < params.length; i++) {
+                ViewGroup row = (ViewGroup)findViewWithTag(params[i].getKey());
+                mForceParams[m][i] = (ValidatedEditText)row.getChildAt(1);
+                mForceParams[m][i].setMinValue(params[i].getMin());
+                mForceParams[m][i].setMaxValue(params[i].getMax());
+            }
+        }
+        mEngine = (Spinner)findViewById(R.id.engine);
+        mPipelining = (Spinner)findViewById(R.id.pipelining);
+        mReorderInterval = (Spinner)findViewById(R.id.reorderInterval);
+        mTargetFps = (Spinner)findViewById(R.id.targetFps);
+        mSimRate = (Spinner)findViewById(R.id.simRate);
+        mMaxSubsteps = (ValidatedEditText)findViewById(R.id.maxSubsteps);
+        mMaxSubsteps.setMinValue(1);
+        mMaxSubsteps.setMaxValue(ParticlesSurfaceView.MAX_MAX_SUBSTEPS);
+        mHud = (Spinner)findViewById(R.id.hud);
         mPrefs = context.getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME,
                 Context.MODE_PRIVATE);
 
@@ -82,6 +128,49 @@ public class SettingsView extends FrameLayout {
             public void onNothingSelected(AdapterView<?> parent) {
             }
         });
+        mForceModel.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                showForceParams(position);
+                updateMemoryEstimate();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        // The memory estimate follows the number of particles as it is typed, and all the
+        // settings changing the buffers of the particles.
+        mNumParticles.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateMemoryEstimate();
+            }
+        });
+        AdapterView.OnItemSelectedListener memoryListener =
+                new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                updateMemoryEstimate();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        };
+        mColorMode.setOnItemSelectedListener(memoryListener);
+        mRenderMode.setOnItemSelectedListener(memoryListener);
+        mEngine.setOnItemSelectedListener(memoryListener);
+        mPipelining.setOnItemSelectedListener(memoryListener);
+        mReorderInterval.setOnItemSelectedListener(memoryListener);
         findViewById(R.id.resetButton).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -104,10 +193,35 @@ public class SettingsView extends FrameLayout {
         mFastPColor.setColor(mPrefs.getInt("FastColor", ParticlesSurfaceView.DEFAULT_FAST_COLOR));
         mHueDirection.setSelection(mPrefs.getInt("HueDirection",
                 ParticlesSurfaceView.DEFAULT_HUE_DIRECTION));
+        mColorMode.setSelection(mPrefs.getInt("ColorMode",
+                ParticlesSurfaceView.DEFAULT_COLOR_MODE));
+        mRenderMode.setSelection(mPrefs.getInt("RenderMode",
+                ParticlesSurfaceView.DEFAULT_RENDER_MODE));
         mF01Attraction.setText(String.valueOf(mPrefs.getInt("F01Attraction",
                 ParticlesSurfaceView.DEFAULT_F01_ATTRACTION_COEF)));
         mF01Drag.setText(String.valueOf(mPrefs.getInt("F01Drag",
                 ParticlesSurfaceView.DEFAULT_F01_DRAG_COEF)));
+        mForceModel.setSelection(mPrefs.getInt("ForceModel",
+                ParticlesSurfaceView.DEFAULT_FORCE_MODEL));
+        for (int m = 0; m < mForceModels.length; m++) {
+            ForceModel.Param[] params = mForceModels[m].getParams();
+            for (int i = 0; i < params.length; i++) {
+                mForceParams[m][i].setText(String.valueOf(mPrefs.getInt(params[i].getKey(),
+                        params[i].getDefault())));
+            }
+        }
+        mEngine.setSelection(mPrefs.getInt("Engine", ParticlesSurfaceView.DEFAULT_ENGINE));
+        mPipelining.setSelection(mPrefs.getInt("Pipelining",
+                ParticlesSurfaceView.DEFAULT_PIPELINING));
+        mReorderInterval.setSelection(getPosition(ParticlesSurfaceView.REORDER_INTERVAL_VALUES,
+                mPrefs.getInt("ReorderInterval", ParticlesSurfaceView.DEFAULT_REORDER_INTERVAL)));
+        mTargetFps.setSelection(getPosition(ParticlesSurfaceView.TARGET_FPS_VALUES,
+                mPrefs.getInt("TargetFps", ParticlesSurfaceView.DEFAULT_TARGET_FPS)));
+        mSimRate.setSelection(getPosition(ParticlesSurfaceView.SIM_RATE_VALUES,
+                mPrefs.getInt("SimRate", ParticlesSurfaceView.DEFAULT_SIM_RATE)));
+        mMaxSubsteps.setText(String.valueOf(mPrefs.getInt("MaxSubsteps",
+                ParticlesSurfaceView.DEFAULT_MAX_SUBSTEPS)));
+        mHud.setSelection(mPrefs.getInt("Hud", ParticlesSurfaceView.DEFAULT_HUD));
     }
 
     public void loadDefaultValues() {
@@ -118,8 +232,27 @@ public class SettingsView extends FrameLayout {
         mSlowPColor.setColor(ParticlesSurfaceView.DEFAULT_SLOW_COLOR);
         mFastPColor.setColor(ParticlesSurfaceView.DEFAULT_FAST_COLOR);
         mHueDirection.setSelection(ParticlesSurfaceView.DEFAULT_HUE_DIRECTION);
+        mColorMode.setSelection(ParticlesSurfaceView.DEFAULT_COLOR_MODE);
+        mRenderMode.setSelection(ParticlesSurfaceView.DEFAULT_RENDER_MODE);
         mF01Attraction.setText(String.valueOf(ParticlesSurfaceView.DEFAULT_F01_ATTRACTION_COEF));
         mF01Drag.setText(String.valueOf(ParticlesSurfaceView.DEFAULT_F01_DRAG_COEF));
+        mForceModel.setSelection(ParticlesSurfaceView.DEFAULT_FORCE_MODEL);
+        for (int m = 0; m < mForceModels.length; m++) {
+            ForceModel.Param[] params = mForceModels[m].getParams();
+            for (int i = 0; i < params.length; i++) {
+                mForceParams[m][i].setText(String.valueOf(params[i].getDefault()));
+            }
+        }
+        mEngine.setSelection(ParticlesSurfaceView.DEFAULT_ENGINE);
+        mPipelining.setSelection(ParticlesSurfaceView.DEFAULT_PIPELINING);
+        mReorderInterval.setSelection(getPosition(ParticlesSurfaceView.REORDER_INTERVAL_VALUES,
+                ParticlesSurfaceView.DEFAULT_REORDER_INTERVAL));
+        mTargetFps.setSelection(getPosition(ParticlesSurfaceView.TARGET_FPS_VALUES,
+                ParticlesSurfaceView.DEFAULT_TARGET_FPS));
+        mSimRate.setSelection(getPosition(ParticlesSurfaceView.SIM_RATE_VALUES,
+                ParticlesSurfaceView.DEFAULT_SIM_RATE));
+        mMaxSubsteps.setText(String.valueOf(ParticlesSurfaceView.DEFAULT_MAX_SUBSTEPS));
+        mHud.setSelection(ParticlesSurfaceView.DEFAULT_HUD);
     }
 
     public void saveValues() {
@@ -129,16 +262,99 @@ public class SettingsView extends FrameLayout {
         if (focusedChild!= null) {
             focusedChild.clearFocus();
         }
+        // Don't let the user pick more particles than the device can hold: the app would crash
+        // with an OutOfMemoryError each time it starts.
+        int numParticles = Integer.parseInt(mNumParticles.getText().toString());
+        int maxParticles = getMemoryBudget().getMaxParticles();
+        if (numParticles > maxParticles) {
+            numParticles = maxParticles;
+            mNumParticles.setText(String.valueOf(numParticles));
+            Toast.makeText(getContext(), getContext().getString(R.string.num_particles_clamped,
+                    numParticles), Toast.LENGTH_LONG).show();
+        }
         SharedPreferences.Editor editor = mPrefs.edit();
-        editor.putInt("NumParticles", Integer.parseInt(mNumParticles.getText().toString()));
+        editor.putInt("NumParticles", numParticles);
         editor.putInt("ParticleSize", Integer.parseInt(mParticleSize.getText().toString()));
         editor.putInt("NumAttPoints", Integer.parseInt(mNumAttPoints.getText().toString()));
         editor.putInt("BGColor", mBGColor.getColor());
         editor.putInt("SlowColor", mSlowPColor.getColor());
         editor.putInt("FastColor", mFastPColor.getColor());
         editor.putInt("HueDirection", mHueDirection.getSelectedItemPosition());
+        editor.putInt("ColorMode", mColorMode.getSelectedItemPosition());
+        editor.putInt("RenderMode", mRenderMode.getSelectedItemPosition());
         editor.putInt("F01Attraction", Integer.parseInt(mF01Attraction.getText().toString()));
         editor.putInt("F01Drag", Integer.parseInt(mF01Drag.getText().toString()));
+        editor.putInt("ForceModel", mForceModel.getSelectedItemPosition());
+        for (int m = 0; m < mForceModels.length; m++) {
+            ForceModel.Param[] params = mForceModels[m].getParams();
+            for (int i = 0; i < params.length; i++) {
+                editor.putInt(params[i].getKey(),
+                        Integer.parseInt(mForceParams[m][i].getText().toString()));
+            }
+        }
+        editor.putInt("Engine", mEngine.getSelectedItemPosition());
+        editor.putInt("Pipelining", mPipelining.getSelectedItemPosition());
+        editor.putInt("ReorderInterval", ParticlesSurfaceView.REORDER_INTERVAL_VALUES[
+                mReorderInterval.getSelectedItemPosition()]);
+        editor.putInt("TargetFps",
+                ParticlesSurfaceView.TARGET_FPS_VALUES[mTargetFps.getSelectedItemPosition()]);
+        editor.putInt("SimRate",
+                ParticlesSurfaceView.SIM_RATE_VALUES[mSimRate.getSelectedItemPosition()]);
+        editor.putInt("MaxSubsteps", Integer.parseInt(mMaxSubsteps.getText().toString()));
+        editor.putInt("Hud", mHud.getSelectedItemPosition());
         editor.commit();
     }
+
+    /**
+     * Returns the memory budget of the particles with the values currently selected.
+     */
+    private MemoryBudget getMemoryBudget() {
+        int renderMode = mRenderMode.getSelectedItemPosition();
+        return new MemoryBudget(getContext(), mEngine.getSelectedItemPosition(),
+                mPipelining.getSelectedItemPosition(),
+                ParticlesConfig.isSpeedOutput(mColorMode.getSelectedItemPosition(), renderMode),
+                renderMode, ParticlesSurfaceView.REORDER_INTERVAL_VALUES[
+                        mReorderInterval.getSelectedItemPosition()],
+                mForceModels[mForceModel.getSelectedItemPosition()]);
+    }
+
+    /**
+     * Show the memory used by the number of particles being typed, and the maximum number of
+     * particles.
+     */
+    private void updateMemoryEstimate() {
+        int numParticles;
+        try {
+            numParticles = Integer.parseInt(mNumParticles.getText().toString());
+        } catch (NumberFormatException e) {
+            numParticles = 0;
+        }
+        MemoryBudget budget = getMemoryBudget();
+        mMemoryEstimate.setText(getContext().getString(R.string.memory_estimate,
+                budget.getBytes(numParticles) / (1024f * 1024f), budget.getMaxParticles()));
+    }
+
+    /**
+     * Only show the parameters of the given force model.
+     */
+    private void showForceParams(int forceModel) {
+        for (int m = 0; m < mForceModels.length; m++) {
+            for (ValidatedEditText field : mForceParams[m]) {
+                ((View)field.getParent()).setVisibility(m == forceModel ? VISIBLE : GONE);
+            }
+        }
+    }
+
+    /**
+     * Returns the position of value in values, i.e. the spinner item to select (0 if value is not
+     * one of the proposed values).
+     */
+    private static int getPosition(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return 0;
+    }
 }
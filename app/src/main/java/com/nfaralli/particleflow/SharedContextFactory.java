@@ -0,0 +1,104 @@
+package com.nfaralli.particleflow;
+
+import java.util.ArrayList;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+/**
+ * Context factory of the views, creating contexts which all share their objects (buffers,
+ * textures, programs) with the other contexts alive in the process. Several views drawing the
+ * same simulation (e.g. the wallpaper and its preview, Cf. ParticleSimulation) then use the same
+ * GL objects, and GLParticleEngine doesn't have to copy the particles from one context to the
+ * other (Cf. getCurrentGroup).
+ * A context which can't share its objects (e.g. incompatible configs) is created on its own.
+ */
+public class SharedContextFactory implements GLSurfaceView.EGLContextFactory {
+
+    private static final String TAG = "SharedContextFactory";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+    // Contexts alive in the share group, and object identifying the group (a new one each time
+    // the group starts again from no context at all). Guarded by the class.
+    private static final ArrayList<EGLContext> sContexts = new ArrayList<EGLContext>();
+    private static Object sGroup = new Object();
+
+    private final int mClientVersion;
+
+    /**
+     * @param clientVersion: OpenGL ES version of the contexts (the version set on the view with
+     *                       setEGLContextClientVersion is ignored by a custom factory).
+     */
+    public SharedContextFactory(int clientVersion) {
+        mClientVersion = clientVersion;
+    }
+
+    @Override
+    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        int[] attribList = {EGL_CONTEXT_CLIENT_VERSION, mClientVersion, EGL10.EGL_NONE};
+        synchronized (SharedContextFactory.class) {
+            if (sContexts.isEmpty()) {
+                sGroup = new Object();
+            }
+            EGLContext shareContext =
+                    sContexts.isEmpty() ? EGL10.EGL_NO_CONTEXT : sContexts.get(0);
+            EGLContext context = egl.eglCreateContext(display, config, shareContext, attribList);
+            if (context != null && !context.equals(EGL10.EGL_NO_CONTEXT)) {
+                sContexts.add(context);
+                return context;
+            }
+            Log.w(TAG, "Could not create a shared context: " + egl.eglGetError());
+            return egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attribList);
+        }
+    }
+
+    @Override
+    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+        synchronized (SharedContextFactory.class) {
+            sContexts.remove(context);
+        }
+        if (!egl.eglDestroyContext(display, context)) {
+            Log.e(TAG, "display: " + display + " context: " + context);
+            throw new RuntimeException("eglDestroyContext failed: " + egl.eglGetError());
+        }
+    }
+
+    /**
+     * Returns the object identifying the GL objects usable in the current context: the share
+     * group of the context, or the context itself if it doesn't share its objects. Returns null
+     * if there is no current context.
+     */
+    public static Object getCurrentGroup() {
+        EGLContext context = getCurrentContext();
+        if (context == null) {
+            return null;
+        }
+        synchronized (SharedContextFactory.class) {
+            return sContexts.contains(context) ? sGroup : context;
+        }
+    }
+
+    /**
+     * Returns the number of contexts alive using the same objects as the current context (the
+     * current context included), 0 if there is no current context.
+     */
+    public static int getCurrentGroupSize() {
+        EGLContext context = getCurrentContext();
+        if (context == null) {
+            return 0;
+        }
+        synchronized (SharedContextFactory.class) {
+            return sContexts.contains(context) ? sContexts.size() : 1;
+        }
+    }
+
+    private static EGLContext getCurrentContext() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        return context == null || context.equals(EGL10.EGL_NO_CONTEXT) ? null : context;
+    }
+}
@@ -0,0 +1,73 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Fixed-timestep clock driving the simulation from the real elapsed time, so that the particles
+ * move at the same speed whatever the refresh rate of the display is.
+ * Each call to advance returns the number of simulation steps to run for the current frame. The
+ * simulation rate may be lower than the display rate (some frames then run no step at all) or
+ * higher (several substeps per frame).
+ * When a frame took too long (stutter, activity paused...), the number of steps is capped and the
+ * time which could not be simulated is dropped: the flow slows down for a moment rather than
+ * running more and more steps to catch up.
+ */
+public class SimulationClock {
+
+    // Simulation rate for which the force coefficients are defined (i.e. the original behavior,
+    // one update per frame on a 60 Hz display).
+    public static final int REFERENCE_RATE = 60;
+
+    private final long mStepNanos;
+    private final int mMaxSubsteps;
+    private final float mTimeScale;
+    // Simulation time not run yet.
+    private long mAccumulator;
+    // Time of the previous call to advance, 0 if none since the last reset.
+    private long mLastTime;
+
+    /**
+     * @param simRate: number of simulation steps per second.
+     * @param maxSubsteps: maximum number of steps returned by advance.
+     */
+    public SimulationClock(int simRate, int maxSubsteps) {
+        mStepNanos = 1000000000L / simRate;
+        mMaxSubsteps = maxSubsteps;
+        mTimeScale = REFERENCE_RATE / (float) simRate;
+    }
+
+    /**
+     * Returns the duration of a step divided by the reference duration (1 / REFERENCE_RATE).
+     * Cf. ParticleEngine.setTimeScale.
+     */
+    public float getTimeScale() {
+        return mTimeScale;
+    }
+
+    /**
+     * Forget the elapsed time. The next call to advance runs exactly one step.
+     * Should be called when the simulation was stopped for a while (e.g. when resuming).
+     */
+    public void reset() {
+        mLastTime = 0;
+        mAccumulator = 0;
+    }
+
+    /**
+     * Returns the number of steps to run for a frame starting at time now (System.nanoTime()).
+     */
+    public int advance(long now) {
+        if (mLastTime == 0) {
+            mLastTime = now;
+            mAccumulator = 0;
+            return 1;
+        }
+        mAccumulator += now - mLastTime;
+        mLastTime = now;
+        int steps = (int) Math.min(mAccumulator / mStepNanos, mMaxSubsteps);
+        mAccumulator -= steps * mStepNanos;
+        if (mAccumulator >= mStepNanos) {
+            // Catch-up cap: drop what could not be simulated this frame.
+            mAccumulator = mAccumulator % mStepNanos;
+        }
+        return steps;
+    }
+}
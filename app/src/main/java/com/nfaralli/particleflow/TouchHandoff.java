@@ -0,0 +1,129 @@
+package com.nfaralli.particleflow;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands the attraction points set by the touch events over from the UI thread (the producer) to
+ * the GL thread (the consumer), without locks nor allocations.
+ *
+ * The positions are written into one of two slots, each stamped with a version which is odd while
+ * the slot is written. The producer always writes the slot which is not the latest one, then
+ * publishes it. The consumer copies the latest slot and validates its copy against the version: if
+ * the producer lapped it (i.e. started writing the same slot again in the meantime), the copy is
+ * discarded and the consumer retries with the new latest slot. Neither thread ever waits for the
+ * other one.
+ *
+ * Each publication also carries a sequence number, so that the consumer only picks up new
+ * positions, and the time of the touch event, to measure how stale they are once drawn.
+ */
+public class TouchHandoff {
+
+    // Maximum number of attempts of poll before giving up until the next frame.
+    private static final int MAX_POLL_ATTEMPTS = 4;
+
+    private final int mMaxTouch;
+    // Positions (x, y) of the attraction points, one array per slot.
+    private final float[][] mPositions;
+    // Attraction points set in each slot, one bit per attraction point.
+    private final int[] mMasks;
+    private final long[] mEventTimes;
+    // Atomic, as poll compares it before validating its copy (a plain long may be torn).
+    private final AtomicLongArray mSequences;
+    // Odd while the slot is written.
+    private final AtomicInteger[] mVersions;
+    // Index of the latest published slot.
+    private final AtomicInteger mLatest;
+    // Producer only.
+    private long mNextSequence;
+
+    // Consumer only: values of the last slot picked up by poll.
+    private long mLastSequence;
+    private int mMask;
+    private long mEventTime;
+
+    /**
+     * @param maxTouch: maximum number of attraction points (at most 32).
+     */
+    public TouchHandoff(int maxTouch) {
+        mMaxTouch = maxTouch;
+        mPositions = new float[2][2 * maxTouch];
+        mMasks = new int[2];
+        mEventTimes = new long[2];
+        mSequences = new AtomicLongArray(2);
+        mVersions = new AtomicInteger[] {new AtomicInteger(), new AtomicInteger()};
+        mLatest = new AtomicInteger(0);
+        mNextSequence = 1;
+    }
+
+    /**
+     * Publish the positions of the attraction points. Must only be called by the producer.
+     *
+     * @param positions: positions (x, y) of the attraction points.
+     * @param mask: attraction points set in positions, one bit per attraction point. The others
+     *            are left as they are.
+     * @param eventTime: time of the touch event (Cf. MotionEvent.getEventTime()).
+     */
+    public void publish(float[] positions, int mask, long eventTime) {
+        int slot = 1 - mLatest.get();
+        AtomicInteger version = mVersions[slot];
+        version.getAndIncrement();
+        System.arraycopy(positions, 0, mPositions[slot], 0,
+                Math.min(positions.length, 2 * mMaxTouch));
+        mMasks[slot] = mask;
+        mEventTimes[slot] = eventTime;
+        mSequences.set(slot, mNextSequence++);
+        version.getAndIncrement();
+        mLatest.set(slot);
+    }
+
+    /**
+     * Copy the latest positions published into positions, if they were not picked up yet.
+     * Returns false if there is nothing new (or if the producer kept overwriting the slots, in
+     * which case the positions are picked up at the next call). Must only be called by the
+     * consumer.
+     */
+    public boolean poll(float[] positions) {
+        for (int i = 0; i < MAX_POLL_ATTEMPTS; i++) {
+            int slot = mLatest.get();
+            AtomicInteger version = mVersions[slot];
+            int v = version.get();
+            if ((v & 1) != 0) {
+                continue;
+            }
+            long sequence = mSequences.get(slot);
+            // The slot may have been written again before mLatest was read, in which case the
+            // positions picked up last time are newer than the latest published ones.
+            if (sequence <= mLastSequence) {
+                return false;
+            }
+            System.arraycopy(mPositions[slot], 0, positions, 0,
+                    Math.min(positions.length, 2 * mMaxTouch));
+            int mask = mMasks[slot];
+            long eventTime = mEventTimes[slot];
+            // A successful compareAndSet guarantees that none of the reads above saw a write of
+            // the next publication in this slot.
+            if (version.compareAndSet(v, v)) {
+                mLastSequence = sequence;
+                mMask = mask;
+                mEventTime = eventTime;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the attraction points set by the positions picked up by the last successful poll.
+     */
+    public int getMask() {
+        return mMask;
+    }
+
+    /**
+     * Returns the time of the touch event of the positions picked up by the last successful poll.
+     */
+    public long getEventTime() {
+        return mEventTime;
+    }
+}
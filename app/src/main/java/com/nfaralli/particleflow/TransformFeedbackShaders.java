@@ -0,0 +1,132 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Shaders of GLParticleEngine, which updates the particles in a vertex shader and captures its
+ * outputs with transform feedback (OpenGL ES 3.0). They are kept apart from the engine, which
+ * depends on android.opengl, so that the conformance test of the benchmark module runs the very
+ * same shaders on a desktop implementation (Cf. TransformFeedbackConformance).
+ *
+ * The particles are stored in buffer objects, interleaved: position (x, y), velocity (x, y), then
+ * the speed coefficient (1 float) or the color (RGBA, 4 floats) depending on the speed output.
+ * The update only reads the position and the velocity, and writes all of them in the same layout,
+ * which is also the one the renderer draws from.
+ * Same computations as AttractionKernel in JavaParticleEngine.
+ */
+public final class TransformFeedbackShaders {
+
+    // Attribute locations of the position and of the velocity in the update shader.
+    public static final int POSITION_LOCATION = 0;
+    public static final int DELTA_LOCATION = 1;
+    // Offsets (in floats) of the velocity and of the output in the layout of a particle.
+    public static final int DELTA_OFFSET = 2;
+    public static final int OUTPUT_OFFSET = 4;
+    // Size of the uTouch array. Same as ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS.
+    public static final int MAX_TOUCH = 16;
+    // The color table (Cf. ColorRamp.getTable) is a COLOR_TABLE_WIDTH x COLOR_TABLE_HEIGHT RGBA
+    // float texture, row by row: a 1D texture of ColorRamp.TABLE_SIZE texels would exceed the
+    // maximum texture size of many devices.
+    public static final int COLOR_TABLE_WIDTH = 128;
+    public static final int COLOR_TABLE_HEIGHT = ColorRamp.TABLE_SIZE / COLOR_TABLE_WIDTH;
+
+    // Nothing is rasterized (GL_RASTERIZER_DISCARD), but a program needs a fragment shader.
+    public static final String UPDATE_FRAGMENT_SHADER =
+        "#version 300 es\n" +
+        "precision mediump float;\n" +
+        "out vec4 fragColor;\n" +
+        "void main() {\n" +
+        "  fragColor = vec4(0.0);\n" +
+        "}\n";
+
+    private TransformFeedbackShaders() {
+    }
+
+    /**
+     * Returns the number of floats per particle in the buffer objects.
+     */
+    public static int getStride(boolean speedOutput) {
+        return OUTPUT_OFFSET + (speedOutput ? 1 : 4);
+    }
+
+    /**
+     * Returns the outputs of the update shader captured by transform feedback, in the order of the
+     * layout of a particle (GL_INTERLEAVED_ATTRIBS).
+     */
+    public static String[] getVaryings(boolean speedOutput) {
+        return new String[] {"vPosition", "vDelta", speedOutput ? "vSpeed" : "vColor"};
+    }
+
+    /**
+     * Returns the vertex shader updating one particle per vertex (gl_VertexID is the index of the
+     * particle, for its random numbers).
+     * Uniforms: uTouch and uNumTouch (attraction points, disabled if x < 0), uAttractionCoef (the
+     * attraction coefficient times the time scale), uDragCoef (the drag coefficient to the power
+     * of the time scale), uTimeScale, uSeed and uStep (Cf. ParticleRandom), and without speed
+     * output, uColorTable and uColorScale (Cf. ColorRamp.getScale).
+     */
+    public static String getUpdateVertexShader(boolean speedOutput) {
+        return "#version 300 es\n" +
+            (speedOutput ? "#define SPEED_OUTPUT\n" : "") +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "layout(location = " + POSITION_LOCATION + ") in vec2 aPosition;\n" +
+            "layout(location = " + DELTA_LOCATION + ") in vec2 aDelta;\n" +
+            "uniform vec2 uTouch[" + MAX_TOUCH + "];\n" +
+            "uniform int uNumTouch;\n" +
+            "uniform float uAttractionCoef;\n" +
+            "uniform float uDragCoef;\n" +
+            "uniform float uTimeScale;\n" +
+            "uniform uint uSeed;\n" +
+            "uniform uint uStep;\n" +
+            "out vec2 vPosition;\n" +
+            "out vec2 vDelta;\n" +
+            "#ifdef SPEED_OUTPUT\n" +
+            "out float vSpeed;\n" +
+            "#else\n" +
+            "uniform highp sampler2D uColorTable;\n" +
+            "uniform float uColorScale;\n" +
+            "out vec4 vColor;\n" +
+            "#endif\n" +
+            // Same as ParticleRandom.mix (the uint operations wrap around).
+            "uint mixBits(uint x) {\n" +
+            "  x ^= x >> 16;\n" +
+            "  x *= 0x7FEB352Du;\n" +
+            "  x ^= x >> 15;\n" +
+            "  x *= 0x846CA68Bu;\n" +
+            "  x ^= x >> 16;\n" +
+            "  return x;\n" +
+            "}\n" +
+            // Same as ParticleRandom.nextFloat.
+            "float randomFloat(uint index) {\n" +
+            "  uint h = mixBits(uSeed ^ mixBits(index ^ mixBits(uStep + 0x9E3779B9u)));\n" +
+            "  return float(h >> 8) * (1.0 / 16777216.0);\n" +
+            "}\n" +
+            "void main() {\n" +
+            "  vec2 a = vec2(0.0);\n" +
+            "  for (int j = 0; j < uNumTouch; j++) {\n" +
+            "    if (uTouch[j].x >= 0.0) {\n" +
+            "      vec2 d = uTouch[j] - aPosition;\n" +
+            "      float diffSqNorm = dot(d, d);\n" +
+            "      if (diffSqNorm < 0.1) {\n" +
+            "        float theta = 6.28318530718 * randomFloat(uint(gl_VertexID));\n" +
+            "        d = vec2(cos(theta), sin(theta));\n" +
+            "        diffSqNorm = 1.0;\n" +
+            "      }\n" +
+            "      a += (uAttractionCoef / diffSqNorm) * d;\n" +
+            "    }\n" +
+            "  }\n" +
+            "  vec2 v = aDelta + a;\n" +
+            "  vPosition = aPosition + v * uTimeScale;\n" +
+            "  float sqSpeed = dot(v, v);\n" +
+            "#ifdef SPEED_OUTPUT\n" +
+            "  vSpeed = min(log(sqSpeed + 1.0) / 4.5, 1.0);\n" +
+            "#else\n" +
+            "  int k = int(min(sqSpeed * uColorScale + 0.5, " + (ColorRamp.TABLE_SIZE - 1) +
+                    ".0));\n" +
+            "  vColor = texelFetch(uColorTable, ivec2(k % " + COLOR_TABLE_WIDTH + ", k / " +
+                    COLOR_TABLE_WIDTH + "), 0);\n" +
+            "#endif\n" +
+            "  vDelta = v * uDragCoef;\n" +
+            "  gl_Position = vec4(0.0);\n" +
+            "}\n";
+    }
+}
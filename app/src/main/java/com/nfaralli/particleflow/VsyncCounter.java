@@ -0,0 +1,64 @@
+package com.nfaralli.particleflow;
+
+import android.os.Build;
+import android.view.Choreographer;
+
+/**
+ * Counts the vsyncs of the display with the Choreographer, to detect the dropped frames (Cf.
+ * FrameStats.endFrame).
+ * start and stop must be called on a thread with a Looper (usually the UI thread), the count can
+ * be read from any thread. Requires API 16: on older devices the count stays at -1.
+ */
+public class VsyncCounter {
+
+    private final Choreographer.FrameCallback mCallback;
+    private volatile long mCount = -1;
+    private boolean mStarted;
+
+    public VsyncCounter() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mCallback = createCallback();
+        } else {
+            mCallback = null;
+        }
+    }
+
+    private Choreographer.FrameCallback createCallback() {
+        return new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (mStarted) {
+                    mCount++;
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+            }
+        };
+    }
+
+    /**
+     * Start counting, from 0.
+     */
+    public void start() {
+        if (mCallback == null || mStarted) {
+            return;
+        }
+        mStarted = true;
+        mCount = 0;
+        Choreographer.getInstance().postFrameCallback(mCallback);
+    }
+
+    public void stop() {
+        if (mCallback == null || !mStarted) {
+            return;
+        }
+        mStarted = false;
+        Choreographer.getInstance().removeFrameCallback(mCallback);
+    }
+
+    /**
+     * Returns the number of vsyncs since start, -1 if the vsyncs are not counted.
+     */
+    public long getCount() {
+        return mCount;
+    }
+}
@@ -1,186 +1,360 @@
 #pragma version(1)
 #pragma rs java_package_name(com.nfaralli.particleflow)
 
-// Colors of slow and fast particles. Particles colors are interpolated based on these two colors
-// and hueDirection.
-// TODO: put HSV in a float4
-float slowHue;
-float slowSaturation;
-float slowValue;
-float fastHue;
-float fastSaturation;
-float fastValue;
-int hueDirection;  // 0 for clockwise, 1 for counterclockwise
-
-// Force coefficients.
+// Colors of the particles, indexed by their squared speed (Cf. ColorRamp.java).
+// Entry i is the color of the particles whose squared speed is i / colorRampScale.
+float4 *colorRamp;
+float colorRampScale;
+float colorRampMaxIndex;  // Size of colorRamp - 1.
+
+// Force coefficients, already scaled to the duration of an update (Cf.
+// ParticleEngine.setTimeScale).
 float f01AttractionCoef;
 float f01DragCoef;
+// Duration of an update relative to the reference duration. The velocities are expressed per
+// reference duration.
+float timeScale = 1.0f;
+
+// Parameters of the force models (Cf. ForceModel.java), the coefficients are already scaled to the
+// duration of an update. Each model has its own kernel (Cf. FORCE_MODEL_KERNELS).
+// ForceModel.NEIGHBORS.
+float neighborCoef;
+float neighborRadius = 1.0f;
+// Maximum number of particles looked at per particle and per update, sampled evenly over the
+// neighbor cells, their force being scaled up to all the particles of the cells (Cf.
+// getNeighborAcc). Same as JavaParticleEngine.MAX_NEIGHBORS.
+static const int maxNeighbors = 32;
+
+// ForceModel.VORTEX.
+float vortexSwirlCoef;
+// ForceModel.REPULSOR: squared radius of the repulsive core.
+float repulsorSqRadius;
+// ForceModel.TURBULENCE: acceleration of the particles per row (x component, height + 1 entries)
+// and per column (y component, width + 1 entries) of pixels, computed before each update (Cf.
+// ParticleEngine.fillTurbulence).
+float *turbulenceX;
+float *turbulenceY;
+
+// Uniform grid used to find the neighbors (Cf. NeighborGrid.java), rebuilt before each update
+// (Cf. clearGrid). The cells are neighborRadius wide, the extra cell gridWidth * gridHeight holds
+// the particles out of the screen. The particles of cell c are [cellStart[c], cellStart[c + 1]) in
+// sortedPosition. cellStart has gridWidth * gridHeight + 3 entries.
+int gridWidth = 1;
+int gridHeight = 1;
+int *cellStart;
+int *cellOf;
+float2 *sortedPosition;
+
+// Keys of the random numbers (Cf. randomFloat). step is the number of updates so far.
+int seed;
+int step;
 
-// Screen resolution. Should be set before calling initParticles.
+// Screen resolution. Should be set before launching the initParticles kernels.
 float width = 100.0f;
 float height = 100.0f;
 
+// Scale factors of the positions and velocities applied by the rescaleParticles kernels (Cf.
+// ParticleEngine.rescale).
+float rescaleX = 1.0f;
+float rescaleY = 1.0f;
+
 // Initial touch positions (attraction points).
 // Negative values are used to disable an attraction point.
 float2 *gTouch;
 
-// Arrays containing the coordinates, velocity, and color of the particles.
-// MUST have the same size.
-float2 *position;
-float2 *delta;
-float4 *color;
+// The state of the particles is packed in a float4: position (x, y) and velocity (z, w). It is
+// both the input and the output of the kernels (Cf. RSParticleEngine.state), which update it in
+// place: each one only reads and writes the particle it is given.
+
+// Color of the particles, or speed coefficient (within [0, 1]) when speedOutput is set to 1 (the
+// color is then computed by the shaders). Written by the kernels along with the state they return
+// (Cf. storeOutput). MUST have the same size as the state.
+rs_allocation color;
+rs_allocation speed;
+int speedOutput;
 
 /**
- * Transforms HSV components into RGBA components.
- * S and V must be within [0, 1] and H must be within [0, 1) (e.g. H=0.5 -> 180 degrees = Cyan).
- * no check performed on H, S, and V.
- * R, G, and B are within [0, 1] and A=1
+ * Returns a coefficient in the range [0, 1] based on the speed v.
+ * 0 corresponds to low speeds and 1 corresponds to high speeds.
  */
-static float4 hsv2rgba(float h, float s, float v) {
-    float4 rgba;
-    float h6 = 6 * h;
-    float r, g, b;  // NOT the actual rgb values.
+static float getSpeedCoef(float2 v) {
     float coef;
-  
-    if (h6 < 1) {
-        r = 0;
-        g = 1 - h6;
-        b = 1;
-    } else if (h6 < 2) {
-        r = h6 - 1;
-        g = 0;
-        b = 1;
-    } else if (h6 < 3) {
-        r = 1;
-        g = 0;
-        b = 3 - h6; 
-    } else if (h6 < 4) {
-        r = 1;
-        g = h6 - 3;
-        b = 0;
-    } else if (h6 < 5) {
-        r = 5 - h6;
-        g = 1;
-        b = 0;
-    } else {
-        r = 0;
-        g = 1;
-        b = h6 - 5;
+    coef = log(v.x * v.x + v.y * v.y + 1) / 4.5f;  // Use + 1 to have positive log values.
+    if(coef > 1.0f) {
+        coef = 1.0f;
     }
-  
-    coef = v * s;
-    rgba.r = v - coef * r;
-    rgba.g = v - coef * g;
-    rgba.b = v - coef * b;
-    rgba.a = 1.0f;
-    return rgba;
+    return coef;
 }
 
 /**
- * Get the hue based on coef, which must be within [0, 1].
- * The returned value will be within [0, 1) (which corresponds to the usual range [0, 360)).
+ * Returns the color of a particle based on its speed v.
+ * Same as ColorRamp.getIndex, followed by a lookup in colorRamp.
  */
-static float getHue(float coef) {
-    float hue;
-    float sh = slowHue;
-    float fh = fastHue;
-    if (sh < fh && hueDirection == 0) {
-        sh += 1;
-    } else if (sh > fh && hueDirection == 1) {
-        fh += 1;
-    }
-    hue = (1 - coef) * sh + coef * fh;
-    if (hue >= 1) {
-        hue -= 1;
-    }
-    return hue;
+static float4 getColor(float2 v) {
+    float index = fmin((v.x * v.x + v.y * v.y) * colorRampScale + 0.5f, colorRampMaxIndex);
+    return colorRamp[(int) index];
 }
 
 /**
- * Get the saturation based on coef, which must be within [0, 1].
- * The returned value will be within [0, 1].
+ * Store the color (or speed coefficient) of particle #x, whose velocity is v.
  */
-static float getSaturation(float coef) {
-    return (1 - coef) * slowSaturation + coef * fastSaturation;
+static void storeOutput(uint32_t x, float2 v) {
+    if (speedOutput) {
+        rsSetElementAt_float(speed, getSpeedCoef(v), x);
+    } else {
+        rsSetElementAt_float4(color, getColor(v), x);
+    }
 }
 
+static uint32_t mix(uint32_t x) {
+    x ^= x >> 16;
+    x *= 0x7FEB352Du;
+    x ^= x >> 15;
+    x *= 0x846CA68Bu;
+    x ^= x >> 16;
+    return x;
+}
 
 /**
- * Get the value based on coef, which must be within [0, 1].
- * The returned value will be within [0, 1].
+ * Returns a float within [0, 1) for particle #index at step s. Counter-based, i.e. it doesn't
+ * depend on the order the particles are updated in. Same as ParticleRandom.nextFloat.
  */
-static float getValue(float coef) {
-    return (1 - coef) * slowValue + coef * fastValue;
+static float randomFloat(int index, int s) {
+    uint32_t h = mix((uint32_t) seed ^ mix((uint32_t) index ^ mix((uint32_t) s + 0x9E3779B9u)));
+    return (h >> 8) * (1.f / (1 << 24));
 }
 
 /**
- * Returns a coefficient in the range [0, 1] based on the speed v.
- * 0 corresponds to low speeds and 1 corresponds to high speeds.
+ * Returns the initial state of particle #x: at rest, uniform distribution over a disk of diameter
+ * the diagonal of the screen.
  */
-static float getSpeedCoef(float2 v) {
-    float coef;
-    coef = log(v.x * v.x + v.y * v.y + 1) / 4.5f;  // Use + 1 to have positive log values.
-    if(coef > 1.0f) {
-        coef = 1.0f;
+static float4 initState(uint32_t x) {
+    float radius = sqrt(width*width + height*height) / 2;
+    float r = radius * sqrt(randomFloat(x, -1));  // ParticleRandom.STEP_INIT_RADIUS
+    float theta = 6.28318530718f * randomFloat(x, -2);  // ParticleRandom.STEP_INIT_ANGLE
+    float4 s;
+    s.x = (width/2) + r*cos(theta);
+    s.y = (height/2) + r*sin(theta);
+    s.z = 0;
+    s.w = 0;
+    return s;
+}
+
+// Initialization kernel, launched over the particles to initialize (Cf.
+// RSParticleEngine.initRange). Returns the state of particle #x, and stores its color.
+float4 __attribute__((kernel)) initParticles(uint32_t x) {
+    float4 s = initState(x);
+    storeOutput(x, s.zw);
+    return s;
+}
+
+// Rescaling kernel, launched in place over the particles already initialized (Cf.
+// RSParticleEngine.rescale). Returns the state in of particle #x, scaled, and stores its color.
+float4 __attribute__((kernel)) rescaleParticles(float4 in, uint32_t x) {
+    float4 s = in;
+    s.x *= rescaleX;
+    s.y *= rescaleY;
+    s.z *= rescaleX;
+    s.w *= rescaleY;
+    storeOutput(x, s.zw);
+    return s;
+}
+
+static int getCell(float2 p) {
+    if (p.x < 0 || p.y < 0) {
+        return gridWidth * gridHeight;
     }
-    return coef;
+    int cx = (int) (p.x / neighborRadius);
+    int cy = (int) (p.y / neighborRadius);
+    if (cx >= gridWidth || cy >= gridHeight) {
+        return gridWidth * gridHeight;
+    }
+    return cy * gridWidth + cx;
+}
+
+/*
+ * Sort the active particles by cell, same as NeighborGrid.build but in parallel: clearGrid, then
+ * countCells over the active particles (output: cellOf), scanGrid, and sortCells over the active
+ * particles. Only the two invokables are serial, and they run over the cells, not the particles.
+ * The particles of a cell are stored in the order they are inserted in, which varies from one
+ * update to another: unlike the java engine, the neighbors sampled by getNeighborAcc, and the order
+ * their forces are summed in, aren't reproducible bit for bit.
+ */
+void clearGrid() {
+    int size = gridWidth * gridHeight + 3;
+    for (int c = 0; c < size; c++) {
+        cellStart[c] = 0;
+    }
+}
+
+// Count the particles of cell c in cellStart[c + 2].
+int __attribute__((kernel)) countCells(float4 in) {
+    int c = getCell(in.xy);
+    rsAtomicInc(&cellStart[c + 2]);
+    return c;
+}
+
+// Now cellStart[c + 1] is the start of cell c.
+void scanGrid() {
+    int size = gridWidth * gridHeight + 3;
+    for (int c = 2; c < size; c++) {
+        cellStart[c] += cellStart[c - 1];
+    }
+}
+
+// Use cellStart[c + 1] as the insertion point of cell c.
+void __attribute__((kernel)) sortCells(float4 in, uint32_t x) {
+    sortedPosition[rsAtomicInc(&cellStart[cellOf[x] + 1])] = in.xy;
 }
 
 /**
- * Initialize the particles.
- * Uniform distribution over a disk of diameter the diameter of the screen.
+ * Returns the acceleration of particle #index (at position p) due to its neighbors.
+ * Same computation as JavaParticleEngine.NeighborsKernel: one in every stride of the particles of
+ * the 3x3 cells around the particle is looked at, the 3 rows of cells being contiguous in
+ * sortedPosition, and their force is scaled by count / sampled.
  */
-void initParticles()
-{   
-    int size = rsAllocationGetDimX(rsGetAllocation(position));
-    float2 *pt = position;
-    float2 *d = delta;
-    float4 *c = color;
-    float radius = sqrt(width*width + height*height) / 2;
-    float r, theta;
-    float speedCoef;
-    for (int i = 0; i < size; i++, pt++, d++, c++) {
-    	r = radius * sqrt(rsRand(1.f));
-    	theta = rsRand(6.28318530718f);
-    	pt->x = (width/2) + r*cos(theta);
-    	pt->y = (height/2) + r*sin(theta);
-    	d->x = 0;
-    	d->y = 0;
-    	speedCoef = getSpeedCoef(*d);
-    	*c = hsv2rgba(getHue(speedCoef), getSaturation(speedCoef), getValue(speedCoef));
+static float2 getNeighborAcc(int index, float2 p) {
+    float2 acc = 0;
+    int cell = cellOf[index];
+    if (cell == gridWidth * gridHeight) {
+        return acc;
     }
+    int cx = cell % gridWidth;
+    int cy = cell / gridWidth;
+    int gx0 = max(cx - 1, 0);
+    int gx1 = min(cx + 1, gridWidth - 1);
+    int gy0 = max(cy - 1, 0);
+    int gy1 = min(cy + 1, gridHeight - 1);
+    float sqRadius = neighborRadius * neighborRadius;
+    int count = 0;
+    for (int gy = gy0; gy <= gy1; gy++) {
+        count += cellStart[gy * gridWidth + gx1 + 1] - cellStart[gy * gridWidth + gx0];
+    }
+    int stride = max(1, (count + maxNeighbors - 1) / maxNeighbors);
+    int skip = index % stride;
+    int sampled = 0;
+    for (int gy = gy0; gy <= gy1; gy++) {
+        int end = cellStart[gy * gridWidth + gx1 + 1];
+        int s = cellStart[gy * gridWidth + gx0] + skip;
+        for (; s < end; s += stride) {
+            float2 diff = p - sortedPosition[s];
+            float diffSqNorm = diff.x * diff.x + diff.y * diff.y;
+            if (diffSqNorm < sqRadius && diffSqNorm > 0) {
+                // neighborCoef * (1 - d^2 / radius^2) * diff / radius.
+                acc += (neighborCoef * (1 - diffSqNorm / sqRadius) / neighborRadius) * diff;
+            }
+            sampled++;
+        }
+        skip = s - end;
+    }
+    if (stride > 1 && sampled > 0) {
+        // Scaled up to all the particles of the cells.
+        acc *= (float) count / sampled;
+    }
+    return acc;
 }
 
 /**
- * Update the particles.
- * Compute the force due to each attraction points and get the corresponding acceleration, velocity
- * and new position of particle #index.
+ * Returns the acceleration of particle #index, at p, due to the attraction points, i.e.
+ * coef * diff / |diff|^2 per point (pushed away if coef is negative). Turned into a repulsion
+ * closer than the core radius (Cf. ForceModel.REPULSOR) if sqCoreRadius isn't 0. Same computation
+ * as JavaParticleEngine.Kernel.attract.
  */
-void __attribute__((kernel)) updateParticles(int index) {
+static float2 attract(int index, float2 p, float coef, float sqCoreRadius) {
     int numTouch = rsAllocationGetDimX(rsGetAllocation(gTouch));
-    float speedCoef, theta;
+    float theta;
     float diffSqNorm;
-    float2 diff, acc;
-    float2 *pt = position + index;
-    float2 *d = delta + index;
-    float4 *c = color + index;
-    acc.x = acc.y = 0;
+    float touchCoef;
+    float2 diff;
+    float2 acc = 0;
     for(int i=0; i<numTouch; i++){
         if (gTouch[i].x >=0) {
-            diff = gTouch[i] - *pt;
+            diff = gTouch[i] - p;
             diffSqNorm = diff.x * diff.x + diff.y * diff.y;
             if (diffSqNorm < 0.1f) {
-                theta = rsRand(6.28318530718f);
+                theta = 6.28318530718f * randomFloat(index, step);
                 diff.x = cos(theta);
                 diff.y = sin(theta);
                 diffSqNorm = 1;
             }
-            acc += (f01AttractionCoef / diffSqNorm) * diff;
+            touchCoef = coef / diffSqNorm;
+            if (sqCoreRadius > 0) {
+                // Repulsion no stronger than the attraction would be.
+                touchCoef *= fmax(1 - sqCoreRadius / diffSqNorm, -1.f);
+            }
+            acc += touchCoef * diff;
         }
     }
-    *d += acc;
-    *pt += *d;
-    speedCoef = getSpeedCoef(*d);
-    *c = hsv2rgba(getHue(speedCoef), getSaturation(speedCoef), getValue(speedCoef));
-    *d *= f01DragCoef;
+    return acc;
 }
+
+/**
+ * Apply the acceleration acc to the particle in state s and get its new velocity and position.
+ * Returns the new state, with the velocity before applying the drag (used for its color).
+ */
+static float4 integrate(float4 s, float2 acc) {
+    float2 v = s.zw + acc;
+    float4 next;
+    next.xy = s.xy + v * timeScale;
+    next.zw = v;
+    return next;
+}
+
+/**
+ * Update of particle #index, in state s, with each force model. Same computations as the kernels
+ * of JavaParticleEngine.
+ * Returns the new state, with the velocity before applying the drag (used for its color).
+ */
+static float4 updateAttraction(int index, float4 s) {
+    return integrate(s, attract(index, s.xy, f01AttractionCoef, 0.f));
+}
+
+static float4 updateNeighbors(int index, float4 s) {
+    return integrate(s, attract(index, s.xy, f01AttractionCoef, 0.f)
+            + getNeighborAcc(index, s.xy));
+}
+
+static float4 updateVortex(int index, float4 s) {
+    // Both forces follow the sum of diff / |diff|^2: attraction along it, swirl along its normal.
+    float2 sum = attract(index, s.xy, 1.f, 0.f);
+    float2 acc;
+    acc.x = f01AttractionCoef * sum.x - vortexSwirlCoef * sum.y;
+    acc.y = f01AttractionCoef * sum.y + vortexSwirlCoef * sum.x;
+    return integrate(s, acc);
+}
+
+static float4 updateRepulsor(int index, float4 s) {
+    return integrate(s, attract(index, s.xy, f01AttractionCoef, repulsorSqRadius));
+}
+
+static float4 updateTurbulence(int index, float4 s) {
+    float2 p = s.xy;
+    float2 acc;
+    // Turbulence of the pixel of the particle. The particles out of the screen get the turbulence
+    // of the closest edge.
+    int maxX = rsAllocationGetDimX(rsGetAllocation(turbulenceY)) - 1;
+    int maxY = rsAllocationGetDimX(rsGetAllocation(turbulenceX)) - 1;
+    int x = (int) clamp(p.x, 0.f, (float) maxX);
+    int y = (int) clamp(p.y, 0.f, (float) maxY);
+    acc.x = turbulenceX[y];
+    acc.y = turbulenceY[x];
+    return integrate(s, attract(index, p, f01AttractionCoef, 0.f) + acc);
+}
+
+/**
+ * Update kernel of the force model name, launched in place over the state (in and output). Stores
+ * the color (or speed coefficient) of particle #x, and returns its new state, drag applied.
+ */
+#define FORCE_MODEL_KERNELS(name) \
+    float4 __attribute__((kernel)) updateParticles##name(float4 in, uint32_t x) { \
+        float4 s = update##name(x, in); \
+        storeOutput(x, s.zw); \
+        s.zw *= f01DragCoef; \
+        return s; \
+    }
+
+FORCE_MODEL_KERNELS(Attraction)
+FORCE_MODEL_KERNELS(Neighbors)
+FORCE_MODEL_KERNELS(Vortex)
+FORCE_MODEL_KERNELS(Repulsor)
+FORCE_MODEL_KERNELS(Turbulence)
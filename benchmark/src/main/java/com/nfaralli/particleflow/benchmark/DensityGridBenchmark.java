@@ -0,0 +1,93 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.DensityGrid;
+import com.nfaralli.particleflow.JavaParticleEngine;
+
+/**
+ * Measures the cost of accumulating one frame into a DensityGrid, i.e. the CPU side of the
+ * density render modes. Same setup as RasterizerBenchmark: the particles are updated a few times
+ * first, and not updated during the measurement.
+ * The score is in frames per second, multiplied by numParticles by the compareBenchmarks task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DensityGridBenchmark {
+
+    // Same default screen and colors as the app (Cf. ParticlesSurfaceView).
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] SLOW_HSV = {240 / 360.f, 0.7f, 1.0f};
+    private static final float[] FAST_HSV = {0, 0.7f, 1.0f};
+    private static final int NUM_ATT_POINTS = 5;
+    private static final int NUM_UPDATES = 100;
+
+    @Param({"100000", "1000000"})
+    public int numParticles;
+
+    // In pixels per side, 1 for RENDER_MODE_DENSITY and 2 for RENDER_MODE_DENSITY_HALF.
+    @Param({"1", "2"})
+    public int cellSize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private JavaParticleEngine mEngine;
+    private DensityGrid mGrid;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        mEngine = new JavaParticleEngine(pool);
+        mEngine.setSize(WIDTH, HEIGHT);
+        mEngine.setColorRamp(new ColorRamp(SLOW_HSV, FAST_HSV, 0));
+        mEngine.setForceCoefs(100, 0.96f);
+        mEngine.setSpeedOutput(true);
+        mEngine.setDeterministic(true, 1);
+        mEngine.allocate(numParticles, NUM_ATT_POINTS);
+        // Same layout as ParticleSimulation.resetAttractionPoints.
+        float[] touch = new float[2 * NUM_ATT_POINTS];
+        float l = Math.min(WIDTH, HEIGHT) / 3;
+        touch[0] = WIDTH / 2;
+        touch[1] = HEIGHT / 2 - l;
+        for (int i = 1; i < NUM_ATT_POINTS; i++) {
+            double angle = i * 2 * Math.PI / NUM_ATT_POINTS;
+            touch[2 * i] = (float) (WIDTH / 2 + l * Math.sin(angle));
+            touch[2 * i + 1] = (float) (HEIGHT / 2 - l * Math.cos(angle));
+        }
+        mEngine.setTouch(touch);
+        mEngine.initParticles();
+        for (int i = 0; i < NUM_UPDATES; i++) {
+            mEngine.update();
+        }
+        mGrid = new DensityGrid(pool);
+        mGrid.setSize(WIDTH / cellSize, HEIGHT / cellSize, 1.f / (cellSize * cellSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mEngine.destroy();
+    }
+
+    @Benchmark
+    public Object accumulate() {
+        mGrid.accumulate(mEngine.readPositions(), mEngine.readSpeeds(), numParticles, WIDTH,
+                HEIGHT);
+        return mGrid.getTexture();
+    }
+}
@@ -0,0 +1,183 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.ForceModel;
+import com.nfaralli.particleflow.JavaParticleEngine;
+import com.nfaralli.particleflow.PointRasterizer;
+
+/**
+ * Runs the java engine and draws each frame with PointRasterizer, without any GPU, then writes
+ * the frames as PNG images (frame-00000.png, ...) or as a single raw RGBA file (frames.rgba).
+ * The arguments are name=value pairs, Cf. main. The defaults are the ones of the app.
+ * The frames are written by another thread while the next one is simulated and drawn.
+ */
+public class FrameExport {
+
+    // Same default colors as the app (Cf. ParticlesSurfaceView).
+    private static final int SLOW_COLOR = 0xFF4C4CFF;
+    private static final int FAST_COLOR = 0xFFFF4C4C;
+    private static final int BG_COLOR = 0xFF000000;
+
+    /**
+     * Arguments (name=value):
+     * - out: output directory (build/frames).
+     * - format: png or raw (png).
+     * - frames: number of frames (300).
+     * - width, height: size of the frames (1080, 1920).
+     * - particles: number of particles (50000).
+     * - size: size of the particles, in pixels (1).
+     * - attPoints: number of attraction points (5).
+     * - forceModel: Cf. ForceModel (0).
+     * - seed: seed of a deterministic run (Cf. ParticleEngine.setDeterministic), none by default.
+     * - threads: number of threads of the engine and of the rasterizer (number of cores).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException,
+            ExecutionException {
+        File out = new File("build/frames");
+        boolean png = true;
+        int frames = 300;
+        int width = 1080;
+        int height = 1920;
+        int particles = 50000;
+        float size = 1;
+        int attPoints = 5;
+        int forceModel = ForceModel.ATTRACTION;
+        Integer seed = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            String[] nameValue = arg.split("=", 2);
+            if (nameValue.length != 2) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            String name = nameValue[0];
+            String value = nameValue[1];
+            if (name.equals("out")) {
+                out = new File(value);
+            } else if (name.equals("format")) {
+                png = !value.equals("raw");
+            } else if (name.equals("frames")) {
+                frames = Integer.parseInt(value);
+            } else if (name.equals("width")) {
+                width = Integer.parseInt(value);
+            } else if (name.equals("height")) {
+                height = Integer.parseInt(value);
+            } else if (name.equals("particles")) {
+                particles = Integer.parseInt(value);
+            } else if (name.equals("size")) {
+                size = Float.parseFloat(value);
+            } else if (name.equals("attPoints")) {
+                attPoints = Integer.parseInt(value);
+            } else if (name.equals("forceModel")) {
+                forceModel = Integer.parseInt(value);
+            } else if (name.equals("seed")) {
+                seed = Integer.parseInt(value);
+            } else if (name.equals("threads")) {
+                threads = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + name);
+            }
+        }
+        if (!out.isDirectory() && !out.mkdirs()) {
+            throw new IOException("Could not create " + out);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ColorRamp colorRamp = ColorRamp.fromColors(SLOW_COLOR, FAST_COLOR, 0);
+        JavaParticleEngine engine = new JavaParticleEngine(pool);
+        engine.setSize(width, height);
+        engine.setColorRamp(colorRamp);
+        engine.setForceCoefs(100, 0.96f);
+        ForceModel model = ForceModel.get(forceModel);
+        engine.setForceModel(model, model.getDefaultValues());
+        if (seed != null) {
+            engine.setDeterministic(true, seed);
+        }
+        engine.allocate(particles, attPoints);
+        // Same layout as ParticleSimulation.resetAttractionPoints.
+        float[] touch = new float[2 * attPoints];
+        float l = Math.min(width, height) / 3;
+        touch[0] = width / 2;
+        touch[1] = height / 2 - l;
+        for (int i = 1; i < attPoints; i++) {
+            double angle = i * 2 * Math.PI / attPoints;
+            touch[2 * i] = (float) (width / 2 + l * Math.sin(angle));
+            touch[2 * i + 1] = (float) (height / 2 - l * Math.cos(angle));
+        }
+        engine.setTouch(touch);
+        engine.initParticles();
+
+        PointRasterizer rasterizer = new PointRasterizer(pool);
+        rasterizer.setSize(width, height);
+        rasterizer.setBackground(BG_COLOR);
+        rasterizer.setPointSize(size);
+        rasterizer.setColorRamp(colorRamp);
+
+        // Copy of the last frame, written while the next one is simulated and drawn.
+        final int[] framePixels = new int[width * height];
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<?> pending = null;
+        final FrameWriter frameWriter = new FrameWriter();
+        final OutputStream raw = png ? null
+                : new BufferedOutputStream(new FileOutputStream(new File(out, "frames.rgba")));
+        long start = System.nanoTime();
+        long drawNanos = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            engine.update();
+            long drawStart = System.nanoTime();
+            rasterizer.draw(engine);
+            drawNanos += System.nanoTime() - drawStart;
+            if (pending != null) {
+                pending.get();
+            }
+            System.arraycopy(rasterizer.getPixels(), 0, framePixels, 0, framePixels.length);
+            final int w = width;
+            final int h = height;
+            final File file = new File(out, String.format("frame-%05d.png", frame));
+            pending = writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (raw != null) {
+                        frameWriter.writeRaw(framePixels, w, h, raw);
+                        return null;
+                    }
+                    OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+                    try {
+                        frameWriter.writePng(framePixels, w, h, stream);
+                    } finally {
+                        stream.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        if (pending != null) {
+            pending.get();
+        }
+        writer.shutdown();
+        if (raw != null) {
+            raw.close();
+        }
+        engine.destroy();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d frames of %d particles in %.1f s (%.1f fps), "
+                        + "rasterizer: %.1f ms per frame, %.1f M points/s",
+                frames, particles, seconds, frames / seconds, drawNanos / 1e6 / frames,
+                (double) particles * frames / (drawNanos / 1e3)));
+        if (!png) {
+            System.out.println(String.format("ffmpeg -f rawvideo -pix_fmt rgba -s %dx%d -i %s",
+                    width, height, new File(out, "frames.rgba")));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the frames of PointRasterizer (ARGB, row by row from the top) as PNG images or as raw
+ * RGBA bytes. Only uses java.util.zip, so that it runs on a headless JVM.
+ */
+public class FrameWriter {
+
+    private static final byte[] PNG_SIGNATURE =
+            {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // Color type of the IHDR chunk: 8-bit RGB, the frames are opaque.
+    private static final int PNG_RGB = 2;
+
+    // Scanlines of the current frame, with the filter byte of each line.
+    private byte[] mRows = new byte[0];
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * Write the frame as raw RGBA bytes, i.e. 4 * width * height bytes. Several frames written to
+     * the same stream can be read by e.g. ffmpeg -f rawvideo -pix_fmt rgba -s widthxheight.
+     */
+    public void writeRaw(int[] argb, int width, int height, OutputStream out) throws IOException {
+        byte[] bytes = new byte[4 * width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color = argb[y * width + x];
+                bytes[4 * x] = (byte) (color >> 16);
+                bytes[4 * x + 1] = (byte) (color >> 8);
+                bytes[4 * x + 2] = (byte) color;
+                bytes[4 * x + 3] = (byte) (color >>> 24);
+            }
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Write the frame as a PNG image (RGB, no alpha).
+     * Each line uses the "sub" filter (difference with the pixel on the left), which turns the
+     * background into runs of zeros and compresses well even with the fastest deflate level.
+     */
+    public void writePng(int[] argb, int width, int height, OutputStream out) throws IOException {
+        int rowSize = 1 + 3 * width;
+        if (mRows.length < rowSize * height) {
+            mRows = new byte[rowSize * height];
+        }
+        for (int y = 0; y < height; y++) {
+            int offset = y * rowSize;
+            mRows[offset] = 1;  // Sub filter.
+            int previous = 0;
+            for (int x = 0; x < width; x++) {
+                int color = argb[y * width + x];
+                mRows[offset + 3 * x + 1] = (byte) ((color >> 16) - (previous >> 16));
+                mRows[offset + 3 * x + 2] = (byte) ((color >> 8) - (previous >> 8));
+                mRows[offset + 3 * x + 3] = (byte) (color - previous);
+                previous = color;
+            }
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(PNG_SIGNATURE);
+        ChunkStream header = new ChunkStream("IHDR");
+        header.data.writeInt(width);
+        header.data.writeInt(height);
+        header.data.writeByte(8);  // Bits per component.
+        header.data.writeByte(PNG_RGB);
+        header.data.writeByte(0);  // Deflate.
+        header.data.writeByte(0);  // Adaptive filtering.
+        header.data.writeByte(0);  // No interlace.
+        header.writeTo(data);
+        ChunkStream image = new ChunkStream("IDAT");
+        mDeflater.reset();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(image.data, mDeflater, 65536);
+        deflater.write(mRows, 0, rowSize * height);
+        deflater.finish();
+        image.writeTo(data);
+        new ChunkStream("IEND").writeTo(data);
+        data.flush();
+    }
+
+    /**
+     * PNG chunk: type and data, written with its length and CRC.
+     */
+    private static class ChunkStream {
+        private final byte[] mType;
+        private final ByteArrayStream mBytes = new ByteArrayStream();
+        final DataOutputStream data = new DataOutputStream(mBytes);
+
+        ChunkStream(String type) {
+            mType = type.getBytes();
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            data.flush();
+            out.writeInt(mBytes.size());
+            out.write(mType);
+            out.write(mBytes.getBuffer(), 0, mBytes.size());
+            CRC32 crc = new CRC32();
+            crc.update(mType);
+            crc.update(mBytes.getBuffer(), 0, mBytes.size());
+            out.writeInt((int) crc.getValue());
+        }
+    }
+
+    // Gives access to the buffer, to avoid the copy of toByteArray.
+    private static class ByteArrayStream extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
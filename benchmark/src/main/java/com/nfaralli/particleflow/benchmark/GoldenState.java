@@ -0,0 +1,76 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ForkJoinPool;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.ForceModel;
+import com.nfaralli.particleflow.JavaParticleEngine;
+
+/**
+ * Runs the java engine in deterministic mode (Cf. ParticleEngine.setDeterministic) with each
+ * force model, and writes the checksum of the state of the particles after NUM_STEPS updates,
+ * one line per model, to the file given as argument (stdout if none).
+ * The checksums are compared with golden-state.txt by the compareGoldenState task: an
+ * optimization of a kernel must not change them, unlike a change of behavior.
+ * Each model is run with 1 and 4 threads, which must give the same state.
+ */
+public class GoldenState {
+
+    // Same setup as ForceModelBenchmark.
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] SLOW_HSV = {240 / 360.f, 0.7f, 1.0f};
+    private static final float[] FAST_HSV = {0, 0.7f, 1.0f};
+    private static final int NUM_ATT_POINTS = 5;
+    private static final int NUM_PARTICLES = 20000;
+    private static final int NUM_STEPS = 500;
+    private static final int SEED = 1;
+    private static final int[] THREADS = {1, 4};
+
+    public static void main(String[] args) throws IOException {
+        PrintWriter out = args.length > 0
+                ? new PrintWriter(new FileWriter(args[0])) : new PrintWriter(System.out);
+        for (ForceModel model : ForceModel.getAll()) {
+            long checksum = run(model, THREADS[0]);
+            for (int i = 1; i < THREADS.length; i++) {
+                if (run(model, THREADS[i]) != checksum) {
+                    throw new IllegalStateException("Force model " + model.getId()
+                            + ": the state depends on the number of threads");
+                }
+            }
+            out.println(String.format("forceModel=%d 0x%016x", model.getId(), checksum));
+        }
+        out.close();
+    }
+
+    private static long run(ForceModel model, int threads) {
+        JavaParticleEngine engine = new JavaParticleEngine(new ForkJoinPool(threads));
+        engine.setSize(WIDTH, HEIGHT);
+        engine.setColorRamp(new ColorRamp(SLOW_HSV, FAST_HSV, 0));
+        engine.setForceCoefs(100, 0.96f);
+        engine.setForceModel(model, model.getDefaultValues());
+        engine.setDeterministic(true, SEED);
+        engine.allocate(NUM_PARTICLES, NUM_ATT_POINTS);
+        // Same layout as ParticleSimulation.resetAttractionPoints.
+        float[] touch = new float[2 * NUM_ATT_POINTS];
+        float l = Math.min(WIDTH, HEIGHT) / 3;
+        touch[0] = WIDTH / 2;
+        touch[1] = HEIGHT / 2 - l;
+        for (int i = 1; i < NUM_ATT_POINTS; i++) {
+            double angle = i * 2 * Math.PI / NUM_ATT_POINTS;
+            touch[2 * i] = (float) (WIDTH / 2 + l * Math.sin(angle));
+            touch[2 * i + 1] = (float) (HEIGHT / 2 - l * Math.cos(angle));
+        }
+        engine.setTouch(touch);
+        engine.initParticles();
+        for (int i = 0; i < NUM_STEPS; i++) {
+            engine.update();
+        }
+        long checksum = engine.getStateChecksum();
+        engine.destroy();
+        return checksum;
+    }
+}
@@ -0,0 +1,87 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.ForceModel;
+import com.nfaralli.particleflow.JavaParticleEngine;
+
+/**
+ * Measures the cost of one update of all the particles with the neighbor force enabled (grid
+ * build and neighbor search on top of UpdateParticlesBenchmark) with the java engine.
+ * The score is in updates per second, as in UpdateParticlesBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NeighborForceBenchmark {
+
+    // Same default screen, colors and neighbor force as the app (Cf. ParticlesSurfaceView).
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] SLOW_HSV = {240 / 360.f, 0.7f, 1.0f};
+    private static final float[] FAST_HSV = {0, 0.7f, 1.0f};
+    private static final int NUM_ATT_POINTS = 5;
+    private static final float NEIGHBOR_COEF = 0.2f;
+
+    @Param({"10000", "100000"})
+    public int numParticles;
+
+    @Param({"4", "8", "16"})
+    public int neighborRadius;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private JavaParticleEngine mEngine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEngine = new JavaParticleEngine(new ForkJoinPool(threads));
+        mEngine.setSize(WIDTH, HEIGHT);
+        mEngine.setColorRamp(new ColorRamp(SLOW_HSV, FAST_HSV, 0));
+        mEngine.setForceCoefs(100, 0.96f);
+        mEngine.setForceModel(ForceModel.get(ForceModel.NEIGHBORS),
+                new float[] {NEIGHBOR_COEF, neighborRadius});
+        mEngine.allocate(numParticles, NUM_ATT_POINTS);
+        // Same layout as ParticleSimulation.resetAttractionPoints.
+        float[] touch = new float[2 * NUM_ATT_POINTS];
+        float l = Math.min(WIDTH, HEIGHT) / 3;
+        touch[0] = WIDTH / 2;
+        touch[1] = HEIGHT / 2 - l;
+        for (int i = 1; i < NUM_ATT_POINTS; i++) {
+            double angle = i * 2 * Math.PI / NUM_ATT_POINTS;
+            touch[2 * i] = (float) (WIDTH / 2 + l * Math.sin(angle));
+            touch[2 * i + 1] = (float) (HEIGHT / 2 - l * Math.cos(angle));
+        }
+        mEngine.setTouch(touch);
+    }
+
+    // Start each iteration from the initial disk so that all the iterations measure the same flow.
+    @Setup(Level.Iteration)
+    public void initParticles() {
+        mEngine.initParticles();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mEngine.destroy();
+    }
+
+    @Benchmark
+    public void updateParticles() {
+        mEngine.update();
+    }
+}
@@ -0,0 +1,100 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.JavaParticleEngine;
+import com.nfaralli.particleflow.PointRasterizer;
+
+/**
+ * Measures the cost of drawing one frame (clear, binning and rasterization of all the particles)
+ * with PointRasterizer. The particles are updated a few times first, so that they are spread as
+ * in the app (piled up around the attraction points), and not updated during the measurement.
+ * The score is in frames per second. As for UpdateParticlesBenchmark, multiply it by numParticles
+ * to get points per second (this is what the compareBenchmarks task does).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RasterizerBenchmark {
+
+    // Same default screen and colors as the app (Cf. ParticlesSurfaceView).
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] SLOW_HSV = {240 / 360.f, 0.7f, 1.0f};
+    private static final float[] FAST_HSV = {0, 0.7f, 1.0f};
+    private static final int NUM_ATT_POINTS = 5;
+    private static final int NUM_UPDATES = 100;
+
+    @Param({"100000", "1000000"})
+    public int numParticles;
+
+    // In pixels, Cf. ParticleSize preference.
+    @Param({"1", "4"})
+    public int particleSize;
+
+    // With speedOutput, the colors are interpolated from the ramp texture.
+    @Param({"false", "true"})
+    public boolean speedOutput;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private JavaParticleEngine mEngine;
+    private PointRasterizer mRasterizer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ColorRamp colorRamp = new ColorRamp(SLOW_HSV, FAST_HSV, 0);
+        mEngine = new JavaParticleEngine(pool);
+        mEngine.setSize(WIDTH, HEIGHT);
+        mEngine.setColorRamp(colorRamp);
+        mEngine.setForceCoefs(100, 0.96f);
+        mEngine.setSpeedOutput(speedOutput);
+        mEngine.setDeterministic(true, 1);
+        mEngine.allocate(numParticles, NUM_ATT_POINTS);
+        // Same layout as ParticleSimulation.resetAttractionPoints.
+        float[] touch = new float[2 * NUM_ATT_POINTS];
+        float l = Math.min(WIDTH, HEIGHT) / 3;
+        touch[0] = WIDTH / 2;
+        touch[1] = HEIGHT / 2 - l;
+        for (int i = 1; i < NUM_ATT_POINTS; i++) {
+            double angle = i * 2 * Math.PI / NUM_ATT_POINTS;
+            touch[2 * i] = (float) (WIDTH / 2 + l * Math.sin(angle));
+            touch[2 * i + 1] = (float) (HEIGHT / 2 - l * Math.cos(angle));
+        }
+        mEngine.setTouch(touch);
+        mEngine.initParticles();
+        for (int i = 0; i < NUM_UPDATES; i++) {
+            mEngine.update();
+        }
+        mRasterizer = new PointRasterizer(pool);
+        mRasterizer.setSize(WIDTH, HEIGHT);
+        mRasterizer.setPointSize(particleSize);
+        mRasterizer.setColorRamp(colorRamp);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mEngine.destroy();
+    }
+
+    @Benchmark
+    public int[] drawFrame() {
+        mRasterizer.draw(mEngine);
+        return mRasterizer.getPixels();
+    }
+}
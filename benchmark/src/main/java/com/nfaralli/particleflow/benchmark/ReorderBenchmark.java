@@ -0,0 +1,100 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.ForceModel;
+import com.nfaralli.particleflow.JavaParticleEngine;
+
+/**
+ * Measures the effect of the Z-order reordering of the particles (Cf.
+ * JavaParticleEngine.reorderParticles) on the java engine: updateParticles is the cost of an
+ * update including the reorderings every reorderInterval updates (0 never reorders them), and
+ * reorderParticles the cost of a reordering alone.
+ * The particles are updated a few times first, so that their indices are scattered over the
+ * screen as in the app, and keep flowing during the measurement.
+ * The scores are in updates (or reorderings) per second, as in UpdateParticlesBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReorderBenchmark {
+
+    // Same default screen and colors as the app (Cf. ParticlesSurfaceView).
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] SLOW_HSV = {240 / 360.f, 0.7f, 1.0f};
+    private static final float[] FAST_HSV = {0, 0.7f, 1.0f};
+    private static final int NUM_ATT_POINTS = 5;
+    private static final int NUM_UPDATES = 100;
+
+    @Param({"100000", "1000000"})
+    public int numParticles;
+
+    // ForceModel.ATTRACTION only streams through the arrays, ForceModel.NEIGHBORS also looks up
+    // the neighbors of each particle.
+    @Param({"0", "1"})
+    public int forceModel;
+
+    @Param({"0", "30"})
+    public int reorderInterval;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private JavaParticleEngine mEngine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEngine = new JavaParticleEngine(new ForkJoinPool(threads));
+        mEngine.setSize(WIDTH, HEIGHT);
+        mEngine.setColorRamp(new ColorRamp(SLOW_HSV, FAST_HSV, 0));
+        mEngine.setForceCoefs(100, 0.96f);
+        ForceModel model = ForceModel.get(forceModel);
+        mEngine.setForceModel(model, model.getDefaultValues());
+        mEngine.allocate(numParticles, NUM_ATT_POINTS);
+        // Same layout as ParticleSimulation.resetAttractionPoints.
+        float[] touch = new float[2 * NUM_ATT_POINTS];
+        float l = Math.min(WIDTH, HEIGHT) / 3;
+        touch[0] = WIDTH / 2;
+        touch[1] = HEIGHT / 2 - l;
+        for (int i = 1; i < NUM_ATT_POINTS; i++) {
+            double angle = i * 2 * Math.PI / NUM_ATT_POINTS;
+            touch[2 * i] = (float) (WIDTH / 2 + l * Math.sin(angle));
+            touch[2 * i + 1] = (float) (HEIGHT / 2 - l * Math.cos(angle));
+        }
+        mEngine.setTouch(touch);
+        mEngine.initParticles();
+        for (int i = 0; i < NUM_UPDATES; i++) {
+            mEngine.update();
+        }
+        mEngine.setReorderInterval(reorderInterval);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mEngine.destroy();
+    }
+
+    @Benchmark
+    public void updateParticles() {
+        mEngine.update();
+    }
+
+    @Benchmark
+    public void reorderParticles() {
+        mEngine.reorderParticles();
+    }
+}
@@ -0,0 +1,276 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.egl.EGL;
+import org.lwjgl.egl.EGL10;
+import org.lwjgl.egl.EGL12;
+import org.lwjgl.egl.EGL13;
+import org.lwjgl.egl.EGL14;
+import org.lwjgl.opengles.GLES;
+import org.lwjgl.opengles.GLES30;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.JavaParticleEngine;
+import com.nfaralli.particleflow.TransformFeedbackShaders;
+
+/**
+ * Conformance test of the shaders of GLParticleEngine: runs NUM_STEPS updates with
+ * TransformFeedbackShaders on an OpenGL ES 3.0 implementation of the desktop (e.g. Mesa llvmpipe,
+ * Cf. the gpuConformance task), and compares the particles with the java engine run in
+ * deterministic mode from the same state, with and without speed output.
+ * Both use the same random numbers (Cf. ParticleRandom), but not the same floating point
+ * operations (e.g. cos or log), and a particle passing close to an attraction point amplifies any
+ * difference: only MIN_MATCHING of the particles must be within the tolerances below.
+ * Throws (i.e. exits with a non-zero status) if the test fails or if no such implementation is
+ * available.
+ */
+public class TransformFeedbackConformance {
+
+    // Same setup as GoldenState.
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] SLOW_HSV = {240 / 360.f, 0.7f, 1.0f};
+    private static final float[] FAST_HSV = {0, 0.7f, 1.0f};
+    private static final int NUM_ATT_POINTS = 5;
+    private static final int NUM_PARTICLES = 20000;
+    private static final int NUM_STEPS = 100;
+    private static final int SEED = 1;
+    private static final float ATTRACTION_COEF = 100;
+    private static final float DRAG_COEF = 0.96f;
+    // Maximum differences of a matching particle: position (pixels), velocity (pixels per update),
+    // speed coefficient and color components.
+    private static final float POSITION_TOLERANCE = 0.5f;
+    private static final float DELTA_TOLERANCE = 0.05f;
+    private static final float OUTPUT_TOLERANCE = 0.02f;
+    private static final double MIN_MATCHING = 0.99;
+
+    public static void main(String[] args) {
+        long display = createContext();
+        try {
+            boolean failed = false;
+            for (boolean speedOutput : new boolean[] {true, false}) {
+                double matching = run(speedOutput);
+                System.out.println(String.format("speedOutput=%b: %.2f%% of the particles match",
+                        speedOutput, 100 * matching));
+                failed |= matching < MIN_MATCHING;
+            }
+            if (failed) {
+                throw new IllegalStateException(String.format(
+                        "Less than %.2f%% of the particles match the java engine",
+                        100 * MIN_MATCHING));
+            }
+        } finally {
+            EGL10.eglTerminate(display);
+        }
+    }
+
+    /**
+     * Make an OpenGL ES 3.0 context current (with a 1x1 pbuffer, nothing is drawn), and returns
+     * its display.
+     */
+    private static long createContext() {
+        long display = EGL10.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] major = new int[1];
+        int[] minor = new int[1];
+        if (display == EGL10.EGL_NO_DISPLAY || !EGL10.eglInitialize(display, major, minor)) {
+            throw new IllegalStateException("No EGL display");
+        }
+        EGL.createDisplayCapabilities(display, major[0], minor[0]);
+        EGL12.eglBindAPI(EGL12.EGL_OPENGL_ES_API);
+        int[] configAttribs = {
+                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+                EGL12.EGL_RENDERABLE_TYPE, EGL13.EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_NONE};
+        PointerBuffer configs = PointerBuffer.allocateDirect(1);
+        int[] numConfigs = new int[1];
+        if (!EGL10.eglChooseConfig(display, configAttribs, configs, numConfigs)
+                || numConfigs[0] == 0) {
+            throw new IllegalStateException("No EGL config for OpenGL ES");
+        }
+        long config = configs.get(0);
+        long surface = EGL10.eglCreatePbufferSurface(display, config,
+                new int[] {EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE});
+        long context = EGL10.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+                new int[] {EGL13.EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE});
+        if (surface == EGL10.EGL_NO_SURFACE || context == EGL10.EGL_NO_CONTEXT
+                || !EGL10.eglMakeCurrent(display, surface, surface, context)) {
+            throw new IllegalStateException("Could not create an OpenGL ES 3.0 context");
+        }
+        GLES.createCapabilities();
+        System.out.println(GLES30.glGetString(GLES30.GL_RENDERER) + ", "
+                + GLES30.glGetString(GLES30.GL_VERSION));
+        return display;
+    }
+
+    /**
+     * Run the test with or without speed output, and returns the fraction of the particles which
+     * match the java engine.
+     */
+    private static double run(boolean speedOutput) {
+        ColorRamp colorRamp = new ColorRamp(SLOW_HSV, FAST_HSV, 0);
+        JavaParticleEngine engine = new JavaParticleEngine(new ForkJoinPool(1));
+        engine.setSize(WIDTH, HEIGHT);
+        engine.setColorRamp(colorRamp);
+        engine.setForceCoefs(ATTRACTION_COEF, DRAG_COEF);
+        engine.setSpeedOutput(speedOutput);
+        engine.setDeterministic(true, SEED);
+        engine.allocate(NUM_PARTICLES, NUM_ATT_POINTS);
+        // Same layout as ParticleSimulation.resetAttractionPoints.
+        float[] touch = new float[2 * NUM_ATT_POINTS];
+        float l = Math.min(WIDTH, HEIGHT) / 3;
+        touch[0] = WIDTH / 2;
+        touch[1] = HEIGHT / 2 - l;
+        for (int i = 1; i < NUM_ATT_POINTS; i++) {
+            double angle = i * 2 * Math.PI / NUM_ATT_POINTS;
+            touch[2 * i] = (float) (WIDTH / 2 + l * Math.sin(angle));
+            touch[2 * i + 1] = (float) (HEIGHT / 2 - l * Math.cos(angle));
+        }
+        engine.setTouch(touch);
+        engine.initParticles();
+
+        int stride = TransformFeedbackShaders.getStride(speedOutput);
+        FloatBuffer position = FloatBuffer.allocate(2 * NUM_PARTICLES);
+        FloatBuffer delta = FloatBuffer.allocate(2 * NUM_PARTICLES);
+        engine.saveState(position, delta);
+        FloatBuffer data = ByteBuffer.allocateDirect(4 * stride * NUM_PARTICLES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < NUM_PARTICLES; i++) {
+            data.position(i * stride);
+            data.put(position.get(2 * i)).put(position.get(2 * i + 1));
+            data.put(delta.get(2 * i)).put(delta.get(2 * i + 1));
+        }
+        data.position(0);
+
+        int program = createProgram(speedOutput);
+        int[] buffers = new int[2];
+        GLES30.glGenBuffers(buffers);
+        for (int buffer : buffers) {
+            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffer);
+            GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, data, GLES30.GL_DYNAMIC_COPY);
+        }
+        int colorTable = GLES30.glGenTextures();
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, colorTable);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER,
+                GLES30.GL_NEAREST);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER,
+                GLES30.GL_NEAREST);
+        GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA32F,
+                TransformFeedbackShaders.COLOR_TABLE_WIDTH,
+                TransformFeedbackShaders.COLOR_TABLE_HEIGHT, 0, GLES30.GL_RGBA, GLES30.GL_FLOAT,
+                colorRamp.getTable());
+
+        // Same as GLParticleEngine.update.
+        GLES30.glUseProgram(program);
+        GLES30.glUniform2fv(GLES30.glGetUniformLocation(program, "uTouch"), touch);
+        GLES30.glUniform1i(GLES30.glGetUniformLocation(program, "uNumTouch"), NUM_ATT_POINTS);
+        GLES30.glUniform1f(GLES30.glGetUniformLocation(program, "uAttractionCoef"),
+                ATTRACTION_COEF);
+        GLES30.glUniform1f(GLES30.glGetUniformLocation(program, "uDragCoef"), DRAG_COEF);
+        GLES30.glUniform1f(GLES30.glGetUniformLocation(program, "uTimeScale"), 1);
+        GLES30.glUniform1ui(GLES30.glGetUniformLocation(program, "uSeed"), SEED);
+        if (!speedOutput) {
+            GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+            GLES30.glUniform1i(GLES30.glGetUniformLocation(program, "uColorTable"), 0);
+            GLES30.glUniform1f(GLES30.glGetUniformLocation(program, "uColorScale"),
+                    colorRamp.getScale());
+        }
+        int stepHandle = GLES30.glGetUniformLocation(program, "uStep");
+        GLES30.glEnableVertexAttribArray(TransformFeedbackShaders.POSITION_LOCATION);
+        GLES30.glEnableVertexAttribArray(TransformFeedbackShaders.DELTA_LOCATION);
+        GLES30.glEnable(GLES30.GL_RASTERIZER_DISCARD);
+        int current = 0;
+        for (int step = 0; step < NUM_STEPS; step++) {
+            GLES30.glUniform1ui(stepHandle, engine.getStep());
+            GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[current]);
+            GLES30.glVertexAttribPointer(TransformFeedbackShaders.POSITION_LOCATION, 2,
+                    GLES30.GL_FLOAT, false, 4 * stride, 0);
+            GLES30.glVertexAttribPointer(TransformFeedbackShaders.DELTA_LOCATION, 2,
+                    GLES30.GL_FLOAT, false, 4 * stride, 4 * TransformFeedbackShaders.DELTA_OFFSET);
+            GLES30.glBindBufferBase(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 0, buffers[1 - current]);
+            GLES30.glBeginTransformFeedback(GLES30.GL_POINTS);
+            GLES30.glDrawArrays(GLES30.GL_POINTS, 0, NUM_PARTICLES);
+            GLES30.glEndTransformFeedback();
+            GLES30.glBindBufferBase(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 0, 0);
+            current = 1 - current;
+            engine.update();
+        }
+        GLES30.glDisable(GLES30.GL_RASTERIZER_DISCARD);
+        checkGlError("update");
+
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, buffers[current]);
+        FloatBuffer result = GLES30.glMapBufferRange(GLES30.GL_ARRAY_BUFFER, 0,
+                4 * stride * NUM_PARTICLES, GLES30.GL_MAP_READ_BIT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        position.clear();
+        delta.clear();
+        engine.saveState(position, delta);
+        FloatBuffer output = speedOutput ? engine.readSpeeds() : engine.readColors();
+        int outputSize = speedOutput ? 1 : 4;
+        int matching = 0;
+        for (int i = 0; i < NUM_PARTICLES; i++) {
+            boolean match = true;
+            for (int k = 0; k < 2; k++) {
+                match &= Math.abs(result.get(i * stride + k) - position.get(2 * i + k))
+                        <= POSITION_TOLERANCE;
+                match &= Math.abs(result.get(i * stride + TransformFeedbackShaders.DELTA_OFFSET
+                        + k) - delta.get(2 * i + k)) <= DELTA_TOLERANCE;
+            }
+            for (int k = 0; k < outputSize; k++) {
+                match &= Math.abs(result.get(i * stride + TransformFeedbackShaders.OUTPUT_OFFSET
+                        + k) - output.get(outputSize * i + k)) <= OUTPUT_TOLERANCE;
+            }
+            if (match) {
+                matching++;
+            }
+        }
+        GLES30.glUnmapBuffer(GLES30.GL_ARRAY_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        GLES30.glDeleteBuffers(buffers);
+        GLES30.glDeleteTextures(colorTable);
+        GLES30.glDeleteProgram(program);
+        engine.destroy();
+        return (double) matching / NUM_PARTICLES;
+    }
+
+    /**
+     * Same as GLParticleEngine.createProgram.
+     */
+    private static int createProgram(boolean speedOutput) {
+        int program = GLES30.glCreateProgram();
+        GLES30.glAttachShader(program, loadShader(GLES30.GL_VERTEX_SHADER,
+                TransformFeedbackShaders.getUpdateVertexShader(speedOutput)));
+        GLES30.glAttachShader(program, loadShader(GLES30.GL_FRAGMENT_SHADER,
+                TransformFeedbackShaders.UPDATE_FRAGMENT_SHADER));
+        GLES30.glTransformFeedbackVaryings(program,
+                TransformFeedbackShaders.getVaryings(speedOutput), GLES30.GL_INTERLEAVED_ATTRIBS);
+        GLES30.glLinkProgram(program);
+        if (GLES30.glGetProgrami(program, GLES30.GL_LINK_STATUS) != GLES30.GL_TRUE) {
+            throw new IllegalStateException("Could not link program: "
+                    + GLES30.glGetProgramInfoLog(program));
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES30.glCreateShader(type);
+        GLES30.glShaderSource(shader, source);
+        GLES30.glCompileShader(shader);
+        if (GLES30.glGetShaderi(shader, GLES30.GL_COMPILE_STATUS) == 0) {
+            throw new IllegalStateException("Could not compile shader: "
+                    + GLES30.glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+
+    private static void checkGlError(String glOperation) {
+        int error = GLES30.glGetError();
+        if (error != GLES30.GL_NO_ERROR) {
+            throw new IllegalStateException(glOperation + ": glError " + error);
+        }
+    }
+}
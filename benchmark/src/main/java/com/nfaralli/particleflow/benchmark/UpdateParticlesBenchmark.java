@@ -0,0 +1,84 @@
+package com.nfaralli.particleflow.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.nfaralli.particleflow.ColorRamp;
+import com.nfaralli.particleflow.JavaParticleEngine;
+
+/**
+ * Measures the cost of one update of all the particles (attraction sum, drag, speed coefficient
+ * and HSV to RGBA conversion) with the java engine.
+ * The score is in updates per second. Multiply it by numParticles to get particles per second
+ * (this is what the compareBenchmarks task does).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UpdateParticlesBenchmark {
+
+    // Same default screen and colors as the app (Cf. ParticlesSurfaceView).
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] SLOW_HSV = {240 / 360.f, 0.7f, 1.0f};
+    private static final float[] FAST_HSV = {0, 0.7f, 1.0f};
+
+    // From 10k to ParticlesSurfaceView.MAX_NUM_PARTICLES.
+    @Param({"10000", "100000", "1000000"})
+    public int numParticles;
+
+    // From 1 to ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS.
+    @Param({"1", "5", "16"})
+    public int numAttPoints;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private JavaParticleEngine mEngine;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEngine = new JavaParticleEngine(new ForkJoinPool(threads));
+        mEngine.setSize(WIDTH, HEIGHT);
+        mEngine.setColorRamp(new ColorRamp(SLOW_HSV, FAST_HSV, 0));
+        mEngine.setForceCoefs(100, 0.96f);
+        mEngine.allocate(numParticles, numAttPoints);
+        // Same layout as ParticlesRenderer.resetAttractionPoints.
+        float[] touch = new float[2 * numAttPoints];
+        float l = Math.min(WIDTH, HEIGHT) / 3;
+        touch[0] = WIDTH / 2;
+        touch[1] = HEIGHT / 2 + (numAttPoints == 1 ? 0 : l);
+        for (int i = 1; i < numAttPoints; i++) {
+            touch[2 * i] = (float) (WIDTH / 2 + l * Math.sin(i * 2 * Math.PI / numAttPoints));
+            touch[2 * i + 1] = (float) (HEIGHT / 2 + l * Math.cos(i * 2 * Math.PI / numAttPoints));
+        }
+        mEngine.setTouch(touch);
+    }
+
+    // Start each iteration from the initial disk so that all the iterations measure the same flow.
+    @Setup(Level.Iteration)
+    public void initParticles() {
+        mEngine.initParticles();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mEngine.destroy();
+    }
+
+    @Benchmark
+    public void updateParticles() {
+        mEngine.update();
+    }
+}